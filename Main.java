@@ -1,6 +1,59 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,10 +64,18 @@ class Token {
 
     public final Type type;
     public final String value;
+    public final int line;
+    public final int column;
 
     public Token(Type type, String value) {
+        this(type, value, 0, 0);
+    }
+
+    public Token(Type type, String value, int line, int column) {
         this.type = type;
         this.value = value;
+        this.line = line;
+        this.column = column;
     }
 
     @Override
@@ -23,725 +84,9109 @@ class Token {
     }
 }
 
+/**
+ * Single-pass lexer producing the same token stream as {@link RegexLexer}, with line and column positions.
+ * Characters that start no token are skipped, as the regex lexer skips text between matches.
+ */
 class Lexer {
-    private static final String TOKEN_REGEX =
-        "#.*" +
-        "|\\b(show|roi|if|elseif|else|loop|str|num|bln|stop)\\b" +
-        "|[():,|]" +
-        "|[=!<>]=?|\\+|-|\\*|/|%|\\^" +
-        "|'[^']*'" +
-        "|\\d+(\\.\\d+)?|\\w+";
-
-    private final Pattern pattern = Pattern.compile(TOKEN_REGEX);
+    static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+        "show", "roi", "if", "elseif", "else", "loop", "ploop", "str", "num", "bln", "arr"));
 
     public List<Token> tokenize(String code) {
         List<Token> tokens = new ArrayList<>();
-        Matcher matcher = pattern.matcher(code);
+        TokenStream stream = new TokenStream(code);
+        Token token;
+        while ((token = stream.next()) != null) {
+            tokens.add(token);
+        }
+        return tokens;
+    }
 
-        while (matcher.find()) {
-            String match = matcher.group();
-            Token.Type type = classify(match);
-            if (type != Token.Type.COMMENT) {
-                tokens.add(new Token(type, match));
-            }
+    /** Scans the whole source into packed arrays, without a Token object per token. */
+    public TokenBuffer scan(String code) {
+        TokenBuffer tokens = new TokenBuffer(code.length() / 3);
+        TokenStream stream = new TokenStream(code);
+        while (stream.next(tokens)) {
+            // Each call appends one token.
         }
         return tokens;
     }
 
-    private Token.Type classify(String token) {
-        if (token.startsWith("#")) return Token.Type.COMMENT;
-        if (token.matches("'[^']*'")) return Token.Type.STRING;
-        if (token.matches("\\d+(\\.\\d+)?")) return Token.Type.NUMBER;
-        if (token.matches("\\b(show|roi|if|elseif|else|loop|str|num|bln)\\b")) return Token.Type.KEYWORD;
-        if (token.matches("[=!<>]=?|\\+|-|\\*|/|%|\\^|[():,|]")) return Token.Type.SYMBOL;
-        return Token.Type.IDENTIFIER;
+    static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
-}
 
-abstract class Node {
-    public abstract void execute(Context context);
+    static boolean isWord(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
 }
 
-class Context {
-    public final Map<String, Object> variables = new HashMap<>();
-    public final Scanner scanner = new Scanner(System.in);
+/**
+ * The scanner behind {@link Lexer}, producing one token at a time. When reading from a {@link Reader} the
+ * buffer is refilled on demand and text before the current token is discarded, so memory stays bounded by
+ * the longest token rather than the source.
+ */
+class TokenStream {
+    private static final int CHUNK = 1 << 16;
+    private static final Token.Type[] TYPES = Token.Type.values();
 
-    public Object get(String name) {
-        return variables.get(name);
+    private final Reader reader;
+    private char[] buf;
+    private int limit;
+    private int pos;
+    private int mark;
+    private int line = 1;
+    private int lineStart;
+    // Characters dropped from the front of the buffer, so offsets count from the start of the source.
+    private long discarded;
+    private int tokenLine;
+    private int tokenColumn;
+
+    public TokenStream(String code) {
+        this.reader = null;
+        this.buf = code.toCharArray();
+        this.limit = buf.length;
     }
 
-    public void set(String name, Object value) {
-        variables.put(name, value);
+    public TokenStream(Reader reader) {
+        this.reader = reader;
+        this.buf = new char[CHUNK];
     }
-}
 
-class PrintNode extends Node {
-    private final List<String> args;
+    /** Returns the next token, or null at the end of the source. */
+    public Token next() {
+        int kind = scan();
+        if (kind < 0) {
+            return null;
+        }
+        String value = new String(buf, mark, pos - mark);
+        Token.Type type = TYPES[kind];
+        if (type == Token.Type.IDENTIFIER && Lexer.KEYWORDS.contains(value)) {
+            type = Token.Type.KEYWORD;
+        }
+        return new Token(type, value, tokenLine, tokenColumn);
+    }
 
-    public PrintNode(List<String> args) {
-        this.args = args;
+    /** Appends the next token to {@code into}, or records the end position there and returns false. */
+    public boolean next(TokenBuffer into) {
+        int kind = scan();
+        if (kind < 0) {
+            into.end(line, pos - lineStart + 1);
+            return false;
+        }
+        int symbol = into.intern(buf, mark, pos - mark);
+        if (kind == TokenBuffer.IDENTIFIER && symbol <= TokenBuffer.ARR) {
+            kind = TokenBuffer.KEYWORD;
+        }
+        into.add(kind, symbol, (int) Math.min(discarded + mark, Integer.MAX_VALUE), pos - mark, tokenLine, tokenColumn);
+        return true;
     }
 
-    @Override
-    public void execute(Context context) {
-        for (String arg : args) {
-            if (context.variables.containsKey(arg)) {
-                Object value = context.get(arg);
-                if (value instanceof Double) {
-                    double d = (Double) value;
-                    if (d == Math.floor(d)) {
-                        System.out.print((int) d);
-                    } else {
-                        System.out.print(d);
+    /**
+     * Finds the next token, leaving it between {@code mark} and {@code pos}, and returns its kind as a
+     * {@link TokenBuffer} constant; keywords come back as identifiers. Returns -1 at the end of the source.
+     */
+    private int scan() {
+        while (has(0)) {
+            mark = pos;
+            char c = buf[pos];
+            int kind;
+
+            if (c == '\n') {
+                line++;
+                lineStart = ++pos;
+                continue;
+            } else if (c == '#') {
+                while (has(0) && !Lexer.isLineTerminator(buf[pos])) {
+                    pos++;
+                }
+                continue;
+            } else if (c == '\'') {
+                int ahead = 1;
+                while (has(ahead) && buf[pos + ahead] != '\'') {
+                    ahead++;
+                }
+                if (!has(ahead)) {
+                    pos++;
+                    continue;
+                }
+                pos += ahead + 1;
+                kind = TokenBuffer.STRING;
+            } else if (Lexer.isDigit(c)) {
+                pos++;
+                while (has(0) && Lexer.isDigit(buf[pos])) {
+                    pos++;
+                }
+                if (has(1) && buf[pos] == '.' && Lexer.isDigit(buf[pos + 1])) {
+                    pos += 2;
+                    while (has(0) && Lexer.isDigit(buf[pos])) {
+                        pos++;
                     }
-                } else {
-                    System.out.print(value);
                 }
+                kind = TokenBuffer.NUMBER;
+            } else if (Lexer.isWord(c)) {
+                pos++;
+                while (has(0) && Lexer.isWord(buf[pos])) {
+                    pos++;
+                }
+                kind = TokenBuffer.IDENTIFIER;
+            } else if (c == '=' || c == '!' || c == '<' || c == '>') {
+                int length = has(1) && buf[pos + 1] == '=' ? 2 : 1;
+                pos += length;
+                kind = TokenBuffer.SYMBOL;
+            } else if ("():,|+-*/%^[]".indexOf(c) >= 0) {
+                pos++;
+                kind = TokenBuffer.SYMBOL;
             } else {
-                if (arg.startsWith("'") && arg.endsWith("'")) {
-                    System.out.print(arg.substring(1, arg.length() - 1));
-                } else {
-                    System.out.print(arg);
+                pos++;
+                continue;
+            }
+
+            tokenLine = line;
+            tokenColumn = mark - lineStart + 1;
+            if (kind == TokenBuffer.STRING) {
+                // String literals may span lines.
+                for (int i = mark; i < pos; i++) {
+                    if (buf[i] == '\n') {
+                        line++;
+                        lineStart = i + 1;
+                    }
+                }
+            }
+            return kind;
+        }
+        return -1;
+    }
+
+    /** Whether the character {@code ahead} places past the cursor exists, reading more input if needed. */
+    private boolean has(int ahead) {
+        return pos + ahead < limit || fill(ahead);
+    }
+
+    private boolean fill(int ahead) {
+        if (reader == null) {
+            return false;
+        }
+        if (mark > 0) {
+            System.arraycopy(buf, mark, buf, 0, limit - mark);
+            discarded += mark;
+            limit -= mark;
+            pos -= mark;
+            lineStart -= mark;
+            mark = 0;
+        }
+        try {
+            while (pos + ahead >= limit) {
+                if (limit == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int read = reader.read(buf, limit, buf.length - limit);
+                if (read < 0) {
+                    return false;
                 }
+                limit += read;
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        System.out.println();
+        return true;
     }
 }
 
-class InputNode extends Node {
-    private final String varName;
-    private final String prompt;
-    private final String type;
+/**
+ * Tokens packed into parallel arrays: a kind, an interned symbol id, and where the text sits in the source.
+ * Each distinct spelling is stored once, and the spellings the parser dispatches on are interned first, so
+ * their ids are the constants below and the parser can switch on them. The token before the first, or past
+ * the last, is {@link #END}, which reads as "EOF" at the end of the source.
+ */
+final class TokenBuffer {
+    // Kinds, in the order of Token.Type.
+    static final int KEYWORD = 0, IDENTIFIER = 1, STRING = 2, NUMBER = 3, SYMBOL = 4;
 
-    public InputNode(String varName, String prompt, String type) {
-        this.varName = varName;
-        this.prompt = prompt;
-        this.type = type;
+    static final int END = -1;
+    static final int SHOW = 0, ROI = 1, IF = 2, ELSEIF = 3, ELSE = 4, LOOP = 5, PLOOP = 6;
+    static final int STR = 7, NUM = 8, BLN = 9, ARR = 10;
+    static final int STOP = 11, CONTINUE = 12, APPEND = 13, REDUCE = 14;
+    static final int PIPE = 15, COLON = 16, COMMA = 17, ASSIGN = 18, NOT_EQUAL = 19;
+    static final int LPAREN = 20, RPAREN = 21, LBRACKET = 22, RBRACKET = 23;
+    private static final String[] FIXED = {
+        "show", "roi", "if", "elseif", "else", "loop", "ploop", "str", "num", "bln", "arr",
+        "stop", "continue", "append", "reduce", "|", ":", ",", "=", "!=", "(", ")", "[", "]"};
+    // A stream that has interned this many spellings starts over when it drops parsed tokens.
+    private static final int MAX_SYMBOLS = 1 << 16;
+
+    private int[] kinds;
+    private int[] symbols;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] lines;
+    private int[] columns;
+    private int size;
+    private int endLine;
+    private int endColumn;
+
+    private String[] spellings;
+    private int[] hashes;
+    private int symbolCount;
+    // Open-addressed: symbol id + 1 per slot, 0 when empty.
+    private int[] table;
+
+    TokenBuffer() {
+        this(64);
     }
 
-    @Override
-    public void execute(Context context) {
-        System.out.print(prompt.replace("'", ""));
-        String input = context.scanner.nextLine();
-        Object value;
+    TokenBuffer(int capacity) {
+        capacity = Math.max(capacity, 16);
+        kinds = new int[capacity];
+        symbols = new int[capacity];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+        resetSymbols();
+    }
 
-        switch (type) {
-            case "num":
-                try {
-                    value = input.contains(".") ? Double.parseDouble(input) : Integer.parseInt(input);
-                } catch (NumberFormatException e) {
-                    throw new InterpreterException("Invalid input for number variable '" + varName + "'");
-                }
-                break;
-            case "bln":
-                value = input.trim().equalsIgnoreCase("true");
-                break;
-            default:
-                value = input;
+    /** Packs tokens from another lexer; offsets count the token texts as if laid end to end. */
+    static TokenBuffer of(List<Token> tokens) {
+        TokenBuffer buffer = new TokenBuffer(tokens.size());
+        int offset = 0;
+        for (Token token : tokens) {
+            int length = token.value.length();
+            buffer.add(token.type.ordinal(), buffer.intern(token.value), offset, length, token.line, token.column);
+            offset += length;
+        }
+        if (!tokens.isEmpty()) {
+            Token last = tokens.get(tokens.size() - 1);
+            buffer.end(last.line, last.column + last.value.length());
         }
-        context.set(varName, value);
+        return buffer;
     }
-}
 
-class AssignmentNode extends Node {
-    private final String varName;
-    private final String expression;
-    private String declaredType;
+    int size() {
+        return size;
+    }
 
-    public AssignmentNode(String varName, String expression, String declaredType) {
-        this.varName = varName;
-        this.expression = expression;
-        this.declaredType = declaredType;
+    int kind(int token) {
+        return token < 0 ? SYMBOL : kinds[token];
     }
 
-    @Override
-    public void execute(Context context) {
-        Object result;
-
-        if ("str".equals(declaredType)) {
-            result = ExpressionEvaluator.evaluateValue(expression, context);
-            if (!(result instanceof String)) {
-                result = result.toString();
-            }
-        } else if ("bln".equals(declaredType)) {
-            if ("true".equalsIgnoreCase(expression.trim())) {
-                result = true;
-            } else if ("false".equalsIgnoreCase(expression.trim())) {
-                result = false;
-            } else {
-                result = ExpressionEvaluator.evaluate(expression, context);
-            }
-        } else if ("num".equals(declaredType)) {
-            Object evalResult;
-            try {
-                evalResult = ExpressionEvaluator.evaluateValue(expression, context);
-            } catch (Exception e) {
-                throw new InterpreterException("Invalid number assignment to '" + varName + "'");
-            }
-            if (!(evalResult instanceof Number)) {
-                throw new InterpreterException("Type mismatch: expected a number for variable '" + varName + "'");
-            }
-            result = evalResult;
-        } else {
-            result = ExpressionEvaluator.evaluateValue(expression, context);
+    int symbol(int token) {
+        return token < 0 ? END : symbols[token];
+    }
+
+    String text(int token) {
+        return token < 0 ? "EOF" : spellings[symbols[token]];
+    }
+
+    int offset(int token) {
+        return offsets[token];
+    }
+
+    int length(int token) {
+        return lengths[token];
+    }
+
+    int line(int token) {
+        return token < 0 ? endLine : lines[token];
+    }
+
+    int column(int token) {
+        return token < 0 ? endColumn : columns[token];
+    }
+
+    static String spelling(int symbol) {
+        return FIXED[symbol];
+    }
+
+    void add(int kind, int symbol, int offset, int length, int line, int column) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
         }
+        kinds[size] = kind;
+        symbols[size] = symbol;
+        offsets[size] = offset;
+        lengths[size] = length;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
 
-        if (declaredType == null) {
-            if (result instanceof String) {
-                declaredType = "str";
-            } else if (result instanceof Boolean) {
-                declaredType = "bln";
-            } else {
-                declaredType = "num";
+    /** Where the source ends, which is where errors about a missing token point. */
+    void end(int line, int column) {
+        endLine = line;
+        endColumn = column;
+    }
+
+    /** Drops the first {@code count} tokens, as a streaming parser does once it has parsed them. */
+    void discard(int count) {
+        count = Math.min(count, size);
+        int rest = size - count;
+        System.arraycopy(kinds, count, kinds, 0, rest);
+        System.arraycopy(symbols, count, symbols, 0, rest);
+        System.arraycopy(offsets, count, offsets, 0, rest);
+        System.arraycopy(lengths, count, lengths, 0, rest);
+        System.arraycopy(lines, count, lines, 0, rest);
+        System.arraycopy(columns, count, columns, 0, rest);
+        size = rest;
+        if (symbolCount > MAX_SYMBOLS) {
+            String[] old = spellings;
+            resetSymbols();
+            for (int i = 0; i < size; i++) {
+                symbols[i] = intern(old[symbols[i]]);
             }
         }
+    }
 
-        Object existing = context.get(varName);
-        if (existing != null) {
-            if ("num".equals(declaredType) && !(existing instanceof Number)) {
-                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not a number");
-            }
-            if ("str".equals(declaredType) && !(existing instanceof String)) {
-                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not a string");
+    int intern(char[] chars, int from, int length) {
+        int hash = 0;
+        for (int i = from; i < from + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int mask = table.length - 1;
+        for (int slot = (hash ^ hash >>> 16) & mask; ; slot = slot + 1 & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return insert(slot, new String(chars, from, length), hash);
             }
-            if ("bln".equals(declaredType) && !(existing instanceof Boolean)) {
-                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not a boolean");
+            if (hashes[id] == hash && spellings[id].length() == length && matches(spellings[id], chars, from)) {
+                return id;
             }
         }
+    }
 
-        if ("num".equals(declaredType) && !(result instanceof Number)) {
-            throw new InterpreterException("Type mismatch: expected num for '" + varName + "'");
-        }
-        if ("str".equals(declaredType) && !(result instanceof String)) {
-            throw new InterpreterException("Type mismatch: expected str for '" + varName + "'");
+    int intern(String text) {
+        int hash = text.hashCode();
+        int mask = table.length - 1;
+        for (int slot = (hash ^ hash >>> 16) & mask; ; slot = slot + 1 & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return insert(slot, text, hash);
+            }
+            if (hashes[id] == hash && spellings[id].equals(text)) {
+                return id;
+            }
         }
-        if ("bln".equals(declaredType) && !(result instanceof Boolean)) {
-            throw new InterpreterException("Type mismatch: expected bln for '" + varName + "'");
-        }   
-        context.set(varName, result);
     }
-}
 
-class IfNode extends Node {
-    private final List<ConditionBlock> blocks;
+    private static boolean matches(String spelling, char[] chars, int from) {
+        for (int i = 0; i < spelling.length(); i++) {
+            if (spelling.charAt(i) != chars[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    public IfNode(List<ConditionBlock> blocks) {
-        this.blocks = blocks;
+    private int insert(int slot, String text, int hash) {
+        if (symbolCount == spellings.length) {
+            spellings = Arrays.copyOf(spellings, symbolCount * 2);
+            hashes = Arrays.copyOf(hashes, symbolCount * 2);
+        }
+        int id = symbolCount++;
+        spellings[id] = text;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (symbolCount * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
     }
 
-    @Override
-    public void execute(Context context) {
-        for (ConditionBlock block : blocks) {
-            boolean matched = block.condition == null || ExpressionEvaluator.evaluate(block.condition, context);
-            if (matched) {
-                for (Node node : block.body) {
-                    node.execute(context);
-                }
-                return;
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < symbolCount; id++) {
+            int slot = (hashes[id] ^ hashes[id] >>> 16) & mask;
+            while (table[slot] != 0) {
+                slot = slot + 1 & mask;
             }
+            table[slot] = id + 1;
         }
     }
 
-    public static class ConditionBlock {
-        public final String condition;
-        public final List<Node> body;
-
-        public ConditionBlock(String condition, List<Node> body) {
-            this.condition = condition;
-            this.body = body;
+    private void resetSymbols() {
+        spellings = new String[64];
+        hashes = new int[64];
+        table = new int[128];
+        symbolCount = 0;
+        for (String spelling : FIXED) {
+            intern(spelling);
         }
     }
 }
 
-class LoopNode extends Node {
-    private final String condition;
-    private final List<Node> body;
+/**
+ * Decodes a UTF-8 file through a sliding memory-mapped window instead of reading it into one string.
+ */
+class MappedFileReader extends Reader {
+    private static final long WINDOW = 1L << 26;
 
-    public LoopNode(String condition, List<Node> body) {
-        this.condition = condition;
-        this.body = body;
+    private final FileChannel channel;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private final long size;
+    private long offset;
+    private MappedByteBuffer window;
+    private boolean done;
+
+    public MappedFileReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
     }
 
     @Override
-    public void execute(Context context) {
-        try {
-            while (ExpressionEvaluator.evaluate(condition, context)) {
-                for (Node node : body) {
-                    node.execute(context);
-                }
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (done) {
+            return -1;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (out.position() == off && len > 0) {
+            // Remap once the window is spent; a few trailing bytes may be half of a character.
+            if (window == null || window.remaining() < 4 && offset + window.limit() < size) {
+                offset += window == null ? 0 : window.position();
+                window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+            }
+            boolean last = offset + window.limit() >= size;
+            CoderResult result = decoder.decode(window, out, last);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (last && !window.hasRemaining()) {
+                decoder.flush(out);
+                done = true;
+                break;
             }
-        } catch (StopException e) {
-            // Exit the loop immediately when stop is executed
         }
+        int read = out.position() - off;
+        return read == 0 && len > 0 ? -1 : read;
     }
-}
 
-class StopNode extends Node {
     @Override
-    public void execute(Context context) {
-        throw new StopException();
+    public void close() throws IOException {
+        channel.close();
     }
 }
-class StopException extends RuntimeException {}
 
-class Parser {
-    private final List<Token> tokens;
-    private int position = 0;
+/**
+ * The original regex-driven lexer, kept as the reference the scanner is checked and benchmarked against.
+ */
+class RegexLexer {
+    private static final String TOKEN_REGEX =
+        "#.*" +
+        "|\\b(show|roi|if|elseif|else|loop|ploop|str|num|bln|arr|stop)\\b" +
+        "|[():,|\\[\\]]" +
+        "|[=!<>]=?|\\+|-|\\*|/|%|\\^" +
+        "|'[^']*'" +
+        "|\\d+(\\.\\d+)?|\\w+";
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
-    }
+    private final Pattern pattern = Pattern.compile(TOKEN_REGEX);
 
-    public List<Node> parse() {
-        List<Node> nodes = new ArrayList<>();
-        while (position < tokens.size()) {
-            Token token = peek();
-            switch (token.value) {
-                case "str":
-                case "num":
-                case "bln":
-                    nodes.add(parseAssignmentWithInput());
-                    continue;
-                case "show":
-                    nodes.add(parseShow());
-                    continue;
-                case "if":
-                    nodes.add(parseIf());
-                    continue;
-                case "loop":
-                    nodes.add(parseLoop());
-                    continue;
-                case "|":
-                    position++;
-                    continue;
-                case "stop":
-                    next();
-                    if (peek().value.equals("|")) {
-                        next();
-                    }
-                    nodes.add(new StopNode());
-                    continue;
-                default:
-                    position++;
+    public List<Token> tokenize(String code) {
+        List<Token> tokens = new ArrayList<>();
+        Matcher matcher = pattern.matcher(code);
+
+        while (matcher.find()) {
+            String match = matcher.group();
+            Token.Type type = classify(match);
+            if (type != Token.Type.COMMENT) {
+                tokens.add(new Token(type, match));
             }
         }
-        return nodes;
+        return tokens;
     }
 
-    private Node parseStatement() {
-        if (peek().value.matches("str|num|bln")) return parseAssignmentWithInput();
-        if (peek().type == Token.Type.IDENTIFIER && position + 1 < tokens.size()) {
-            Token nextToken = tokens.get(position + 1);
-            if (nextToken.value.equals("=") || nextToken.value.matches("\\+=|-=|\\*=|/=|%=|\\^=")) {
-                return parseAssignment();
-            }
-        }
-        switch (peek().value) {
-            case "if": return parseIf();
-            case "show": return parseShow();
-            case "loop": return parseLoop();
-            case "stop":
-                next();
-                if (peek().value.equals("|")) next();
-                return new StopNode();
-            default: position++; return null;
-        }
+    private Token.Type classify(String token) {
+        if (token.startsWith("#")) return Token.Type.COMMENT;
+        if (token.matches("'[^']*'")) return Token.Type.STRING;
+        if (token.matches("\\d+(\\.\\d+)?")) return Token.Type.NUMBER;
+        if (token.matches("\\b(show|roi|if|elseif|else|loop|ploop|str|num|bln|arr)\\b")) return Token.Type.KEYWORD;
+        if (token.matches("[=!<>]=?|\\+|-|\\*|/|%|\\^|[():,|\\[\\]]")) return Token.Type.SYMBOL;
+        return Token.Type.IDENTIFIER;
     }
+}
 
-    private Node parseAssignmentWithInput() {
-        Token typeToken = next();
-        expect("(");
-        Token nameToken = next();
-        expect(")");
-        expect("=");
-        Token nextToken = peek();
-
-        if (nextToken.value.equals("roi")) {
-            next();
-            expect("(");
+abstract class Node {
+    // Completion of a statement: NORMAL falls through, BREAK and CONTINUE travel up to the innermost loop.
+    // Errors are not a completion; they are thrown as InterpreterException and located on the way out.
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int CONTINUE = 2;
 
-            StringBuilder promptBuilder = new StringBuilder();
-            while (!peek().value.equals(")")) {
-                promptBuilder.append(next().value);
-                if (!peek().value.equals(")")) promptBuilder.append(" ");
-            }
-            expect(")");
-            if (peek().value.equals("|")) {
-                next();
-            }
+    /** Source line the statement starts on, or 0 when unknown. */
+    public int line;
 
-            String prompt = promptBuilder.toString().trim();
-            return new InputNode(nameToken.value, prompt, typeToken.value);
-        } else {
-            StringBuilder expr = new StringBuilder();
-            while (position < tokens.size() && !peek().value.equals("|") &&
-                !peek().value.matches("show|roi|if|elseif|else|loop|str|num|bln")) {
-                expr.append(next().value).append(" ");
+    /** Runs the statement and returns its completion. */
+    public abstract int execute(Context context);
+
+    public void resolve(SymbolTable symbols) {
+    }
+
+    /**
+     * Runs statements in order until one completes abnormally, and returns that completion. An error is
+     * given the line of the innermost statement it escapes from.
+     */
+    static int executeAll(List<Node> nodes, Context context) {
+        for (int i = 0, n = nodes.size(); i < n; i++) {
+            Node node = nodes.get(i);
+            int completion;
+            try {
+                context.step();
+                completion = node.execute(context);
+            } catch (InterpreterException e) {
+                throw e.at(node.line);
+            }
+            if (completion != NORMAL) {
+                return completion;
             }
-            if (peek().value.equals("|")) next();
-            String expression = expr.toString().trim();
-            return new AssignmentNode(nameToken.value, expression, typeToken.value);
         }
+        return NORMAL;
     }
+}
 
-    private Node parseAssignment() {
-        Token varToken = next();
-        Token opToken = next();
+class SymbolTable {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int caches;
+    private int scopes;
+    private int sites;
 
-        StringBuilder expr = new StringBuilder();
-        while (position < tokens.size() && !peek().value.equals("|") &&
-            !peek().value.matches("show|roi|if|elseif|else|loop|str|num|bln")) {
-            Token token = next();
-            expr.append(token.value).append(" ");
+    public int intern(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(name, slot);
+            names.add(name);
         }
-        if (peek().value.equals("|")) next();
+        return slot;
+    }
 
-        String expression = expr.toString().trim();
-        return new AssignmentNode(varToken.value, expression, /* default or detected type */ null);
+    public int lookup(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
     }
 
-    private Node parseShow() {
-        position++;
-        expect("(");
-        List<String> args = new ArrayList<>();
-        while (!peek().value.equals(")")) {
-            Token token = next();
-            if (!token.value.equals(",")) {
-                args.add(token.value);
-            }
-        }
-        expect(")");
-        if (peek().value.equals("|")) next();
-        return new PrintNode(args);
+    public String name(int slot) {
+        return names.get(slot);
     }
 
-    private Token next() {
-        if (position >= tokens.size()) {
-            return new Token(Token.Type.SYMBOL, "EOF");
-        }
-        return tokens.get(position++);
+    public int size() {
+        return names.size();
     }
 
-    private Token peek() {
-        if (position >= tokens.size()) {
-            return new Token(Token.Type.SYMBOL, "EOF");
-        }
-        return tokens.get(position);
+    /** Reserves a per-context cache entry for a hoisted loop-invariant expression. */
+    public int allocateCache() {
+        return caches++;
     }
 
-    private void expect(String symbol) {
-        Token token = next();
-        if (!token.value.equals(symbol)) {
-            throw new InterpreterException("Expected '" + symbol + "' but got '" + token.value + "'");
-        }
+    /** Reserves an id for a loop whose entries invalidate the caches of its hoisted expressions. */
+    public int allocateScope() {
+        return scopes++;
     }
 
-    private Node parseIf() {
-        List<IfNode.ConditionBlock> blocks = new ArrayList<>();
-        boolean first = true;
+    /** Reserves a per-context slot for the type an untyped assignment settles on when it first runs. */
+    public int allocateSite() {
+        return sites++;
+    }
 
-        while (position < tokens.size()) {
-            String keyword = peek().value;
+    public int sites() {
+        return sites;
+    }
 
-            if (keyword.equals("if") && first) {
-                next();
-                first = false;
-            } else if (keyword.equals("elseif")) {
-                next();
-            } else if (keyword.equals("else")) {
-                next();
-                expect(":");
+    /** A copy that can take new names without touching this table, which every context of a script shares. */
+    public SymbolTable copy() {
+        SymbolTable copy = new SymbolTable();
+        copy.slots.putAll(slots);
+        copy.names.addAll(names);
+        copy.caches = caches;
+        copy.scopes = scopes;
+        copy.sites = sites;
+        return copy;
+    }
+}
 
-                List<Node> elseBody = new ArrayList<>();
-                while (position < tokens.size()
-                        && !peek().value.equals("|")
-                        && !peek().value.equals("elseif")
-                        && !peek().value.equals("else")
-                        && !peek().value.equals("if")) {
-                    Node stmt = parseStatement();
+class Resolver {
+    private final SymbolTable symbols;
+
+    public Resolver() {
+        this(new SymbolTable());
+    }
+
+    public Resolver(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public SymbolTable resolve(List<Node> nodes) {
+        for (Node node : nodes) {
+            node.resolve(symbols);
+        }
+        return symbols;
+    }
+}
+
+class Context {
+    public final SymbolTable symbols;
+    public final OutputSink out;
+    public final InputSource in;
+
+    // Expression registers: Expr.exec leaves its result here and returns the Value tag.
+    public double num;
+    public boolean bln;
+    public String str;
+    public long lng;
+    public NumArray arr;
+
+    private byte[] tags;
+    private double[] nums;
+    private String[] strs;
+    private long[] longs;
+    // A string variable being appended to keeps its text in a builder; strs then holds a snapshot taken on
+    // the first read after the last append, or null until then. Allocated on the first append.
+    private StringBuilder[] builders;
+    // Array variables' values, allocated when the first one is stored.
+    private NumArray[] arrays;
+
+    // Hoisted-expression caches: an entry is valid while the epoch it was stored under is still its loop's
+    // current epoch. Entering a loop starts a new epoch, so values never outlive one run of the loop.
+    private long epoch;
+    private long[] scopeEpochs = new long[0];
+    private long[] cacheEpochs = new long[0];
+    private byte[] cacheTags = new byte[0];
+    private double[] cacheNums = new double[0];
+    private long[] cacheLongs = new long[0];
+    private String[] cacheStrs = new String[0];
+
+    // Types inferred by untyped assignments in this run; kept here so one parsed program can run in many contexts.
+    private byte[] inferred;
+
+    // Set from another thread to end the run; checked at every checkpoint.
+    private volatile String cancelled;
+    // The context a parallel-loop worker was forked from; cancelling it cancels the worker too.
+    private final Context parent;
+
+    // Run limits. Each statement and loop iteration is a step that only decrements budget; when it runs out,
+    // a checkpoint adds the steps to the total (shared with forks), checks cancellation, the step limit and
+    // the deadline, and yields a virtual thread's carrier. Budgets never reach past the step limit.
+    static final int CHECK_INTERVAL = 1024;
+    private static final long YIELD_NANOS = 1_000_000;
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+    private final AtomicLong steps;
+    private int granted = CHECK_INTERVAL;
+    private int budget = CHECK_INTERVAL;
+    private long maxSteps = Long.MAX_VALUE;
+    private long timeLimitMillis;
+    private long deadline;
+    private long lastYield;
+
+    public Context() {
+        this(new SymbolTable());
+    }
+
+    public Context(SymbolTable symbols) {
+        this(symbols, OutputSink.stdout(), InputSource.stdin());
+    }
+
+    public Context(SymbolTable symbols, OutputSink out, InputSource in) {
+        this(symbols, out, in, null);
+    }
+
+    private Context(SymbolTable symbols, OutputSink out, InputSource in, Context parent) {
+        this.symbols = symbols;
+        this.out = out;
+        this.in = in;
+        this.parent = parent;
+        this.steps = parent == null ? new AtomicLong() : parent.steps;
+        int capacity = Math.max(symbols.size(), 8);
+        this.tags = new byte[capacity];
+        this.nums = new double[capacity];
+        this.strs = new String[capacity];
+        this.longs = new long[capacity];
+        this.inferred = new byte[symbols.sites()];
+    }
+
+    /** The type an untyped assignment site has settled on in this run, or NONE before it first runs. */
+    public int inferredType(int site) {
+        return site < inferred.length ? inferred[site] : Value.NONE;
+    }
+
+    public void infer(int site, int type) {
+        if (site >= inferred.length) {
+            inferred = Arrays.copyOf(inferred, Math.max(site + 1, inferred.length * 2));
+        }
+        inferred[site] = (byte) type;
+    }
+
+    /** Asks the run to stop at the next loop iteration with an error carrying {@code reason}. Safe from any thread. */
+    public void cancel(String reason) {
+        cancelled = reason;
+    }
+
+    public void checkCancelled() {
+        String reason = cancelled;
+        if (reason != null) {
+            throw new CancelledException(reason);
+        }
+        if (parent != null) {
+            parent.checkCancelled();
+        }
+    }
+
+    /** Ends the run with a CancelledException once it takes more than {@code maxSteps} steps in total. */
+    public void limitSteps(long maxSteps) {
+        this.maxSteps = maxSteps;
+        checkpoint();
+    }
+
+    /** Ends the run with a CancelledException once {@code millis} have passed from now. */
+    public void limitTime(long millis) {
+        timeLimitMillis = millis;
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /** Statements and loop iterations run so far, counting those of parallel-loop workers that have finished. */
+    public long steps() {
+        return steps.get() + granted - budget;
+    }
+
+    /** Counts one step. */
+    public void step() {
+        if (--budget <= 0) {
+            checkpoint();
+        }
+    }
+
+    /** Counts {@code n} steps at once, for compiled code that charges a whole block together. */
+    public void step(int n) {
+        budget -= n;
+        if (budget <= 0) {
+            checkpoint();
+        }
+    }
+
+    private void checkpoint() {
+        long taken = steps.addAndGet(granted - budget);
+        granted = 0;
+        budget = 0;
+        checkCancelled();
+        if (taken > maxSteps) {
+            throw new CancelledException("Step limit of " + maxSteps + " exceeded");
+        }
+        if (out != null) {
+            // A long stretch without show() must not hold back what was printed before it.
+            out.flushIfDue();
+        }
+        if (deadline != 0 || IS_VIRTUAL != null) {
+            long now = System.nanoTime();
+            if (deadline != 0 && now - deadline > 0) {
+                throw new CancelledException("Time limit of " + timeLimitMillis + " ms exceeded");
+            }
+            if (now - lastYield > YIELD_NANOS && isVirtual()) {
+                // Virtual threads are only descheduled when they block; a loop that never does would keep
+                // its carrier from every other script.
+                lastYield = now;
+                Thread.yield();
+            }
+        }
+        granted = (int) Math.min(CHECK_INTERVAL - 1, maxSteps - taken) + 1;
+        budget = granted;
+    }
+
+    /** Adds the steps counted since the last checkpoint to the total, for a worker that is done. */
+    void flushSteps() {
+        steps.addAndGet(granted - budget);
+        granted = budget;
+    }
+
+    private static boolean isVirtual() {
+        try {
+            return IS_VIRTUAL != null && (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /** Thread.isVirtual, which only exists from Java 21. */
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A context for one worker of a parallel loop, printing to {@code out}: it starts with copies of this
+     * context's variables and inferred types, and nothing it stores is seen here.
+     */
+    public Context fork(OutputSink out) {
+        Context fork = new Context(symbols, out, in, this);
+        int size = tags.length;
+        fork.tags = tags.clone();
+        fork.nums = nums.clone();
+        fork.longs = longs.clone();
+        fork.strs = new String[size];
+        for (int slot = 0; slot < size; slot++) {
+            if (tags[slot] == Value.STR) {
+                fork.strs[slot] = str(slot);
+            }
+        }
+        // Arrays are shared: a parallel loop body only reads the ones it did not declare.
+        fork.arrays = arrays == null ? null : arrays.clone();
+        fork.inferred = inferred.clone();
+        fork.maxSteps = maxSteps;
+        fork.timeLimitMillis = timeLimitMillis;
+        fork.deadline = deadline;
+        // Checkpoint on the first step, which grants a budget within what is left of the limit.
+        fork.granted = 1;
+        fork.budget = 1;
+        return fork;
+    }
+
+    /** The type of a variable's value: NUM for an INT. */
+    public int tag(int slot) {
+        return slot < tags.length ? Value.type(tags[slot]) : Value.NONE;
+    }
+
+    /** A variable's value tag, INT included, without loading it into the registers. */
+    public int valueTag(int slot) {
+        return slot < tags.length ? tags[slot] : Value.NONE;
+    }
+
+    public double num(int slot) {
+        return nums[slot];
+    }
+
+    public long lng(int slot) {
+        return longs[slot];
+    }
+
+    public String str(int slot) {
+        String value = strs[slot];
+        return value != null || builders == null ? value : snapshot(slot);
+    }
+
+    /** Copies a variable into the registers and returns its tag. */
+    public int load(int slot) {
+        if (slot >= tags.length) {
+            return Value.NONE;
+        }
+        int tag = tags[slot];
+        num = nums[slot];
+        bln = num != 0;
+        if (tag == Value.STR) {
+            str = str(slot);
+        } else if (tag == Value.INT) {
+            lng = longs[slot];
+        } else if (tag == Value.ARR) {
+            arr = arrays[slot];
+        }
+        return tag;
+    }
+
+    /**
+     * The text of a string variable, to be extended in place in amortized constant time. The variable reads
+     * as the builder's contents until it is next assigned.
+     */
+    public StringBuilder builder(int slot) {
+        if (builders == null) {
+            builders = new StringBuilder[tags.length];
+        }
+        StringBuilder builder = builders[slot];
+        if (builder == null) {
+            builder = new StringBuilder(Math.max(16, strs[slot].length() * 2)).append(strs[slot]);
+            builders[slot] = builder;
+        }
+        strs[slot] = null;
+        return builder;
+    }
+
+    /** Stores the register holding a value of the given tag into a variable. */
+    public void store(int slot, int tag) {
+        ensureCapacity(slot);
+        tags[slot] = (byte) tag;
+        nums[slot] = tag == Value.BLN ? (bln ? 1 : 0) : num;
+        if (tag == Value.INT) {
+            longs[slot] = lng;
+        }
+        setRef(slot, tag == Value.STR ? str : null);
+        if (tag == Value.ARR) {
+            setArr(slot, arr);
+        }
+    }
+
+    public void setArr(int slot, NumArray value) {
+        ensureCapacity(slot);
+        tags[slot] = Value.ARR;
+        nums[slot] = 0;
+        setRef(slot, null);
+        if (arrays == null) {
+            arrays = new NumArray[tags.length];
+        }
+        arrays[slot] = value;
+    }
+
+    public void setInt(int slot, long value) {
+        ensureCapacity(slot);
+        tags[slot] = Value.INT;
+        nums[slot] = value;
+        longs[slot] = value;
+        setRef(slot, null);
+    }
+
+    public void setNum(int slot, double value) {
+        ensureCapacity(slot);
+        tags[slot] = Value.NUM;
+        nums[slot] = value;
+        setRef(slot, null);
+    }
+
+    public void setBln(int slot, boolean value) {
+        ensureCapacity(slot);
+        tags[slot] = Value.BLN;
+        nums[slot] = value ? 1 : 0;
+        setRef(slot, null);
+    }
+
+    public void setStr(int slot, String value) {
+        ensureCapacity(slot);
+        tags[slot] = Value.STR;
+        nums[slot] = 0;
+        strs[slot] = value;
+        if (builders != null) {
+            builders[slot] = null;
+        }
+        if (arrays != null) {
+            arrays[slot] = null;
+        }
+    }
+
+    public void enterScope(int scope) {
+        if (scope >= scopeEpochs.length) {
+            scopeEpochs = Arrays.copyOf(scopeEpochs, Math.max(scope + 1, scopeEpochs.length * 2));
+        }
+        scopeEpochs[scope] = ++epoch;
+    }
+
+    /** Loads a cached value into the registers and returns its tag, or NONE if it is missing or stale. */
+    public int cached(int slot, int scope) {
+        if (slot >= cacheEpochs.length || cacheEpochs[slot] != scopeEpochs[scope]) {
+            return Value.NONE;
+        }
+        int tag = cacheTags[slot];
+        num = cacheNums[slot];
+        bln = num != 0;
+        if (tag == Value.STR) {
+            str = cacheStrs[slot];
+        } else if (tag == Value.INT) {
+            lng = cacheLongs[slot];
+        }
+        return tag;
+    }
+
+    /** Caches the register holding a value of the given tag for the current run of a loop. */
+    public void cache(int slot, int scope, int tag) {
+        if (slot >= cacheEpochs.length) {
+            int capacity = Math.max(slot + 1, cacheEpochs.length * 2);
+            cacheEpochs = Arrays.copyOf(cacheEpochs, capacity);
+            cacheTags = Arrays.copyOf(cacheTags, capacity);
+            cacheNums = Arrays.copyOf(cacheNums, capacity);
+            cacheLongs = Arrays.copyOf(cacheLongs, capacity);
+            cacheStrs = Arrays.copyOf(cacheStrs, capacity);
+        }
+        cacheEpochs[slot] = scopeEpochs[scope];
+        cacheTags[slot] = (byte) tag;
+        cacheNums[slot] = tag == Value.BLN ? (bln ? 1 : 0) : num;
+        cacheLongs[slot] = lng;
+        cacheStrs[slot] = tag == Value.STR ? str : null;
+    }
+
+    public Object box(int tag) {
+        switch (tag) {
+            case Value.NUM: return num;
+            case Value.INT: return lng;
+            case Value.BLN: return bln;
+            case Value.STR: return str;
+            case Value.ARR: return arr;
+            default: return null;
+        }
+    }
+
+    public Object get(int slot) {
+        return box(load(slot));
+    }
+
+    public void set(int slot, Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            lng = ((Number) value).longValue();
+            num = lng;
+            store(slot, Value.INT);
+        } else if (value instanceof Number) {
+            num = ((Number) value).doubleValue();
+            store(slot, Value.NUM);
+        } else if (value instanceof Boolean) {
+            bln = (Boolean) value;
+            store(slot, Value.BLN);
+        } else if (value instanceof NumArray) {
+            setArr(slot, (NumArray) value);
+        } else if (value instanceof long[]) {
+            setArr(slot, NumArray.of((long[]) value));
+        } else if (value instanceof double[]) {
+            setArr(slot, NumArray.of((double[]) value));
+        } else if (value != null) {
+            str = value.toString();
+            store(slot, Value.STR);
+        } else {
+            store(slot, Value.NONE);
+        }
+    }
+
+    public Object get(String name) {
+        int slot = symbols.lookup(name);
+        return slot < 0 ? null : get(slot);
+    }
+
+    /**
+     * Sets a variable the program names. The symbol table is shared by every run of a script, so a name it
+     * never mentions, which no statement could read anyway, is rejected rather than added.
+     */
+    public void set(String name, Object value) {
+        int slot = symbols.lookup(name);
+        if (slot < 0) {
+            throw new InterpreterException("Unknown variable '" + name + "'");
+        }
+        set(slot, value);
+    }
+
+    public Map<String, Object> variables() {
+        Map<String, Object> variables = new LinkedHashMap<>();
+        for (int slot = 0; slot < symbols.size(); slot++) {
+            Object value = get(slot);
+            if (value != null) {
+                variables.put(symbols.name(slot), value);
+            }
+        }
+        return variables;
+    }
+
+    // Reference stores pay GC barriers, so numeric stores skip clearing a slot that is already empty.
+    private void setRef(int slot, String value) {
+        if (value != null || strs[slot] != null) {
+            strs[slot] = value;
+        }
+        if (builders != null && builders[slot] != null) {
+            builders[slot] = null;
+        }
+        if (arrays != null && arrays[slot] != null) {
+            arrays[slot] = null;
+        }
+    }
+
+    private String snapshot(int slot) {
+        StringBuilder builder = builders[slot];
+        if (builder == null) {
+            return null;
+        }
+        String value = builder.toString();
+        strs[slot] = value;
+        return value;
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot >= tags.length) {
+            int capacity = Math.max(slot + 1, tags.length * 2);
+            tags = Arrays.copyOf(tags, capacity);
+            nums = Arrays.copyOf(nums, capacity);
+            strs = Arrays.copyOf(strs, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+            if (builders != null) {
+                builders = Arrays.copyOf(builders, capacity);
+            }
+            if (arrays != null) {
+                arrays = Arrays.copyOf(arrays, capacity);
+            }
+        }
+    }
+}
+
+/** Type tags for unboxed values; numbers and booleans live in double slots, strings are the only references. */
+final class Value {
+    static final int NONE = 0;
+    static final int NUM = 1;
+    static final int BLN = 2;
+    static final int STR = 3;
+    // A num held exactly as a long: Context.lng has the value and Context.num the same value as a double.
+    // Only values carry it; types, declarations and Context.tag() still say NUM.
+    static final int INT = NUM | 4;
+    // An array of numbers; Context.arr holds the NumArray.
+    static final int ARR = 8;
+
+    // Every integer up to this magnitude is also exactly a double, so an INT in range formats like one.
+    static final long EXACT_DOUBLE = 1L << 53;
+
+    private Value() {
+    }
+
+    /** The type of a value tag: an INT is a NUM. */
+    static int type(int tag) {
+        return tag == INT ? NUM : tag;
+    }
+
+    /** Whether a double is an integer that an INT represents without changing how it prints or compares. */
+    static boolean isExact(double d) {
+        return d == (long) d && Math.abs(d) <= EXACT_DOUBLE && Double.doubleToRawLongBits(d) != Long.MIN_VALUE;
+    }
+
+    static int typeOf(String declaredType) {
+        if (declaredType == null) return NONE;
+        switch (declaredType) {
+            case "num": return NUM;
+            case "bln": return BLN;
+            case "str": return STR;
+            case "arr": return ARR;
+            default: return NONE;
+        }
+    }
+
+    /** The declaration keyword for a tag, or null for NONE. */
+    static String name(int tag) {
+        switch (tag) {
+            case NUM: return "num";
+            case BLN: return "bln";
+            case STR: return "str";
+            case ARR: return "arr";
+            default: return null;
+        }
+    }
+
+    /** Formats the value in the context registers. */
+    static String format(int tag, Context context) {
+        if (tag == ARR) {
+            return context.arr.toString();
+        }
+        return tag == INT ? format(context.lng) : format(tag, context.num, context.bln, context.str);
+    }
+
+    /** An INT as Double.toString formats the equal double, but with every digit of integers past 2^53. */
+    static String format(long value) {
+        if (value >= -EXACT_DOUBLE && value <= EXACT_DOUBLE) {
+            return Double.toString(value);
+        }
+        String digits = Long.toString(value);
+        int start = value < 0 ? 1 : 0;
+        int end = digits.length();
+        while (end > start + 2 && digits.charAt(end - 1) == '0') {
+            end--;
+        }
+        return digits.substring(0, start + 1) + "." + digits.substring(start + 1, end) + "E" + (digits.length() - start - 1);
+    }
+
+    static String format(int tag, double num, boolean bln, String str) {
+        switch (tag) {
+            case NUM:
+            case INT: return Double.toString(num);
+            case BLN: return String.valueOf(bln);
+            case STR: return str;
+            case ARR: return "an array";
+            default: return "null";
+        }
+    }
+
+    static InterpreterException notANumber(int tag, double num, boolean bln, String str) {
+        return new InterpreterException("Expected a number but got: " + format(tag, num, bln, str));
+    }
+}
+
+/**
+ * A growable array of numbers, the value of an arr variable. Elements stay unboxed in a long[] while they
+ * are all exact integers, as INT values are, and move to a double[] for good once one is not. Bulk
+ * operations on doubles run through {@link VectorKernels}.
+ */
+final class NumArray {
+    // Exactly one of these is in use: longs while every element is an INT, nums after that.
+    private long[] longs;
+    private double[] nums;
+    private int size;
+
+    NumArray(int capacity) {
+        this.longs = new long[Math.max(capacity, 4)];
+    }
+
+    static NumArray of(long[] values) {
+        NumArray array = new NumArray(values.length);
+        System.arraycopy(values, 0, array.longs, 0, values.length);
+        array.size = values.length;
+        return array;
+    }
+
+    static NumArray of(double[] values) {
+        NumArray array = new NumArray(0);
+        array.nums = Arrays.copyOf(values, Math.max(values.length, 4));
+        array.longs = null;
+        array.size = values.length;
+        return array;
+    }
+
+    int size() {
+        return size;
+    }
+
+    NumArray copy() {
+        NumArray copy = new NumArray(0);
+        copy.longs = longs == null ? null : Arrays.copyOf(longs, Math.max(size, 4));
+        copy.nums = nums == null ? null : Arrays.copyOf(nums, Math.max(size, 4));
+        copy.size = size;
+        return copy;
+    }
+
+    /** The elements as doubles, copied. */
+    double[] toDoubles() {
+        if (nums != null) {
+            return Arrays.copyOf(nums, size);
+        }
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = longs[i];
+        }
+        return values;
+    }
+
+    /** Checks an index held in the registers with the given tag and returns it as an int. */
+    int index(int tag, Context context) {
+        if (Value.type(tag) != Value.NUM || context.num != Math.floor(context.num)) {
+            throw new ArrayException("Array index must be a whole number");
+        }
+        if (context.num < 0 || context.num >= size) {
+            throw new ArrayException("Index " + Value.format(tag, context) + " is out of bounds for length " + size);
+        }
+        return (int) context.num;
+    }
+
+    /** Loads an element into the registers and returns its tag. */
+    int load(int index, Context context) {
+        if (longs != null) {
+            context.lng = longs[index];
+            context.num = context.lng;
+            return Value.INT;
+        }
+        context.num = nums[index];
+        return Value.NUM;
+    }
+
+    /** Stores the number held in the registers with the given tag. */
+    void set(int index, int tag, Context context) {
+        if (longs != null && tag == Value.INT) {
+            longs[index] = context.lng;
+            return;
+        }
+        widen();
+        nums[index] = context.num;
+    }
+
+    void append(int tag, Context context) {
+        if (longs != null && tag == Value.INT) {
+            if (size == longs.length) {
+                longs = Arrays.copyOf(longs, size * 2);
+            }
+            longs[size++] = context.lng;
+            return;
+        }
+        widen();
+        if (size == nums.length) {
+            nums = Arrays.copyOf(nums, size * 2);
+        }
+        nums[size++] = context.num;
+    }
+
+    void appendAll(NumArray other) {
+        int total = size + other.size;
+        if (longs != null && other.longs != null) {
+            if (total > longs.length) {
+                longs = Arrays.copyOf(longs, Math.max(total, size * 2));
+            }
+            System.arraycopy(other.longs, 0, longs, size, other.size);
+        } else {
+            widen();
+            if (total > nums.length) {
+                nums = Arrays.copyOf(nums, Math.max(total, size * 2));
+            }
+            if (other.nums != null) {
+                System.arraycopy(other.nums, 0, nums, size, other.size);
+            } else {
+                for (int i = 0; i < other.size; i++) {
+                    nums[size + i] = other.longs[i];
+                }
+            }
+        }
+        size = total;
+    }
+
+    private void widen() {
+        if (longs != null) {
+            nums = new double[longs.length];
+            for (int i = 0; i < size; i++) {
+                nums[i] = longs[i];
+            }
+            longs = null;
+        }
+    }
+
+    /** Sums into the registers; integers sum exactly unless the total overflows a long. */
+    int sum(Context context) {
+        if (longs != null) {
+            long total = 0;
+            try {
+                for (int i = 0; i < size; i++) {
+                    total = Math.addExact(total, longs[i]);
+                }
+                context.lng = total;
+                context.num = total;
+                return Value.INT;
+            } catch (ArithmeticException e) {
+                double sum = 0;
+                for (int i = 0; i < size; i++) {
+                    sum += longs[i];
+                }
+                context.num = sum;
+                return Value.NUM;
+            }
+        }
+        context.num = VectorKernels.sum(nums, size);
+        return Value.NUM;
+    }
+
+    /** The smallest or largest element into the registers. */
+    int extreme(boolean max, Context context) {
+        if (size == 0) {
+            throw new ArrayException((max ? "max" : "min") + "() of an empty array");
+        }
+        if (longs != null) {
+            long best = longs[0];
+            for (int i = 1; i < size; i++) {
+                best = max ? Math.max(best, longs[i]) : Math.min(best, longs[i]);
+            }
+            context.lng = best;
+            context.num = best;
+            return Value.INT;
+        }
+        context.num = max ? VectorKernels.max(nums, size) : VectorKernels.min(nums, size);
+        return Value.NUM;
+    }
+
+    /** A new array of every element times the number held in the registers with the given tag. */
+    NumArray scale(int tag, Context context) {
+        if (longs != null && tag == Value.INT) {
+            long factor = context.lng;
+            long[] scaled = new long[size];
+            try {
+                for (int i = 0; i < size; i++) {
+                    scaled[i] = Math.multiplyExact(longs[i], factor);
+                }
+                return of(scaled);
+            } catch (ArithmeticException e) {
+                // Some product needs a double; the whole result becomes one.
+            }
+        }
+        return of(VectorKernels.scale(nums != null ? nums : toDoubles(), size, context.num));
+    }
+
+    /** A new array of the element-wise sums of two arrays of the same length. */
+    NumArray add(NumArray other) {
+        if (other.size != size) {
+            throw new ArrayException("add() needs arrays of the same length, not " + size + " and " + other.size);
+        }
+        if (longs != null && other.longs != null) {
+            long[] sums = new long[size];
+            try {
+                for (int i = 0; i < size; i++) {
+                    sums[i] = Math.addExact(longs[i], other.longs[i]);
+                }
+                return of(sums);
+            } catch (ArithmeticException e) {
+                // As in scale().
+            }
+        }
+        return of(VectorKernels.add(nums != null ? nums : toDoubles(), other.nums != null ? other.nums : other.toDoubles(), size));
+    }
+
+    /** Prints as {@code [1, 2.5, 3]}, each element the way show() prints a number. */
+    void print(OutputSink out) {
+        out.print("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                out.print(", ");
+            }
+            if (longs != null) {
+                out.printLong(longs[i]);
+            } else {
+                out.printNum(nums[i]);
+            }
+        }
+        out.print("]");
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner text = new StringJoiner(", ", "[", "]");
+        for (int i = 0; i < size; i++) {
+            text.add(longs != null ? Value.format(longs[i]) : Double.toString(nums[i]));
+        }
+        return text.toString();
+    }
+
+    /** Parses numbers separated by whitespace or commas, as load() reads a file and roi() a line. */
+    static NumArray parse(CharSequence text, String source) {
+        NumArray array = new NumArray(16);
+        Context scratch = new Context(new SymbolTable(), null, null);
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < length && text.charAt(i) != ',' && !Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            String token = text.subSequence(start, i).toString();
+            try {
+                double value = Double.parseDouble(token);
+                if (Value.isExact(value) && token.indexOf('.') < 0 && token.indexOf('e') < 0 && token.indexOf('E') < 0) {
+                    scratch.lng = Long.parseLong(token);
+                    scratch.num = scratch.lng;
+                    array.append(Value.INT, scratch);
+                } else {
+                    scratch.num = value;
+                    array.append(Value.NUM, scratch);
+                }
+            } catch (NumberFormatException e) {
+                throw new ArrayException("Invalid number '" + token + "' in " + source);
+            }
+        }
+        return array;
+    }
+}
+
+/**
+ * Loops over double[] for NumArray, on jdk.incubator.vector when the JVM runs with
+ * {@code --add-modules jdk.incubator.vector}, and as plain loops otherwise. The API is bound through method
+ * handles so that Main.java compiles without the module; static final handles inline like direct calls.
+ * Vector sums add in lane order, so they can differ from the scalar sum in the last bits.
+ */
+final class VectorKernels {
+    static final boolean ENABLED;
+    private static final Object SPECIES;
+    private static final int LANES;
+    private static final Object ADD_OP, MIN_OP, MAX_OP;
+    private static final MethodHandle FROM_ARRAY, INTO_ARRAY, ADD, MUL, LANEWISE, REDUCE;
+
+    static {
+        Object species = null, add = null, min = null, max = null;
+        MethodHandle fromArray = null, intoArray = null, lanewiseAdd = null, mul = null, lanewise = null, reduce = null;
+        int lanes = 1;
+        boolean enabled = false;
+        try {
+            Class<?> vector = Class.forName("jdk.incubator.vector.DoubleVector");
+            Class<?> anyVector = Class.forName("jdk.incubator.vector.Vector");
+            Class<?> speciesType = Class.forName("jdk.incubator.vector.VectorSpecies");
+            Class<?> operators = Class.forName("jdk.incubator.vector.VectorOperators");
+            Class<?> binary = Class.forName("jdk.incubator.vector.VectorOperators$Binary");
+            Class<?> associative = Class.forName("jdk.incubator.vector.VectorOperators$Associative");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            species = vector.getField("SPECIES_PREFERRED").get(null);
+            lanes = (Integer) speciesType.getMethod("length").invoke(species);
+            add = operators.getField("ADD").get(null);
+            min = operators.getField("MIN").get(null);
+            max = operators.getField("MAX").get(null);
+            fromArray = lookup.findStatic(vector, "fromArray", MethodType.methodType(vector, speciesType, double[].class, int.class))
+                .asType(MethodType.methodType(Object.class, Object.class, double[].class, int.class));
+            intoArray = lookup.findVirtual(vector, "intoArray", MethodType.methodType(void.class, double[].class, int.class))
+                .asType(MethodType.methodType(void.class, Object.class, double[].class, int.class));
+            lanewiseAdd = lookup.findVirtual(vector, "add", MethodType.methodType(vector, anyVector))
+                .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            mul = lookup.findVirtual(vector, "mul", MethodType.methodType(vector, double.class))
+                .asType(MethodType.methodType(Object.class, Object.class, double.class));
+            lanewise = lookup.findVirtual(vector, "lanewise", MethodType.methodType(vector, binary, anyVector))
+                .asType(MethodType.methodType(Object.class, Object.class, Object.class, Object.class));
+            reduce = lookup.findVirtual(vector, "reduceLanes", MethodType.methodType(double.class, associative))
+                .asType(MethodType.methodType(double.class, Object.class, Object.class));
+            enabled = lanes > 1;
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            // The module is not in the boot layer: run the scalar loops.
+        }
+        ENABLED = enabled;
+        SPECIES = species;
+        LANES = lanes;
+        ADD_OP = add;
+        MIN_OP = min;
+        MAX_OP = max;
+        FROM_ARRAY = fromArray;
+        INTO_ARRAY = intoArray;
+        ADD = lanewiseAdd;
+        MUL = mul;
+        LANEWISE = lanewise;
+        REDUCE = reduce;
+    }
+
+    private VectorKernels() {
+    }
+
+    static double sum(double[] a, int n) {
+        double sum = 0;
+        int i = 0;
+        if (ENABLED && n >= LANES) {
+            try {
+                Object total = (Object) FROM_ARRAY.invokeExact(SPECIES, a, 0);
+                for (i = LANES; i <= n - LANES; i += LANES) {
+                    total = (Object) ADD.invokeExact(total, (Object) FROM_ARRAY.invokeExact(SPECIES, a, i));
+                }
+                sum = (double) REDUCE.invokeExact(total, ADD_OP);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        for (; i < n; i++) {
+            sum += a[i];
+        }
+        return sum;
+    }
+
+    /** The smallest of n > 0 elements, with Math.min's treatment of NaN and -0.0. */
+    static double min(double[] a, int n) {
+        return extreme(a, n, false);
+    }
+
+    static double max(double[] a, int n) {
+        return extreme(a, n, true);
+    }
+
+    private static double extreme(double[] a, int n, boolean max) {
+        double best = a[0];
+        int i = 1;
+        if (ENABLED && n >= LANES) {
+            try {
+                // One loop per operator: lanewise only compiles to vector instructions for a constant operator.
+                Object lanes = (Object) FROM_ARRAY.invokeExact(SPECIES, a, 0);
+                if (max) {
+                    for (i = LANES; i <= n - LANES; i += LANES) {
+                        lanes = (Object) LANEWISE.invokeExact(lanes, MAX_OP, (Object) FROM_ARRAY.invokeExact(SPECIES, a, i));
+                    }
+                    best = (double) REDUCE.invokeExact(lanes, MAX_OP);
+                } else {
+                    for (i = LANES; i <= n - LANES; i += LANES) {
+                        lanes = (Object) LANEWISE.invokeExact(lanes, MIN_OP, (Object) FROM_ARRAY.invokeExact(SPECIES, a, i));
+                    }
+                    best = (double) REDUCE.invokeExact(lanes, MIN_OP);
+                }
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        for (; i < n; i++) {
+            best = max ? Math.max(best, a[i]) : Math.min(best, a[i]);
+        }
+        return best;
+    }
+
+    static double[] scale(double[] a, int n, double factor) {
+        double[] out = new double[n];
+        int i = 0;
+        if (ENABLED) {
+            try {
+                for (; i <= n - LANES; i += LANES) {
+                    INTO_ARRAY.invokeExact((Object) MUL.invokeExact((Object) FROM_ARRAY.invokeExact(SPECIES, a, i), factor), out, i);
+                }
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        for (; i < n; i++) {
+            out[i] = a[i] * factor;
+        }
+        return out;
+    }
+
+    static double[] add(double[] a, double[] b, int n) {
+        double[] out = new double[n];
+        int i = 0;
+        if (ENABLED) {
+            try {
+                for (; i <= n - LANES; i += LANES) {
+                    Object x = (Object) FROM_ARRAY.invokeExact(SPECIES, a, i);
+                    Object y = (Object) FROM_ARRAY.invokeExact(SPECIES, b, i);
+                    INTO_ARRAY.invokeExact((Object) ADD.invokeExact(x, y), out, i);
+                }
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        for (; i < n; i++) {
+            out[i] = a[i] + b[i];
+        }
+        return out;
+    }
+}
+
+/**
+ * Destination for show() output. Text is encoded into a reusable buffer and written to the channel in large
+ * batches: when the buffer fills, once output has been pending longer than the flush interval (checked as
+ * lines end and at every step checkpoint), before roi() waits for input, and at program end.
+ */
+class OutputSink implements Closeable {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    static final long DEFAULT_FLUSH_MILLIS = 100;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final Charset charset;
+    private final CharsetEncoder encoder;
+    private final boolean asciiCompatible;
+    private final byte[] lineSeparator;
+    private final byte[] digits = new byte[20];
+    private final long flushNanos;
+    private long pendingSince = -1;
+    // Set from another thread, which must not touch the buffer, to have the writing thread flush.
+    private volatile boolean flushRequested;
+
+    public OutputSink(WritableByteChannel channel, Charset charset, int capacity, long flushMillis) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(Math.max(capacity, 64));
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = isAsciiCompatible(charset);
+        this.lineSeparator = System.lineSeparator().getBytes(charset);
+        this.flushNanos = flushMillis < 0 ? Long.MAX_VALUE : flushMillis * 1_000_000;
+    }
+
+    /** Standard output, encoded the way System.out would encode it. */
+    public static OutputSink stdout() {
+        String encoding = System.getProperty("sun.stdout.encoding");
+        Charset charset = encoding != null && Charset.isSupported(encoding) ? Charset.forName(encoding) : Charset.defaultCharset();
+        return new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel(), charset, DEFAULT_CAPACITY, DEFAULT_FLUSH_MILLIS);
+    }
+
+    public static OutputSink file(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new OutputSink(channel, Charset.defaultCharset(), DEFAULT_CAPACITY, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /** A sink encoding like this one into {@code bytes}, for output to be passed to {@link #write} later. */
+    public OutputSink buffer(ByteArrayOutputStream bytes) {
+        return new OutputSink(Channels.newChannel(bytes), charset, 1 << 12, -1);
+    }
+
+    /** Writes output that a {@link #buffer} of this sink has already encoded. */
+    public void write(byte[] bytes) {
+        for (int at = 0; at < bytes.length; ) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - at);
+            buffer.put(bytes, at, length);
+            at += length;
+        }
+        if (bytes.length > 0) {
+            written();
+        }
+    }
+
+    /** Prints a number the way show() always has: whole values as an int, others as a double. */
+    public void printNum(double d) {
+        if (d == Math.floor(d) && Math.abs(d) < 0x1p63) {
+            printLong((long) d);
+        } else {
+            print(Double.toString(d));
+        }
+    }
+
+    public void printLong(long value) {
+        int at = digits.length;
+        // Digits are taken from the non-positive value, which also covers Long.MIN_VALUE.
+        long v = value < 0 ? value : -value;
+        do {
+            digits[--at] = (byte) ('0' - v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (value < 0) {
+            digits[--at] = '-';
+        }
+        if (buffer.remaining() < digits.length - at) {
+            drain();
+        }
+        buffer.put(digits, at, digits.length - at);
+    }
+
+    public void print(String s) {
+        int length = s.length();
+        if (asciiCompatible) {
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    encode(s, i);
+                    return;
+                }
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                buffer.put((byte) c);
+            }
+        } else {
+            encode(s, 0);
+        }
+    }
+
+    public void endLine() {
+        if (buffer.remaining() < lineSeparator.length) {
+            drain();
+        }
+        buffer.put(lineSeparator);
+        written();
+    }
+
+    // Output is flushed once it has waited flushNanos, checked whenever a line is completed.
+    private void written() {
+        long now = System.nanoTime();
+        if (pendingSince < 0) {
+            pendingSince = now;
+        } else if (now - pendingSince >= flushNanos) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        drain();
+        pendingSince = -1;
+    }
+
+    /** Flushes output that has waited out the flush interval, or that another thread asked to see written. */
+    public void flushIfDue() {
+        if (flushRequested) {
+            flush();
+            flushRequested = false;
+        } else if (pendingSince >= 0 && System.nanoTime() - pendingSince >= flushNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Asks the thread writing to this sink to flush at its next {@link #flushIfDue}, and waits up to
+     * {@code millis} for it. Safe from any thread, e.g. a shutdown hook.
+     */
+    public void requestFlush(long millis) {
+        flushRequested = true;
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        try {
+            while (flushRequested && System.nanoTime() - end < 0) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void encode(String s, int from) {
+        CharBuffer in = CharBuffer.wrap(s, from, s.length());
+        while (encoder.encode(in, buffer, true).isOverflow()) {
+            drain();
+        }
+        encoder.reset();
+    }
+
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        char[] ascii = new char[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (char) i;
+        }
+        byte[] bytes = new String(ascii).getBytes(charset);
+        if (bytes.length != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * Where roi() reads its answers from. Lines follow Scanner.nextLine: the terminator is dropped and reading
+ * past the end fails with "No line found".
+ */
+abstract class InputSource {
+    public abstract String readLine();
+
+    /**
+     * Reads a line as a number into the context's registers and returns its tag: an integer exactly as an INT,
+     * a decimal, or an integer too long for a long, as a double.
+     */
+    public int readNum(Context context) {
+        return parseNum(readLine(), context);
+    }
+
+    static int parseNum(String input, Context context) {
+        if (!input.contains(".")) {
+            try {
+                context.lng = Long.parseLong(input);
+                context.num = context.lng;
+                return Value.INT;
+            } catch (NumberFormatException e) {
+                if (!isInteger(input)) {
+                    throw e;
+                }
+            }
+        }
+        context.num = Double.parseDouble(input);
+        return Value.NUM;
+    }
+
+    private static boolean isInteger(String input) {
+        int from = input.startsWith("-") || input.startsWith("+") ? 1 : 0;
+        if (from == input.length()) {
+            return false;
+        }
+        for (int i = from; i < input.length(); i++) {
+            if (Character.digit(input.charAt(i), 10) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Standard input, prefetched on a background thread when it is not attached to a console. */
+    public static InputSource stdin() {
+        InputStream stream = System.console() == null ? new ReadAheadInputStream(System.in) : System.in;
+        return new StreamInputSource(stream, Charset.defaultCharset());
+    }
+
+    public static InputSource file(Path path) throws IOException {
+        return new StreamInputSource(Files.newInputStream(path), Charset.defaultCharset());
+    }
+
+    public static InputSource of(List<String> lines) {
+        Iterator<String> iterator = lines.iterator();
+        return new InputSource() {
+            @Override
+            public String readLine() {
+                if (!iterator.hasNext()) {
+                    throw new NoSuchElementException("No line found");
+                }
+                return iterator.next();
+            }
+        };
+    }
+}
+
+/**
+ * Line reader over a large byte buffer. Plain numeric answers are parsed straight from the buffer without
+ * building a string; anything unusual falls back to {@link InputSource#parseNum}.
+ */
+class StreamInputSource extends InputSource {
+    private static final int CAPACITY = 1 << 16;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private final InputStream stream;
+    private final Charset charset;
+    private byte[] buf = new byte[CAPACITY];
+    private int pos;
+    private int limit;
+    // Text left over after a Unicode line separator, which Scanner also treats as the end of a line.
+    private String pending;
+    private boolean pendingAtEof;
+
+    public StreamInputSource(InputStream stream, Charset charset) {
+        this.stream = stream;
+        this.charset = charset;
+    }
+
+    @Override
+    public String readLine() {
+        if (pending != null) {
+            String line = pending;
+            pending = null;
+            return splitAtSeparator(line, pendingAtEof);
+        }
+        int end = lineEnd();
+        boolean atEof = end >= limit;
+        if (atEof && end == pos) {
+            throw new NoSuchElementException("No line found");
+        }
+        String line = new String(buf, pos, end - pos, charset);
+        skipLine(end);
+        return splitAtSeparator(line, atEof);
+    }
+
+    @Override
+    public int readNum(Context context) {
+        if (pending == null) {
+            int end = lineEnd();
+            int tag = parseNum(buf, pos, end, context);
+            if (tag != Value.NONE) {
+                skipLine(end);
+                return tag;
+            }
+        }
+        return parseNum(readLine(), context);
+    }
+
+    /** Parses plain integers and short decimals exactly into the registers, or returns NONE for anything else. */
+    private static int parseNum(byte[] buf, int from, int to, Context context) {
+        boolean negative = false;
+        if (from < to && (buf[from] == '-' || buf[from] == '+')) {
+            negative = buf[from] == '-';
+            from++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (int i = from; i < to; i++) {
+            int b = buf[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+            } else if (b == '.' && scale < 0) {
+                scale = to - i - 1;
+            } else {
+                return Value.NONE;
+            }
+        }
+        if (digits == 0) {
+            return Value.NONE;
+        }
+        if (scale < 0) {
+            // Eighteen digits always fit in a long; longer inputs take the checked path.
+            if (digits > 18) {
+                return Value.NONE;
+            }
+            context.lng = negative ? -mantissa : mantissa;
+            context.num = context.lng;
+            return Value.INT;
+        }
+        // Both operands are exact doubles, so the quotient is correctly rounded, as Double.parseDouble is.
+        if (digits > 15) {
+            return Value.NONE;
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        context.num = negative ? -value : value;
+        return Value.NUM;
+    }
+
+    /** Index of the byte ending the current line: '\n', '\r', or the end of input. */
+    private int lineEnd() {
+        for (int ahead = 0; ; ahead++) {
+            if (pos + ahead >= limit && !fill()) {
+                return limit;
+            }
+            byte b = buf[pos + ahead];
+            if (b == '\n' || b == '\r') {
+                return pos + ahead;
+            }
+        }
+    }
+
+    private void skipLine(int end) {
+        pos = end;
+        if (pos < limit && buf[pos++] == '\r' && (pos < limit || fill()) && buf[pos] == '\n') {
+            pos++;
+        }
+    }
+
+    private String splitAtSeparator(String line, boolean atEof) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                String rest = line.substring(i + 1);
+                if (!rest.isEmpty() || !atEof) {
+                    pending = rest;
+                    pendingAtEof = atEof;
+                }
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    private boolean fill() {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        try {
+            int read = stream.read(buf, limit, buf.length - limit);
+            if (read <= 0) {
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+/**
+ * Reads ahead of the interpreter on a daemon thread, so piped input arrives while the script is still running.
+ */
+class ReadAheadInputStream extends InputStream {
+    private static final int CHUNK = 1 << 16;
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(16);
+    private volatile IOException failure;
+    private Thread reader;
+    private byte[] chunk;
+    private int offset;
+
+    public ReadAheadInputStream(InputStream source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (reader == null) {
+            reader = new Thread(this::prefetch, "input-read-ahead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        if (chunk == null || offset == chunk.length) {
+            if (chunk == END) {
+                return -1;
+            }
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            offset = 0;
+            if (chunk == END) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+        }
+        int count = Math.min(len, chunk.length - offset);
+        System.arraycopy(chunk, offset, b, off, count);
+        offset += count;
+        return count;
+    }
+
+    private void prefetch() {
+        try {
+            while (true) {
+                byte[] buffer = new byte[CHUNK];
+                int read = source.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                if (read > 0) {
+                    chunks.put(read == CHUNK ? buffer : Arrays.copyOf(buffer, read));
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            chunks.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
+
+class PrintNode extends Node {
+    public final List<String> args;
+    private final int[] slots;
+
+    public PrintNode(List<String> args) {
+        this.args = args;
+        this.slots = new int[args.size()];
+        Arrays.fill(slots, -1);
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        for (int i = 0; i < slots.length; i++) {
+            if (!args.get(i).startsWith("'")) {
+                slots[i] = symbols.intern(args.get(i));
+            }
+        }
+    }
+
+    public int slot(int index) {
+        return slots[index];
+    }
+
+    /** The text printed for an argument that is not a variable with a value. */
+    public static String literalText(String arg) {
+        if (arg.startsWith("'") && arg.endsWith("'")) {
+            return arg.substring(1, arg.length() - 1);
+        }
+        return arg;
+    }
+
+    @Override
+    public int execute(Context context) {
+        for (int i = 0; i < slots.length; i++) {
+            int tag = slots[i] >= 0 ? context.load(slots[i]) : Value.NONE;
+            if (tag == Value.INT) {
+                printLong(context, context.lng);
+            } else if (tag == Value.NUM) {
+                printNum(context, context.num);
+            } else if (tag == Value.BLN) {
+                printBln(context, context.bln);
+            } else if (tag == Value.STR) {
+                printStr(context, context.str);
+            } else if (tag == Value.ARR) {
+                context.arr.print(context.out);
+            } else {
+                printStr(context, literalText(args.get(i)));
+            }
+        }
+        endLine(context);
+        return NORMAL;
+    }
+
+    static void printNum(Context context, double d) {
+        context.out.printNum(d);
+    }
+
+    static void printLong(Context context, long value) {
+        context.out.printLong(value);
+    }
+
+    static void printBln(Context context, boolean b) {
+        context.out.print(b ? "true" : "false");
+    }
+
+    static void printStr(Context context, String s) {
+        context.out.print(String.valueOf(s));
+    }
+
+    static void endLine(Context context) {
+        context.out.endLine();
+    }
+}
+
+class InputNode extends Node {
+    public final String varName;
+    public final String prompt;
+    public final String type;
+    private int slot = -1;
+
+    public InputNode(String varName, String prompt, String type) {
+        this.varName = varName;
+        this.prompt = prompt;
+        this.type = type;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        slot = symbols.intern(varName);
+    }
+
+    public int slot() {
+        return slot;
+    }
+
+    @Override
+    public int execute(Context context) {
+        switch (type) {
+            case "num":
+                storeNum(context, slot, readNum(context, prompt, varName));
+                break;
+            case "bln":
+                context.setBln(slot, readBln(context, prompt));
+                break;
+            case "arr":
+                context.setArr(slot, NumArray.parse(readStr(context, prompt), "input for '" + varName + "'"));
+                break;
+            default:
+                context.setStr(slot, readStr(context, prompt));
+        }
+        return NORMAL;
+    }
+
+    /** Reads a number into the registers and returns its tag. */
+    static int readNum(Context context, String prompt, String varName) {
+        prompt(context, prompt);
+        try {
+            return context.in.readNum(context);
+        } catch (NumberFormatException e) {
+            throw new InterpreterException("Invalid input for number variable '" + varName + "'");
+        }
+    }
+
+    /** Stores the number readNum left in the registers: an integer, or a decimal a double holds as one exactly, becomes an INT. */
+    static void storeNum(Context context, int slot, int tag) {
+        if (tag == Value.INT) {
+            context.setInt(slot, context.lng);
+        } else if (Value.isExact(context.num)) {
+            context.setInt(slot, (long) context.num);
+        } else {
+            context.setNum(slot, context.num);
+        }
+    }
+
+    static boolean readBln(Context context, String prompt) {
+        return readStr(context, prompt).trim().equalsIgnoreCase("true");
+    }
+
+    static String readStr(Context context, String prompt) {
+        prompt(context, prompt);
+        return context.in.readLine();
+    }
+
+    private static void prompt(Context context, String prompt) {
+        context.out.print(prompt.replace("'", ""));
+        context.out.flush();
+    }
+}
+
+class AssignmentNode extends Node {
+    public final String varName;
+    public final Expr expression;
+    public final int declaredType;
+    // For `s = s + a + b`, the operands appended to s; null for any other assignment.
+    private final List<Expr> suffixes;
+    // For `x = x + k` and `x = x - k` with k a number literal, the amount added; once the site has run, it
+    // updates a number variable in its slot without evaluating the expression. state holds the
+    // specializations it has used, as in BinaryExpr: INTS, NUMBERS, or GENERIC once x held something else.
+    private final boolean increment;
+    private final boolean incrementExact;
+    private final double incrementNum;
+    private final long incrementLng;
+    private int state;
+    private int site = -1;
+    private int slot = -1;
+
+    public AssignmentNode(String varName, Expr expression, String declaredType) {
+        this(varName, expression, Value.typeOf(declaredType));
+    }
+
+    public AssignmentNode(String varName, Expr expression, int declaredType) {
+        this.varName = varName;
+        this.expression = expression;
+        this.declaredType = declaredType;
+        this.suffixes = declaredType == Value.STR || declaredType == Value.NONE ? suffixes(varName, expression) : null;
+        LiteralExpr amount = declaredType == Value.NUM || declaredType == Value.NONE ? increment(varName, expression) : null;
+        boolean negate = amount != null && ((BinaryExpr) expression).op == BinaryExpr.SUB;
+        this.increment = amount != null;
+        this.incrementExact = increment && amount.exact;
+        // x - k is exactly x + -k, in doubles and, short of k = Long.MIN_VALUE, in longs.
+        this.incrementNum = !increment ? 0 : negate ? -amount.num : amount.num;
+        this.incrementLng = !increment ? 0 : negate ? -amount.lng : amount.lng;
+    }
+
+    /** The literal k of {@code varName + k} or {@code varName - k}, or null. */
+    private static LiteralExpr increment(String varName, Expr expression) {
+        if (!(expression instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr binary = (BinaryExpr) expression;
+        if ((binary.op != BinaryExpr.ADD && binary.op != BinaryExpr.SUB)
+                || !(binary.left instanceof VariableExpr) || !((VariableExpr) binary.left).name.equals(varName)
+                || !(binary.right instanceof LiteralExpr)) {
+            return null;
+        }
+        LiteralExpr amount = (LiteralExpr) binary.right;
+        return amount.tag == Value.NUM && amount.lng != Long.MIN_VALUE ? amount : null;
+    }
+
+    /**
+     * The right operands of a left-nested chain of '+' that starts with the variable itself, in order, or null.
+     * When the variable holds a string each '+' is a concatenation, so the chain appends the operands one by one.
+     * Operands that read the variable are excluded: they would see it half-extended.
+     */
+    static List<Expr> suffixes(String varName, Expr expression) {
+        List<Expr> suffixes = new ArrayList<>();
+        Expr head = expression;
+        while (head instanceof BinaryExpr && ((BinaryExpr) head).op == BinaryExpr.ADD) {
+            suffixes.add(((BinaryExpr) head).right);
+            head = ((BinaryExpr) head).left;
+        }
+        if (suffixes.isEmpty() || !(head instanceof VariableExpr) || !((VariableExpr) head).name.equals(varName)) {
+            return null;
+        }
+        Set<String> reads = new HashSet<>();
+        for (Expr suffix : suffixes) {
+            if (!LoopNode.variables(suffix, reads)) {
+                return null;
+            }
+        }
+        if (reads.contains(varName)) {
+            return null;
+        }
+        Collections.reverse(suffixes);
+        return suffixes;
+    }
+
+    public List<Expr> suffixes() {
+        return suffixes;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        slot = symbols.intern(varName);
+        if (declaredType == Value.NONE && site < 0) {
+            site = symbols.allocateSite();
+        }
+        expression.resolve(symbols);
+    }
+
+    public int slot() {
+        return slot;
+    }
+
+    public boolean polymorphic() {
+        return Integer.bitCount(state) > 1;
+    }
+
+    @Override
+    public int execute(Context context) {
+        int state = this.state;
+        if (state != 0 && (state & BinaryExpr.GENERIC) == 0 && increment(context)) {
+            return NORMAL;
+        }
+        return assign(context);
+    }
+
+    /** Adds to a number variable in its slot; false, having done nothing, when the generic path has to. */
+    private boolean increment(Context context) {
+        if (site >= 0 && context.inferredType(site) != Value.NUM) {
+            return false;
+        }
+        int tag = context.valueTag(slot);
+        if (tag == Value.INT && incrementExact) {
+            try {
+                context.setInt(slot, Math.addExact(context.lng(slot), incrementLng));
+                return true;
+            } catch (ArithmeticException e) {
+                return false;
+            }
+        }
+        if (Value.type(tag) == Value.NUM) {
+            if ((state & BinaryExpr.NUMBERS) == 0) {
+                state |= BinaryExpr.NUMBERS;
+            }
+            context.setNum(slot, context.num(slot) + incrementNum);
+            return true;
+        }
+        return false;
+    }
+
+    private int assign(Context context) {
+        if (increment) {
+            int tag = context.valueTag(slot);
+            int kind = tag == Value.INT && incrementExact ? BinaryExpr.INTS
+                : Value.type(tag) == Value.NUM ? BinaryExpr.NUMBERS
+                : BinaryExpr.GENERIC;
+            if ((state & kind) == 0) {
+                state |= kind;
+            }
+        }
+        int declaredType = site < 0 ? this.declaredType : context.inferredType(site);
+        if (suffixes != null && context.tag(slot) == Value.STR && declaredType != Value.NUM && declaredType != Value.BLN) {
+            append(context);
+            if (declaredType == Value.NONE) {
+                context.infer(site, Value.STR);
+            }
+            return NORMAL;
+        }
+        int result;
+
+        if (declaredType == Value.STR) {
+            result = expression.exec(context);
+            if (result == Value.NONE) {
+                throw new InterpreterException("Invalid string assignment to '" + varName + "'");
+            }
+            if (result != Value.STR) {
+                context.str = Value.format(result, context);
+                result = Value.STR;
+            }
+        } else if (declaredType == Value.BLN) {
+            context.bln = ExpressionEvaluator.evaluate(expression, context);
+            result = Value.BLN;
+        } else if (declaredType == Value.NUM) {
+            try {
+                result = expression.exec(context);
+            } catch (ArrayException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new InterpreterException("Invalid number assignment to '" + varName + "'");
+            }
+            if (Value.type(result) != Value.NUM) {
+                throw new InterpreterException("Type mismatch: expected a number for variable '" + varName + "'");
+            }
+        } else {
+            result = expression.exec(context);
+        }
+        if (result == Value.ARR && expression instanceof VariableExpr) {
+            // Arrays are values like any other: assigning one copies it.
+            context.arr = context.arr.copy();
+        }
+
+        if (declaredType == Value.NONE) {
+            declaredType = result == Value.STR || result == Value.BLN || result == Value.ARR ? result : Value.NUM;
+            context.infer(site, declaredType);
+        }
+        store(context, slot, varName, declaredType, result);
+        return NORMAL;
+    }
+
+    /** Extends the string variable in place; on an error it is left as it was. */
+    private void append(Context context) {
+        StringBuilder text = context.builder(slot);
+        int length = text.length();
+        try {
+            for (Expr suffix : suffixes) {
+                int tag = suffix.exec(context);
+                if (tag == Value.ARR) {
+                    // As BinaryExpr.apply() would for the '+' this operand stands for.
+                    throw new InterpreterException("An array cannot be an operand of '+'");
+                }
+                text.append(Value.format(tag, context));
+            }
+        } catch (RuntimeException e) {
+            text.setLength(length);
+            throw e;
+        }
+    }
+
+    /** Checks the value in the registers against the variable's type and stores it. */
+    static void store(Context context, int slot, String varName, int declaredType, int result) {
+        int existing = context.tag(slot);
+        if (existing != Value.NONE) {
+            if (declaredType == Value.NUM && existing != Value.NUM) {
+                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not a number");
+            }
+            if (declaredType == Value.STR && existing != Value.STR) {
+                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not a string");
+            }
+            if (declaredType == Value.BLN && existing != Value.BLN) {
+                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not a boolean");
+            }
+            if (declaredType == Value.ARR && existing != Value.ARR) {
+                throw new InterpreterException("Type mismatch: '" + varName + "' was previously not an array");
+            }
+        }
+
+        if (declaredType == Value.NUM && Value.type(result) != Value.NUM) {
+            throw new InterpreterException("Type mismatch: expected num for '" + varName + "'");
+        }
+        if (declaredType == Value.STR && result != Value.STR) {
+            throw new InterpreterException("Type mismatch: expected str for '" + varName + "'");
+        }
+        if (declaredType == Value.BLN && result != Value.BLN) {
+            throw new InterpreterException("Type mismatch: expected bln for '" + varName + "'");
+        }
+        if (declaredType == Value.ARR && result != Value.ARR) {
+            throw new InterpreterException("Type mismatch: expected arr for '" + varName + "'");
+        }
+        context.store(slot, result);
+    }
+}
+
+/** {@code xs[i] = value}: replaces an element of an array variable. */
+class ElementAssignmentNode extends Node {
+    public final String varName;
+    public final Expr index;
+    public final Expr value;
+    private int slot = -1;
+
+    public ElementAssignmentNode(String varName, Expr index, Expr value) {
+        this.varName = varName;
+        this.index = index;
+        this.value = value;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        slot = symbols.intern(varName);
+        index.resolve(symbols);
+        value.resolve(symbols);
+    }
+
+    @Override
+    public int execute(Context context) {
+        NumArray array = AppendNode.array(context, slot, varName);
+        int at = array.index(index.exec(context), context);
+        int tag = value.exec(context);
+        if (Value.type(tag) != Value.NUM) {
+            throw new InterpreterException("Type mismatch: elements of '" + varName + "' are numbers");
+        }
+        array.set(at, tag, context);
+        return NORMAL;
+    }
+}
+
+/** {@code append(xs, value)}: adds a number, or every element of another array, to the end of an array variable. */
+class AppendNode extends Node {
+    public final String varName;
+    public final Expr value;
+    private int slot = -1;
+
+    public AppendNode(String varName, Expr value) {
+        this.varName = varName;
+        this.value = value;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        slot = symbols.intern(varName);
+        value.resolve(symbols);
+    }
+
+    @Override
+    public int execute(Context context) {
+        NumArray array = array(context, slot, varName);
+        int tag = value.exec(context);
+        if (tag == Value.ARR) {
+            array.appendAll(context.arr == array ? array.copy() : context.arr);
+        } else if (Value.type(tag) == Value.NUM) {
+            array.append(tag, context);
+        } else {
+            throw new InterpreterException("Type mismatch: elements of '" + varName + "' are numbers");
+        }
+        return NORMAL;
+    }
+
+    static NumArray array(Context context, int slot, String varName) {
+        if (context.load(slot) != Value.ARR) {
+            throw new InterpreterException("'" + varName + "' is not an array");
+        }
+        return context.arr;
+    }
+}
+
+class IfNode extends Node {
+    public final List<ConditionBlock> blocks;
+
+    public IfNode(List<ConditionBlock> blocks) {
+        this.blocks = blocks;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        for (ConditionBlock block : blocks) {
+            if (block.condition != null) {
+                block.condition.resolve(symbols);
+            }
+            for (Node node : block.body) {
+                node.resolve(symbols);
+            }
+        }
+    }
+
+    @Override
+    public int execute(Context context) {
+        for (ConditionBlock block : blocks) {
+            boolean matched = block.condition == null || ExpressionEvaluator.evaluate(block.condition, context);
+            if (matched) {
+                return executeAll(block.body, context);
+            }
+        }
+        return NORMAL;
+    }
+
+    public static class ConditionBlock {
+        public final Expr condition;
+        public final List<Node> body;
+
+        public ConditionBlock(Expr condition, List<Node> body) {
+            this.condition = condition;
+            this.body = body;
+        }
+    }
+}
+
+class LoopNode extends Node {
+    public final Expr condition;
+    public final List<Node> body;
+    public final HoistScope hoistScope;
+
+    // Counted-loop shape found by resolve(): loop(i op limit) whose body ends with i = i + step and
+    // otherwise never writes i or the limit's variables. counter is -1 when the loop has another shape.
+    private int counter = -1;
+    private int compareOp;
+    private Expr limit;
+    private List<Node> prefix;
+    // The step as a double, and for an integer literal also exactly, as the INT the update adds.
+    private double step;
+    private boolean stepExact;
+    private long stepLng;
+    private boolean observed;
+
+    public LoopNode(Expr condition, List<Node> body) {
+        this(condition, body, null);
+    }
+
+    public LoopNode(Expr condition, List<Node> body, HoistScope hoistScope) {
+        this.condition = condition;
+        this.body = body;
+        this.hoistScope = hoistScope;
+    }
+
+    /** Identifies one loop to the hoisted expressions whose values stay valid for a run of it. */
+    static final class HoistScope {
+        int id = -1;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        if (hoistScope != null && hoistScope.id < 0) {
+            hoistScope.id = symbols.allocateScope();
+        }
+        condition.resolve(symbols);
+        for (Node node : body) {
+            node.resolve(symbols);
+        }
+        findCounter();
+    }
+
+    private void findCounter() {
+        counter = -1;
+        if (!(condition instanceof BinaryExpr) || body.isEmpty()) {
+            return;
+        }
+        BinaryExpr test = (BinaryExpr) condition;
+        if (test.op < BinaryExpr.GT || test.op > BinaryExpr.NE || !(test.left instanceof VariableExpr)) {
+            return;
+        }
+        VariableExpr variable = (VariableExpr) test.left;
+        Node last = body.get(body.size() - 1);
+        if (!(last instanceof AssignmentNode)) {
+            return;
+        }
+        AssignmentNode update = (AssignmentNode) last;
+        if (!update.varName.equals(variable.name)
+                || (update.declaredType != Value.NONE && update.declaredType != Value.NUM)) {
+            return;
+        }
+        LiteralExpr increment = increment(update.expression, variable.name);
+        boolean negate = increment != null && ((BinaryExpr) update.expression).op == BinaryExpr.SUB;
+        Set<String> limitReads = new HashSet<>();
+        Set<String> bodyReads = new HashSet<>();
+        Set<String> bodyWrites = new HashSet<>();
+        if (increment == null
+                || (negate && increment.exact && increment.lng == Long.MIN_VALUE)
+                || !variables(test.right, limitReads)
+                || !variables(body.subList(0, body.size() - 1), bodyReads, bodyWrites)
+                || bodyWrites.contains(variable.name)
+                || limitReads.contains(variable.name)
+                || !Collections.disjoint(limitReads, bodyWrites)) {
+            return;
+        }
+        counter = variable.slot();
+        compareOp = test.op;
+        limit = test.right;
+        prefix = body.subList(0, body.size() - 1);
+        step = negate ? -increment.num : increment.num;
+        stepExact = increment.exact;
+        stepLng = negate ? -increment.lng : increment.lng;
+        observed = bodyReads.contains(variable.name);
+    }
+
+    /** The number literal k of {@code i + k}, {@code k + i} or {@code i - k}, else null. */
+    private static LiteralExpr increment(Expr expr, String name) {
+        if (!(expr instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr binary = (BinaryExpr) expr;
+        if ((binary.op == BinaryExpr.ADD || binary.op == BinaryExpr.SUB) && isVariable(binary.left, name)
+                && isNumber(binary.right)) {
+            return (LiteralExpr) binary.right;
+        }
+        if (binary.op == BinaryExpr.ADD && isNumber(binary.left) && isVariable(binary.right, name)) {
+            return (LiteralExpr) binary.left;
+        }
+        return null;
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof VariableExpr && ((VariableExpr) expr).name.equals(name);
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof LiteralExpr && ((LiteralExpr) expr).tag == Value.NUM;
+    }
+
+    /**
+     * Collects the variables statements read and write, including in nested blocks. Returns false if a
+     * statement or expression is of a kind the analysis does not know, in which case the sets are incomplete.
+     */
+    static boolean variables(List<Node> nodes, Set<String> reads, Set<String> writes) {
+        for (Node node : nodes) {
+            if (node instanceof AssignmentNode) {
+                AssignmentNode assignment = (AssignmentNode) node;
+                writes.add(assignment.varName);
+                if (!variables(assignment.expression, reads)) {
+                    return false;
+                }
+            } else if (node instanceof InputNode) {
+                writes.add(((InputNode) node).varName);
+            } else if (node instanceof ElementAssignmentNode) {
+                ElementAssignmentNode assignment = (ElementAssignmentNode) node;
+                writes.add(assignment.varName);
+                reads.add(assignment.varName);
+                if (!variables(assignment.index, reads) || !variables(assignment.value, reads)) {
+                    return false;
+                }
+            } else if (node instanceof AppendNode) {
+                AppendNode append = (AppendNode) node;
+                writes.add(append.varName);
+                reads.add(append.varName);
+                if (!variables(append.value, reads)) {
+                    return false;
+                }
+            } else if (node instanceof PrintNode) {
+                for (String arg : ((PrintNode) node).args) {
+                    if (!arg.startsWith("'")) {
+                        reads.add(arg);
+                    }
+                }
+            } else if (node instanceof LoopNode) {
+                LoopNode loop = (LoopNode) node;
+                if (!variables(loop.condition, reads) || !variables(loop.body, reads, writes)) {
+                    return false;
+                }
+            } else if (node instanceof ParallelLoopNode) {
+                // Only the reductions are written where the loop runs; the body's other writes stay in its workers.
+                ParallelLoopNode loop = (ParallelLoopNode) node;
+                if (!variables(loop.from, reads) || !variables(loop.to, reads)
+                        || !variables(loop.body, reads, new HashSet<>())) {
+                    return false;
+                }
+                for (ParallelLoopNode.Reduction reduction : loop.reductions) {
+                    writes.add(reduction.name);
+                }
+            } else if (node instanceof IfNode) {
+                for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                    if ((block.condition != null && !variables(block.condition, reads))
+                            || !variables(block.body, reads, writes)) {
+                        return false;
+                    }
+                }
+            } else if (!(node instanceof StopNode) && !(node instanceof ContinueNode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean variables(Expr expr, Set<String> reads) {
+        if (expr instanceof VariableExpr) {
+            reads.add(((VariableExpr) expr).name);
+            return true;
+        }
+        if (expr instanceof UnaryExpr) {
+            return variables(((UnaryExpr) expr).operand, reads);
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            return variables(binary.left, reads) && variables(binary.right, reads);
+        }
+        if (expr instanceof HoistedExpr) {
+            return variables(((HoistedExpr) expr).target, reads);
+        }
+        if (expr instanceof IndexExpr) {
+            return variables(((IndexExpr) expr).array, reads) && variables(((IndexExpr) expr).index, reads);
+        }
+        if (expr instanceof CallExpr || expr instanceof ArrayExpr) {
+            for (Expr part : expr instanceof CallExpr ? ((CallExpr) expr).args : ((ArrayExpr) expr).elements) {
+                if (!variables(part, reads)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (expr instanceof MalformedExpr) {
+            for (Expr part : ((MalformedExpr) expr).parts) {
+                if (!variables(part, reads)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return expr instanceof LiteralExpr || expr instanceof FailExpr;
+    }
+
+    @Override
+    public int execute(Context context) {
+        if (hoistScope != null) {
+            context.enterScope(hoistScope.id);
+        }
+        if (counter >= 0 && executeCounted(context)) {
+            return NORMAL;
+        }
+        while (ExpressionEvaluator.evaluate(condition, context)) {
+            if (executeAll(body, context) == BREAK) {
+                break;
+            }
+            context.step();
+        }
+        return NORMAL;
+    }
+
+    /**
+     * Runs a counted loop with the counter in a local, storing it back every iteration only if the body
+     * reads it. Returns false when the rest of the loop has to run on the generic path: when the counter or
+     * limit is not a number on entry, or an INT counter meets a decimal limit (having run nothing), or when an
+     * exact counter would overflow.
+     * continue skips the update, exactly as it skips the last statement of any other loop.
+     */
+    private boolean executeCounted(Context context) {
+        int start = context.load(counter);
+        if (Value.type(start) != Value.NUM) {
+            return false;
+        }
+        long from = context.lng;
+        double i = context.num;
+        int end = limit.exec(context);
+        if (Value.type(end) != Value.NUM) {
+            return false;
+        }
+        if (start == Value.INT && stepExact) {
+            // An INT counter stays exact; against a decimal limit it is left to the generic path.
+            return end == Value.INT && executeCounted(context, from, context.lng, stepLng);
+        }
+        double bound = context.num;
+        try {
+            while (ExpressionEvaluator.compare(compareOp, i, bound)) {
+                int completion = executeAll(prefix, context);
+                if (completion == BREAK) {
+                    break;
+                }
+                // The iteration, and the counter update folded out of the body unless it was skipped.
+                context.step(completion == CONTINUE ? 1 : 2);
+                if (completion == CONTINUE) {
+                    continue;
+                }
+                i += step;
+                if (observed) {
+                    context.setNum(counter, i);
+                }
+            }
+        } finally {
+            context.setNum(counter, i);
+        }
+        return true;
+    }
+
+    private boolean executeCounted(Context context, long i, long bound, long by) {
+        boolean overflow = false;
+        try {
+            while (ExpressionEvaluator.compare(compareOp, i, bound)) {
+                int completion = executeAll(prefix, context);
+                if (completion == BREAK) {
+                    break;
+                }
+                context.step(completion == CONTINUE ? 1 : 2);
+                if (completion == CONTINUE) {
+                    continue;
+                }
+                try {
+                    i = Math.addExact(i, by);
+                } catch (ArithmeticException e) {
+                    overflow = true;
+                    break;
+                }
+                if (observed) {
+                    context.setInt(counter, i);
+                }
+            }
+        } finally {
+            context.setInt(counter, i);
+        }
+        if (overflow) {
+            context.setNum(counter, (double) i + by);
+            return false;
+        }
+        return true;
+    }
+}
+
+class StopNode extends Node {
+    @Override
+    public int execute(Context context) {
+        return BREAK;
+    }
+}
+
+class ContinueNode extends Node {
+    @Override
+    public int execute(Context context) {
+        return CONTINUE;
+    }
+}
+
+/**
+ * ploop(i, from, to) reduce(total +, best max): runs the body for each i from {@code from} up to, not including,
+ * {@code to}, in chunks spread over the common fork-join pool. Each chunk runs on its own copy of the
+ * variables, so the body may read anything but writes only what it declares itself and its reductions. A
+ * reduction starts every chunk at its operator's identity and the chunk results are folded into the variable
+ * in iteration order; show output is held back per chunk and printed in iteration order too. Bodies that would
+ * let one iteration see another are rejected when the loop is built.
+ */
+class ParallelLoopNode extends Node {
+    static final List<String> OPERATORS = List.of("+", "*", "min", "max", "and", "or");
+    /** At most this many chunks, however many workers the pool has, so a reduction groups its results the same way on every machine. */
+    private static final int CHUNKS = 64;
+
+    public final String counterName;
+    public final Expr from;
+    public final Expr to;
+    public final List<Reduction> reductions;
+    public final List<Node> body;
+    private int counter = -1;
+    private final int[] slots;
+
+    static final class Reduction {
+        public final String name;
+        public final String op;
+
+        Reduction(String name, String op) {
+            this.name = name;
+            this.op = op;
+        }
+    }
+
+    public ParallelLoopNode(String counterName, Expr from, Expr to, List<Reduction> reductions, List<Node> body) {
+        this.counterName = counterName;
+        this.from = from;
+        this.to = to;
+        this.reductions = reductions;
+        this.body = body;
+        this.slots = new int[reductions.size()];
+        Set<String> names = new HashSet<>();
+        for (Reduction reduction : reductions) {
+            if (reduction.name.equals(counterName) || !names.add(reduction.name)) {
+                throw new InterpreterException("'" + reduction.name + "' cannot be reduced more than once or be the counter");
+            }
+        }
+        Set<String> assigned = new HashSet<>();
+        if (!LoopNode.variables(body, new HashSet<>(), assigned)) {
+            throw new InterpreterException("ploop body contains a statement that cannot run in parallel");
+        }
+        check(body, new HashSet<>(), false, assigned);
+    }
+
+    private Reduction reduction(String name) {
+        for (Reduction reduction : reductions) {
+            if (reduction.name.equals(name)) {
+                return reduction;
+            }
+        }
+        return null;
+    }
+
+    /** Rejects statements whose effect would depend on other iterations; {@code declared} grows as the body does. */
+    private void check(List<Node> nodes, Set<String> declared, boolean nested, Set<String> assigned) {
+        for (Node node : nodes) {
+            try {
+                check(node, declared, nested, assigned);
+            } catch (InterpreterException e) {
+                throw e.at(node.line);
+            }
+        }
+    }
+
+    private void check(Node node, Set<String> declared, boolean nested, Set<String> assigned) {
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            Reduction reduction = reduction(assignment.varName);
+            if (reduction != null) {
+                checkUpdate(reduction, assignment, declared, assigned);
+                return;
+            }
+            checkReads(assignment.expression, declared, assigned, false);
+            if (assignment.varName.equals(counterName)) {
+                throw new InterpreterException("ploop body assigns its counter '" + counterName + "'");
+            }
+            if (assignment.declaredType != Value.NONE) {
+                declared.add(assignment.varName);
+            } else if (!declared.contains(assignment.varName)) {
+                throw new InterpreterException("ploop body assigns shared variable '" + assignment.varName
+                    + "'; declare it in the body or reduce it");
+            }
+        } else if (node instanceof ElementAssignmentNode || node instanceof AppendNode) {
+            String name;
+            if (node instanceof ElementAssignmentNode) {
+                ElementAssignmentNode assignment = (ElementAssignmentNode) node;
+                name = assignment.varName;
+                checkReads(assignment.index, declared, assigned, false);
+                checkReads(assignment.value, declared, assigned, false);
+            } else {
+                name = ((AppendNode) node).varName;
+                checkReads(((AppendNode) node).value, declared, assigned, false);
+            }
+            if (!declared.contains(name)) {
+                throw new InterpreterException("ploop body changes shared array '" + name + "'; declare it in the body");
+            }
+        } else if (node instanceof InputNode) {
+            throw new InterpreterException("roi() cannot run inside a ploop");
+        } else if (node instanceof PrintNode) {
+            for (String arg : ((PrintNode) node).args) {
+                if (!arg.startsWith("'")) {
+                    checkRead(arg, declared, assigned, false);
+                }
+            }
+        } else if (node instanceof IfNode) {
+            // Declarations made by every branch of an if with an else are made by the if.
+            Set<String> common = null;
+            boolean exhaustive = false;
+            for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                if (block.condition != null) {
+                    checkReads(block.condition, declared, assigned, true);
+                } else {
+                    exhaustive = true;
+                }
+                Set<String> inner = new HashSet<>(declared);
+                check(block.body, inner, nested, assigned);
+                if (common == null) {
+                    common = inner;
+                } else {
+                    common.retainAll(inner);
+                }
+            }
+            if (exhaustive && common != null) {
+                declared.addAll(common);
+            }
+        } else if (node instanceof LoopNode) {
+            LoopNode loop = (LoopNode) node;
+            checkReads(loop.condition, declared, assigned, true);
+            check(loop.body, new HashSet<>(declared), true, assigned);
+        } else if (node instanceof StopNode && !nested) {
+            throw new InterpreterException("'stop' cannot end a ploop; its iterations do not run in order");
+        } else if (node instanceof ParallelLoopNode) {
+            throw new InterpreterException("ploop cannot be nested in another ploop");
+        }
+    }
+
+    /**
+     * Sums and products may only be extended, as {@code total = total + a + b}, and and/or may only be set to
+     * the value that decides them. Minimum and maximum are assigned any value that does not read them.
+     */
+    private void checkUpdate(Reduction reduction, AssignmentNode assignment, Set<String> declared, Set<String> assigned) {
+        String name = reduction.name;
+        if (assignment.declaredType != Value.NONE) {
+            throw new InterpreterException("Reduction variable '" + name + "' cannot be declared in the ploop body");
+        }
+        List<Expr> operands = new ArrayList<>();
+        switch (reduction.op) {
+            case "+":
+            case "*": {
+                int op = BinaryExpr.opcode(reduction.op);
+                Expr head = assignment.expression;
+                while (head instanceof BinaryExpr && ((BinaryExpr) head).op == op) {
+                    operands.add(((BinaryExpr) head).right);
+                    head = ((BinaryExpr) head).left;
+                }
+                if (operands.isEmpty() || !(head instanceof VariableExpr) || !((VariableExpr) head).name.equals(name)) {
+                    throw new InterpreterException("Reduction variable '" + name + "' can only be updated as "
+                        + name + " = " + name + " " + reduction.op + " <expression>");
+                }
+                break;
+            }
+            case "and":
+            case "or": {
+                boolean decisive = reduction.op.equals("or");
+                Expr value = assignment.expression;
+                if (!(value instanceof LiteralExpr) || ((LiteralExpr) value).tag != Value.BLN
+                        || ((LiteralExpr) value).bln != decisive) {
+                    throw new InterpreterException("Reduction variable '" + name + "' can only be updated as "
+                        + name + " = " + decisive);
+                }
+                break;
+            }
+            default:
+                operands.add(assignment.expression);
+        }
+        for (Expr operand : operands) {
+            checkReads(operand, declared, assigned, false);
+        }
+    }
+
+    private void checkReads(Expr expr, Set<String> declared, Set<String> assigned, boolean condition) {
+        Set<String> reads = new HashSet<>();
+        LoopNode.variables(expr, reads);
+        for (String name : reads) {
+            checkRead(name, declared, assigned, condition);
+        }
+    }
+
+    /** A chunk sees only its own partial reductions, which conditions may compare against only for min and max. */
+    private void checkRead(String name, Set<String> declared, Set<String> assigned, boolean condition) {
+        Reduction reduction = reduction(name);
+        if (reduction != null) {
+            if (!condition || !(reduction.op.equals("min") || reduction.op.equals("max"))) {
+                throw new InterpreterException("ploop body reads reduction variable '" + name
+                    + "', which holds only part of the result");
+            }
+        } else if (assigned.contains(name) && !declared.contains(name) && !name.equals(counterName)) {
+            throw new InterpreterException("ploop body reads '" + name + "' before the iteration declares it");
+        }
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        counter = symbols.intern(counterName);
+        from.resolve(symbols);
+        to.resolve(symbols);
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = symbols.intern(reductions.get(i).name);
+        }
+        for (Node node : body) {
+            node.resolve(symbols);
+        }
+    }
+
+    @Override
+    public int execute(Context context) {
+        int low = from.exec(context);
+        boolean exact = low == Value.INT;
+        long first = context.lng;
+        double start = context.num;
+        int high = to.exec(context);
+        if (Value.type(low) != Value.NUM || Value.type(high) != Value.NUM) {
+            throw new InterpreterException("ploop bounds must be numbers");
+        }
+        long count;
+        if (exact && high == Value.INT) {
+            try {
+                count = Math.subtractExact(context.lng, first);
+            } catch (ArithmeticException e) {
+                throw new InterpreterException("ploop range is too large");
+            }
+        } else {
+            double span = Math.ceil(context.num - start);
+            count = span > 0 ? (long) span : 0;
+        }
+        if (count <= 0) {
+            return NORMAL;
+        }
+        Object[] identities = new Object[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            identities[i] = identity(context, i);
+        }
+
+        int chunks = (int) Math.min(count, CHUNKS);
+        List<Chunk> work = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            long begin = count / chunks * c + Math.min(c, count % chunks);
+            long end = count / chunks * (c + 1) + Math.min(c + 1, count % chunks);
+            Chunk chunk = new Chunk(context, exact, first, start, begin, end);
+            for (int i = 0; i < slots.length; i++) {
+                chunk.context.set(slots[i], identities[i]);
+            }
+            work.add(chunk);
+        }
+        ForkJoinPool.commonPool().invokeAll(work);
+
+        // A failed chunk still contributes what it did before failing, as the iterations before it would have.
+        for (Chunk chunk : work) {
+            context.out.write(chunk.output.toByteArray());
+            for (int i = 0; i < slots.length; i++) {
+                combine(context, i, chunk.context);
+            }
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+        }
+        return NORMAL;
+    }
+
+    private Object identity(Context context, int index) {
+        Reduction reduction = reductions.get(index);
+        int type = Value.type(context.load(slots[index]));
+        switch (reduction.op) {
+            case "+":
+                if (type == Value.STR) {
+                    return "";
+                }
+                if (type == Value.NUM) {
+                    return 0L;
+                }
+                break;
+            case "*":
+                if (type == Value.NUM) {
+                    return 1L;
+                }
+                break;
+            case "min":
+            case "max":
+                if (type == Value.NUM) {
+                    return reduction.op.equals("min") ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+                }
+                break;
+            default:
+                if (type == Value.BLN) {
+                    return reduction.op.equals("and");
+                }
+        }
+        throw new InterpreterException("Cannot reduce '" + reduction.name + "' with " + reduction.op + ": "
+            + (type == Value.NONE ? "it is not defined" : "it is a " + Value.name(type)));
+    }
+
+    /** Folds a chunk's partial result for one reduction into the variable. */
+    private void combine(Context context, int index, Context partial) {
+        int slot = slots[index];
+        String op = reductions.get(index).op;
+        int tag = partial.load(slot);
+        if (tag == Value.STR) {
+            context.builder(slot).append(partial.str);
+            return;
+        }
+        if (tag == Value.BLN) {
+            boolean value = partial.bln;
+            context.load(slot);
+            context.setBln(slot, op.equals("and") ? context.bln && value : context.bln || value);
+            return;
+        }
+        Expr value = new LiteralExpr(partial.box(tag));
+        Expr current = new LiteralExpr(context.get(slot));
+        switch (op) {
+            case "min":
+            case "max":
+                new BinaryExpr(op.equals("min") ? "<" : ">", value, current).exec(context);
+                if (context.bln) {
+                    context.store(slot, value.exec(context));
+                }
+                break;
+            default:
+                context.store(slot, new BinaryExpr(op, current, value).exec(context));
+        }
+    }
+
+    /** A run of consecutive iterations on a forked context, with its output held until it is its turn. */
+    private final class Chunk implements Callable<Void> {
+        final Context context;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final boolean exact;
+        private final long first;
+        private final double start;
+        private final long begin;
+        private final long end;
+        RuntimeException error;
+
+        Chunk(Context parent, boolean exact, long first, double start, long begin, long end) {
+            this.context = parent.fork(parent.out.buffer(output));
+            this.exact = exact;
+            this.first = first;
+            this.start = start;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() {
+            try {
+                for (long k = begin; k < end; k++) {
+                    if (exact) {
+                        context.setInt(counter, first + k);
+                    } else {
+                        context.setNum(counter, start + k);
+                    }
+                    executeAll(body, context);
+                    context.step();
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                context.flushSteps();
+                context.out.flush();
+            }
+            return null;
+        }
+    }
+}
+
+/**
+ * Recursive-descent parser over a {@link TokenBuffer}. It dispatches on interned symbol ids and hands each
+ * expression to {@link ExpressionEvaluator} as a list of tokens, so it never rebuilds or re-scans text.
+ */
+class Parser {
+    private final TokenBuffer tokens;
+    private final TokenStream source;
+    private int position = 0;
+    private int loopDepth;
+
+    public Parser(List<Token> tokens) {
+        this(TokenBuffer.of(tokens));
+    }
+
+    public Parser(TokenBuffer tokens) {
+        this.tokens = tokens;
+        this.source = null;
+    }
+
+    /** Pulls tokens from the stream only as far as the statement being parsed needs. */
+    public Parser(TokenStream source) {
+        this.tokens = new TokenBuffer();
+        this.source = source;
+    }
+
+    public List<Node> parse() {
+        List<Node> nodes = new ArrayList<>();
+        Node node;
+        while ((node = parseNext()) != null) {
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    /** Parses the next top-level statement, or returns null when the tokens run out. */
+    public Node parseNext() {
+        if (source != null) {
+            tokens.discard(position);
+            position = 0;
+        }
+        while (available(0)) {
+            int start = position;
+            switch (tokens.symbol(start)) {
+                case TokenBuffer.STR:
+                case TokenBuffer.NUM:
+                case TokenBuffer.BLN:
+                case TokenBuffer.ARR:
+                    return at(start, parseAssignmentWithInput());
+                case TokenBuffer.SHOW:
+                    return at(start, parseShow());
+                case TokenBuffer.IF:
+                    return at(start, parseIf());
+                case TokenBuffer.LOOP:
+                    return at(start, parseLoop());
+                case TokenBuffer.PLOOP:
+                    return at(start, parseParallelLoop());
+                case TokenBuffer.PIPE:
+                    position++;
+                    continue;
+                case TokenBuffer.STOP:
+                case TokenBuffer.CONTINUE:
+                    return at(start, parseJump());
+                default:
+                    Node array = parseArrayStatement();
+                    if (array != null) {
+                        return at(start, array);
+                    }
+                    position++;
+            }
+        }
+        return null;
+    }
+
+    private boolean available(int ahead) {
+        while (position + ahead >= tokens.size()) {
+            if (source == null || !source.next(tokens)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Node parseStatement() {
+        int start = position;
+        int symbol = peek();
+        if (symbol >= TokenBuffer.STR && symbol <= TokenBuffer.ARR) return at(start, parseAssignmentWithInput());
+        Node array = parseArrayStatement();
+        if (array != null) return at(start, array);
+        if (available(1) && tokens.kind(start) == TokenBuffer.IDENTIFIER && tokens.symbol(start + 1) == TokenBuffer.ASSIGN) {
+            return at(start, parseAssignment());
+        }
+        switch (symbol) {
+            case TokenBuffer.IF: return at(start, parseIf());
+            case TokenBuffer.SHOW: return at(start, parseShow());
+            case TokenBuffer.LOOP: return at(start, parseLoop());
+            case TokenBuffer.PLOOP: return at(start, parseParallelLoop());
+            case TokenBuffer.STOP:
+            case TokenBuffer.CONTINUE:
+                return at(start, parseJump());
+            default: position++; return null;
+        }
+    }
+
+    /** Parses stop or continue, which only make sense inside a loop body. */
+    private Node parseJump() {
+        int keyword = next();
+        if (loopDepth == 0) {
+            throw error("'" + tokens.text(keyword) + "' used outside a loop", keyword);
+        }
+        if (peek() == TokenBuffer.PIPE) next();
+        return tokens.symbol(keyword) == TokenBuffer.STOP ? new StopNode() : new ContinueNode();
+    }
+
+    private Node at(int start, Node node) {
+        node.line = tokens.line(start);
+        return node;
+    }
+
+    private InterpreterException error(String message, int token) {
+        return new InterpreterException(message).at(tokens.line(token), tokens.column(token));
+    }
+
+    private Node parseAssignmentWithInput() {
+        int type = next();
+        expect(TokenBuffer.LPAREN);
+        int name = next();
+        expect(TokenBuffer.RPAREN);
+        expect(TokenBuffer.ASSIGN);
+
+        if (peek() == TokenBuffer.ROI) {
+            next();
+            expect(TokenBuffer.LPAREN);
+
+            StringBuilder promptBuilder = new StringBuilder();
+            while (available(0) && peek() != TokenBuffer.RPAREN) {
+                promptBuilder.append(tokens.text(next()));
+                if (peek() != TokenBuffer.RPAREN) promptBuilder.append(" ");
+            }
+            expect(TokenBuffer.RPAREN);
+            if (peek() == TokenBuffer.PIPE) {
+                next();
+            }
+
+            String prompt = promptBuilder.toString().trim();
+            return new InputNode(tokens.text(name), prompt, tokens.text(type));
+        } else {
+            List<String> expr = expressionToEnd();
+            Expr expression = tokens.symbol(type) == TokenBuffer.ARR
+                ? ExpressionEvaluator.compileArray(expr)
+                : ExpressionEvaluator.compile(expr);
+            return new AssignmentNode(tokens.text(name), expression, tokens.text(type));
+        }
+    }
+
+    private Node parseAssignment() {
+        int variable = next();
+        next();
+        Expr expression = parseValue();
+        return new AssignmentNode(tokens.text(variable), expression, /* default or detected type */ null);
+    }
+
+    /** The expression of an assignment, up to the end of the statement. */
+    private Expr parseValue() {
+        return ExpressionEvaluator.compile(expressionToEnd());
+    }
+
+    /** The expression tokens up to a {@code |}, which is consumed, or up to the next keyword. */
+    private List<String> expressionToEnd() {
+        List<String> expr = new ArrayList<>();
+        while (available(0) && peek() != TokenBuffer.PIPE && !isKeyword(peek())) {
+            appendExpression(expr, next());
+        }
+        if (peek() == TokenBuffer.PIPE) next();
+        return expr;
+    }
+
+    /** Parses {@code xs[i] = value} or {@code append(xs, value)}, or returns null for any other statement. */
+    private Node parseArrayStatement() {
+        int start = position;
+        if (!available(0) || tokens.kind(start) != TokenBuffer.IDENTIFIER || !available(1)) {
+            return null;
+        }
+        int following = tokens.symbol(start + 1);
+        if (following == TokenBuffer.LBRACKET) {
+            next();
+            next();
+            Expr index = ExpressionEvaluator.compile(expressionUntil(TokenBuffer.RBRACKET));
+            expect(TokenBuffer.RBRACKET);
+            expect(TokenBuffer.ASSIGN);
+            return new ElementAssignmentNode(tokens.text(start), index, parseValue());
+        }
+        if (tokens.symbol(start) == TokenBuffer.APPEND && following == TokenBuffer.LPAREN) {
+            next();
+            next();
+            int name = next();
+            if (tokens.kind(name) != TokenBuffer.IDENTIFIER) {
+                throw error("Expected an array variable but got '" + tokens.text(name) + "'", name);
+            }
+            expect(TokenBuffer.COMMA);
+            Expr value = ExpressionEvaluator.compile(expressionUntil(TokenBuffer.RPAREN));
+            expect(TokenBuffer.RPAREN);
+            if (peek() == TokenBuffer.PIPE) next();
+            return new AppendNode(tokens.text(name), value);
+        }
+        return null;
+    }
+
+    private Node parseShow() {
+        position++;
+        expect(TokenBuffer.LPAREN);
+        List<String> args = new ArrayList<>();
+        while (available(0) && peek() != TokenBuffer.RPAREN) {
+            int token = next();
+            if (tokens.symbol(token) != TokenBuffer.COMMA) {
+                args.add(tokens.text(token));
+            }
+        }
+        expect(TokenBuffer.RPAREN);
+        if (peek() == TokenBuffer.PIPE) next();
+        return new PrintNode(args);
+    }
+
+    /** Consumes the token at the cursor and returns its index, or {@link TokenBuffer#END} past the last one. */
+    private int next() {
+        return available(0) ? position++ : TokenBuffer.END;
+    }
+
+    /** The symbol of the token at the cursor, or {@link TokenBuffer#END} past the last one. */
+    private int peek() {
+        return available(0) ? tokens.symbol(position) : TokenBuffer.END;
+    }
+
+    private void expect(int symbol) {
+        int token = next();
+        if (tokens.symbol(token) != symbol) {
+            throw error("Expected '" + TokenBuffer.spelling(symbol) + "' but got '" + tokens.text(token) + "'", token);
+        }
+    }
+
+    private static boolean isKeyword(int symbol) {
+        return symbol >= TokenBuffer.SHOW && symbol <= TokenBuffer.ARR;
+    }
+
+    /** Whether a branch of an if ends before this token. */
+    private static boolean endsBranch(int symbol) {
+        return symbol == TokenBuffer.PIPE || symbol == TokenBuffer.ELSEIF || symbol == TokenBuffer.ELSE
+            || symbol == TokenBuffer.IF;
+    }
+
+    private Node parseIf() {
+        List<IfNode.ConditionBlock> blocks = new ArrayList<>();
+        boolean first = true;
+
+        while (available(0)) {
+            int keyword = peek();
+
+            if (keyword == TokenBuffer.IF && first) {
+                next();
+                first = false;
+            } else if (keyword == TokenBuffer.ELSEIF) {
+                next();
+            } else if (keyword == TokenBuffer.ELSE) {
+                next();
+                expect(TokenBuffer.COLON);
+
+                List<Node> elseBody = new ArrayList<>();
+                while (available(0) && !endsBranch(peek())) {
+                    Node stmt = parseStatement();
                     if (stmt != null) elseBody.add(stmt);
                 }
 
-                if (peek().value.equals("|")) next();
-                blocks.add(new IfNode.ConditionBlock(null, elseBody));
-                break;
-            } else {
-                break;
+                if (peek() == TokenBuffer.PIPE) next();
+                blocks.add(new IfNode.ConditionBlock(null, elseBody));
+                break;
+            } else {
+                break;
+            }
+
+            expect(TokenBuffer.LPAREN);
+            List<String> conditionTokens = new ArrayList<>();
+            int parenCount = 1;
+            while (parenCount > 0 && available(0)) {
+                int token = next();
+                int symbol = tokens.symbol(token);
+                if (symbol == TokenBuffer.LPAREN) parenCount++;
+                else if (symbol == TokenBuffer.RPAREN) parenCount--;
+                if (parenCount > 0) {
+                    appendExpression(conditionTokens, token);
+                }
+            }
+            Expr condition = ExpressionEvaluator.compile(conditionTokens);
+            expect(TokenBuffer.COLON);
+
+            List<Node> body = new ArrayList<>();
+            while (available(0) && !endsBranch(peek())) {
+                Node stmt = parseStatement();
+                if (stmt != null) body.add(stmt);
+            }
+
+            if (peek() == TokenBuffer.PIPE) next();
+            blocks.add(new IfNode.ConditionBlock(condition, body));
+        }
+        return new IfNode(blocks);
+    }
+
+    private Node parseLoop() {
+        next();
+        expect(TokenBuffer.LPAREN);
+        List<String> condition = expressionUntil(TokenBuffer.RPAREN);
+        expect(TokenBuffer.RPAREN);
+        expect(TokenBuffer.COLON);
+        return new LoopNode(ExpressionEvaluator.compile(condition), parseLoopBody());
+    }
+
+    /** Parses {@code ploop(i, from, to)}, optionally followed by {@code reduce(name op, ...)}, and its body. */
+    private Node parseParallelLoop() {
+        int keyword = next();
+        expect(TokenBuffer.LPAREN);
+        int counter = next();
+        if (tokens.kind(counter) != TokenBuffer.IDENTIFIER) {
+            throw error("Expected a counter variable but got '" + tokens.text(counter) + "'", counter);
+        }
+        expect(TokenBuffer.COMMA);
+        Expr from = ExpressionEvaluator.compile(expressionUntil(TokenBuffer.COMMA));
+        expect(TokenBuffer.COMMA);
+        Expr to = ExpressionEvaluator.compile(expressionUntil(TokenBuffer.RPAREN));
+        expect(TokenBuffer.RPAREN);
+        List<ParallelLoopNode.Reduction> reductions = new ArrayList<>();
+        if (peek() == TokenBuffer.REDUCE) {
+            next();
+            expect(TokenBuffer.LPAREN);
+            while (peek() != TokenBuffer.RPAREN) {
+                int name = next();
+                int op = next();
+                if (tokens.kind(name) != TokenBuffer.IDENTIFIER || !ParallelLoopNode.OPERATORS.contains(tokens.text(op))) {
+                    throw error("Expected a reduction such as 'total +' but got '"
+                        + tokens.text(name) + " " + tokens.text(op) + "'", name);
+                }
+                reductions.add(new ParallelLoopNode.Reduction(tokens.text(name), tokens.text(op)));
+                if (peek() == TokenBuffer.COMMA) next();
+            }
+            expect(TokenBuffer.RPAREN);
+        }
+        expect(TokenBuffer.COLON);
+        List<Node> body = parseLoopBody();
+        try {
+            return new ParallelLoopNode(tokens.text(counter), from, to, reductions, body);
+        } catch (InterpreterException e) {
+            throw e.at(tokens.line(keyword), tokens.column(keyword));
+        }
+    }
+
+    /** The tokens of an expression up to an {@code end} token outside any brackets, which is left unread. */
+    private List<String> expressionUntil(int end) {
+        List<String> expr = new ArrayList<>();
+        int depth = 0;
+        while (available(0) && (depth > 0 || peek() != end)) {
+            int token = next();
+            switch (tokens.symbol(token)) {
+                case TokenBuffer.LPAREN:
+                case TokenBuffer.LBRACKET:
+                    depth++;
+                    break;
+                case TokenBuffer.RPAREN:
+                case TokenBuffer.RBRACKET:
+                    depth--;
+                    break;
+            }
+            appendExpression(expr, token);
+        }
+        return expr;
+    }
+
+    /**
+     * Appends a token to an expression the way the expression scanner reads source text: {@code =}, {@code :}
+     * and a single {@code |} start no expression token.
+     */
+    private void appendExpression(List<String> expr, int token) {
+        switch (tokens.symbol(token)) {
+            case TokenBuffer.ASSIGN:
+            case TokenBuffer.COLON:
+            case TokenBuffer.PIPE:
+                break;
+            default:
+                expr.add(tokens.text(token));
+        }
+    }
+
+    private List<Node> parseLoopBody() {
+        List<Node> body = new ArrayList<>();
+        loopDepth++;
+        while (true) {
+            if (!available(0)) break;
+            if (peek() == TokenBuffer.PIPE) {
+                next();
+                if (available(0) && isKeyword(peek())) {
+                    break;
+                }
+            }
+            Node stmt = parseStatement();
+            if (stmt == null) break;
+            body.add(stmt);
+        }
+        loopDepth--;
+        return body;
+    }
+}
+
+/**
+ * Rewrites a parsed program before it is resolved: folds operators whose operands are all constants and
+ * removes if-blocks and loops whose conditions are constant. Anything that would fail at run time is left
+ * in place, so errors still surface where they always did.
+ */
+class Optimizer {
+    // Folding evaluates on this scratch context; constant operands never read variables or do I/O.
+    private final Context scratch = new Context(new SymbolTable(), null, null);
+
+    public List<Node> optimize(List<Node> nodes) {
+        List<Node> optimized = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            optimize(node, optimized);
+        }
+        return optimized;
+    }
+
+    /** Appends the optimized form of a statement, which may be nothing or several statements, to {@code out}. */
+    private void optimize(Node node, List<Node> out) {
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            out.add(at(node, new AssignmentNode(assignment.varName, fold(assignment.expression), assignment.declaredType)));
+        } else if (node instanceof LoopNode) {
+            LoopNode loop = (LoopNode) node;
+            Expr condition = fold(loop.condition);
+            if (constantTruth(condition) != Boolean.FALSE) {
+                out.add(at(node, new LoopNode(condition, optimize(loop.body))));
+            }
+        } else if (node instanceof ParallelLoopNode) {
+            ParallelLoopNode loop = (ParallelLoopNode) node;
+            out.add(at(node, new ParallelLoopNode(
+                loop.counterName, fold(loop.from), fold(loop.to), loop.reductions, optimize(loop.body))));
+        } else if (node instanceof IfNode) {
+            List<IfNode.ConditionBlock> blocks = new ArrayList<>();
+            for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                Expr condition = block.condition == null ? null : fold(block.condition);
+                Boolean truth = condition == null ? Boolean.TRUE : constantTruth(condition);
+                if (truth == Boolean.FALSE) {
+                    continue;
+                }
+                if (truth == Boolean.TRUE) {
+                    // Always taken once reached: later blocks are dead and this one acts as the else.
+                    blocks.add(new IfNode.ConditionBlock(null, optimize(block.body)));
+                    break;
+                }
+                blocks.add(new IfNode.ConditionBlock(condition, optimize(block.body)));
+            }
+            if (blocks.isEmpty()) {
+                return;
+            }
+            if (blocks.get(0).condition == null) {
+                out.addAll(blocks.get(0).body);
+            } else {
+                out.add(at(node, new IfNode(blocks)));
+            }
+        } else {
+            out.add(node);
+        }
+    }
+
+    public Expr fold(Expr expr) {
+        if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            Expr operand = fold(unary.operand);
+            Expr folded = operand == unary.operand ? unary : new UnaryExpr(unary.negate ? "u-" : "!", operand);
+            return operand instanceof LiteralExpr ? constant(folded) : folded;
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            Expr left = fold(binary.left);
+            Expr right = fold(binary.right);
+            Expr folded = left == binary.left && right == binary.right
+                ? binary : new BinaryExpr(BinaryExpr.symbol(binary.op), left, right);
+            return left instanceof LiteralExpr && right instanceof LiteralExpr ? constant(folded) : folded;
+        }
+        return expr;
+    }
+
+    /**
+     * Marks the loop-invariant subexpressions of every loop: those whose variables the loop never writes.
+     * Each is wrapped in a HoistedExpr that is evaluated once per run of the loop it is invariant in.
+     * Outer loops are processed first so a subexpression is hoisted as far out as it can go.
+     */
+    public List<Node> hoistInvariants(List<Node> nodes) {
+        List<Node> hoisted = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            hoisted.add(hoistInvariants(node));
+        }
+        return hoisted;
+    }
+
+    public Node hoistInvariants(Node node) {
+        return hoist(node, new ArrayDeque<>());
+    }
+
+    /** One enclosing loop: the variables it writes and the scope its hoisted expressions are cached under. */
+    private static final class Level {
+        final Set<String> written;
+        final LoopNode.HoistScope scope;
+
+        Level(Set<String> written, LoopNode.HoistScope scope) {
+            this.written = written;
+            this.scope = scope;
+        }
+    }
+
+    private List<Node> hoist(List<Node> nodes, Deque<Level> loops) {
+        List<Node> hoisted = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            hoisted.add(hoist(node, loops));
+        }
+        return hoisted;
+    }
+
+    /** Rewrites a statement inside the given loops, outermost first. */
+    private Node hoist(Node node, Deque<Level> loops) {
+        if (node instanceof LoopNode) {
+            LoopNode loop = (LoopNode) node;
+            Set<String> writes = new HashSet<>();
+            if (!LoopNode.variables(loop.body, new HashSet<>(), writes)) {
+                return node;
+            }
+            LoopNode.HoistScope scope = new LoopNode.HoistScope();
+            loops.addLast(new Level(writes, scope));
+            try {
+                return at(node, new LoopNode(hoist(loop.condition, loops), hoist(loop.body, loops), scope));
+            } finally {
+                loops.removeLast();
+            }
+        }
+        if (node instanceof ParallelLoopNode) {
+            // The body runs on forked contexts, which do not share the caches of the loops around it.
+            ParallelLoopNode loop = (ParallelLoopNode) node;
+            return at(node, new ParallelLoopNode(loop.counterName, hoist(loop.from, loops), hoist(loop.to, loops),
+                loop.reductions, hoist(loop.body, new ArrayDeque<>())));
+        }
+        if (loops.isEmpty()) {
+            return node;
+        }
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            Expr expression = hoist(assignment.expression, loops);
+            return expression == assignment.expression
+                ? node : at(node, new AssignmentNode(assignment.varName, expression, assignment.declaredType));
+        }
+        if (node instanceof IfNode) {
+            List<IfNode.ConditionBlock> blocks = new ArrayList<>();
+            for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                Expr condition = block.condition == null ? null : hoist(block.condition, loops);
+                blocks.add(new IfNode.ConditionBlock(condition, hoist(block.body, loops)));
+            }
+            return at(node, new IfNode(blocks));
+        }
+        return node;
+    }
+
+    private Expr hoist(Expr expr, Deque<Level> loops) {
+        for (Level level : loops) {
+            expr = hoist(expr, level.written, level.scope);
+        }
+        return expr;
+    }
+
+    private Expr hoist(Expr expr, Set<String> written, LoopNode.HoistScope scope) {
+        if (expr instanceof HoistedExpr) {
+            return expr;
+        }
+        Set<String> reads = new HashSet<>();
+        if (LoopNode.variables(expr, reads) && !(expr instanceof MalformedExpr) && Collections.disjoint(reads, written)) {
+            // A lone variable or a single cheap operator costs less to evaluate than to look up in the cache.
+            return cost(expr) >= 2 ? new HoistedExpr(expr, scope) : expr;
+        }
+        if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            Expr operand = hoist(unary.operand, written, scope);
+            return operand == unary.operand ? unary : new UnaryExpr(unary.negate ? "u-" : "!", operand);
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            Expr left = hoist(binary.left, written, scope);
+            Expr right = hoist(binary.right, written, scope);
+            return left == binary.left && right == binary.right
+                ? binary : new BinaryExpr(BinaryExpr.symbol(binary.op), left, right);
+        }
+        return expr;
+    }
+
+    private static int cost(Expr expr) {
+        if (expr instanceof UnaryExpr) {
+            return 1 + cost(((UnaryExpr) expr).operand);
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            return (binary.op == BinaryExpr.POW ? 2 : 1) + cost(binary.left) + cost(binary.right);
+        }
+        return 0;
+    }
+
+    /** Evaluates an expression over constants, or returns it unchanged if evaluation fails. */
+    private Expr constant(Expr expr) {
+        int tag;
+        try {
+            tag = expr.exec(scratch);
+        } catch (RuntimeException e) {
+            return expr;
+        }
+        return new LiteralExpr(scratch.box(tag));
+    }
+
+    /** Whether a condition always holds, never holds, or (null) depends on the run. */
+    private static Boolean constantTruth(Expr condition) {
+        if (condition instanceof LiteralExpr) {
+            LiteralExpr literal = (LiteralExpr) condition;
+            return literal.tag == Value.BLN ? literal.bln : literal.tag == Value.NUM && literal.num != 0;
+        }
+        return null;
+    }
+
+    private static Node at(Node original, Node replacement) {
+        replacement.line = original.line;
+        return replacement;
+    }
+
+    /** Renders a program in Sting-like source, for --dump-opt. */
+    public static String dump(List<Node> nodes) {
+        StringBuilder out = new StringBuilder();
+        dump(nodes, 0, out);
+        return out.toString();
+    }
+
+    private static void dump(List<Node> nodes, int depth, StringBuilder out) {
+        String indent = "    ".repeat(depth);
+        for (Node node : nodes) {
+            out.append(indent);
+            if (node instanceof AssignmentNode) {
+                AssignmentNode assignment = (AssignmentNode) node;
+                String type = Value.name(assignment.declaredType);
+                out.append(type == null ? assignment.varName : type + "(" + assignment.varName + ")")
+                    .append(" = ").append(dump(assignment.expression)).append('\n');
+            } else if (node instanceof InputNode) {
+                InputNode input = (InputNode) node;
+                out.append(input.type).append('(').append(input.varName).append(") = roi(").append(input.prompt).append(")\n");
+            } else if (node instanceof ElementAssignmentNode) {
+                ElementAssignmentNode assignment = (ElementAssignmentNode) node;
+                out.append(assignment.varName).append('[').append(dump(assignment.index)).append("] = ")
+                    .append(dump(assignment.value)).append('\n');
+            } else if (node instanceof AppendNode) {
+                AppendNode append = (AppendNode) node;
+                out.append("append(").append(append.varName).append(", ").append(dump(append.value)).append(")\n");
+            } else if (node instanceof PrintNode) {
+                out.append("show(").append(String.join(", ", ((PrintNode) node).args)).append(")\n");
+            } else if (node instanceof StopNode) {
+                out.append("stop\n");
+            } else if (node instanceof ContinueNode) {
+                out.append("continue\n");
+            } else if (node instanceof LoopNode) {
+                LoopNode loop = (LoopNode) node;
+                out.append("loop(").append(dump(loop.condition)).append("):\n");
+                dump(loop.body, depth + 1, out);
+            } else if (node instanceof ParallelLoopNode) {
+                ParallelLoopNode loop = (ParallelLoopNode) node;
+                out.append("ploop(").append(loop.counterName).append(", ").append(dump(loop.from))
+                    .append(", ").append(dump(loop.to)).append(')');
+                if (!loop.reductions.isEmpty()) {
+                    StringJoiner reductions = new StringJoiner(", ", " reduce(", ")");
+                    for (ParallelLoopNode.Reduction reduction : loop.reductions) {
+                        reductions.add(reduction.name + " " + reduction.op);
+                    }
+                    out.append(reductions);
+                }
+                out.append(":\n");
+                dump(loop.body, depth + 1, out);
+            } else if (node instanceof IfNode) {
+                String keyword = "if";
+                for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                    if (!keyword.equals("if")) {
+                        out.append(indent);
+                    }
+                    if (block.condition == null) {
+                        out.append("else:\n");
+                    } else {
+                        out.append(keyword).append('(').append(dump(block.condition)).append("):\n");
+                    }
+                    dump(block.body, depth + 1, out);
+                    keyword = "elseif";
+                }
+            } else {
+                out.append(node.getClass().getSimpleName()).append('\n');
+            }
+        }
+    }
+
+    static String dump(Expr expr) {
+        return dump(expr, false);
+    }
+
+    private static String dump(Expr expr, boolean nested) {
+        if (expr instanceof LiteralExpr) {
+            LiteralExpr literal = (LiteralExpr) expr;
+            switch (literal.tag) {
+                case Value.NUM:
+                    return literal.num == Math.floor(literal.num) && !Double.isInfinite(literal.num)
+                        ? Long.toString((long) literal.num) : Double.toString(literal.num);
+                case Value.STR:
+                    return "'" + literal.str + "'";
+                default:
+                    return String.valueOf(literal.bln);
+            }
+        }
+        if (expr instanceof VariableExpr) {
+            return ((VariableExpr) expr).name;
+        }
+        if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            return (unary.negate ? "-" : "!") + dump(unary.operand, true);
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            String text = dump(binary.left, true) + " " + BinaryExpr.symbol(binary.op) + " " + dump(binary.right, true);
+            return nested ? "(" + text + ")" : text;
+        }
+        if (expr instanceof IndexExpr) {
+            return dump(((IndexExpr) expr).array, true) + "[" + dump(((IndexExpr) expr).index) + "]";
+        }
+        if (expr instanceof CallExpr || expr instanceof ArrayExpr) {
+            StringJoiner args = expr instanceof CallExpr ? new StringJoiner(", ", ((CallExpr) expr).name + "(", ")")
+                : new StringJoiner(", ");
+            for (Expr arg : expr instanceof CallExpr ? ((CallExpr) expr).args : ((ArrayExpr) expr).elements) {
+                args.add(dump(arg));
+            }
+            return args.toString();
+        }
+        return "<" + expr.getClass().getSimpleName() + ">";
+    }
+}
+
+class ExpressionEvaluator {
+    private static final Pattern EXPRESSION_TOKEN =
+        Pattern.compile("'[^']*'|\\d+\\.\\d+|\\d+|[a-zA-Z_][a-zA-Z0-9_]*|!=|[()!,\\[\\]]|&&|\\|\\||[<>]=?|==|[+\\-*/%^]");
+
+    private static final Map<String, Integer> PRECEDENCE = new HashMap<>();
+
+    static {
+        PRECEDENCE.put("^", 5);
+        PRECEDENCE.put("u-", 4);
+        PRECEDENCE.put("!", 4);
+        PRECEDENCE.put("*", 3);
+        PRECEDENCE.put("/", 3);
+        PRECEDENCE.put("%", 3);
+        PRECEDENCE.put("+", 2);
+        PRECEDENCE.put("-", 2);
+        PRECEDENCE.put(">", 1);
+        PRECEDENCE.put("<", 1);
+        PRECEDENCE.put(">=", 1);
+        PRECEDENCE.put("<=", 1);
+        PRECEDENCE.put("==", 1);
+        PRECEDENCE.put("!=", 1);
+        PRECEDENCE.put("&&", 0);
+        PRECEDENCE.put("||", -1);
+    }
+
+    public static List<String> tokenizeExpression(String expr) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = EXPRESSION_TOKEN.matcher(expr);
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        return tokens;
+    }
+
+    /**
+     * Converts infix tokens to postfix. A call of a built-in function becomes {@code @name/argc} after its
+     * arguments, and indexing {@code a[i]} becomes {@code []} after the array and the index.
+     */
+    public static List<String> toPostfix(List<String> tokens) {
+        List<String> output = new ArrayList<>(tokens.size());
+        Deque<String> operators = new ArrayDeque<>();
+        // Argument counts of the open brackets, innermost on top: commas so far plus one, or 0 while empty.
+        Deque<Integer> counts = new ArrayDeque<>();
+        boolean expectUnary = true;
+
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (CallExpr.FUNCTIONS.containsKey(token) && i + 1 < tokens.size() && tokens.get(i + 1).equals("(")) {
+                operators.push("@" + token);
+            } else if (Lexer.isWord(token.charAt(0)) || token.charAt(0) == '\'') {
+                output.add(token);
+                expectUnary = false;
+                if (!counts.isEmpty() && counts.peek() == 0) {
+                    counts.push(counts.pop() + 1);
+                }
+            } else if (token.equals("(") || token.equals("[")) {
+                if (!counts.isEmpty() && counts.peek() == 0) {
+                    counts.push(counts.pop() + 1);
+                }
+                operators.push(token);
+                counts.push(0);
+                expectUnary = true;
+            } else if (token.equals(",")) {
+                while (!operators.isEmpty() && !operators.peek().equals("(") && !operators.peek().equals("[")) {
+                    output.add(operators.pop());
+                }
+                if (!counts.isEmpty()) {
+                    counts.push(counts.pop() + 1);
+                }
+                expectUnary = true;
+            } else if (token.equals(")") || token.equals("]")) {
+                String open = token.equals(")") ? "(" : "[";
+                while (!operators.isEmpty() && !operators.peek().equals(open)) {
+                    output.add(operators.pop());
+                }
+                int count = counts.isEmpty() ? 0 : counts.pop();
+                if (!operators.isEmpty()) operators.pop();
+                if (open.equals("[")) {
+                    output.add("[]");
+                } else if (!operators.isEmpty() && operators.peek().startsWith("@")) {
+                    output.add(operators.pop() + "/" + count);
+                }
+                expectUnary = false;
+            } else {
+                if (token.equals("-") && expectUnary) {
+                    token = "u-";
+                }
+                while (!operators.isEmpty() && PRECEDENCE.containsKey(operators.peek()) &&
+                       PRECEDENCE.get(token) <= PRECEDENCE.get(operators.peek())) {
+                    output.add(operators.pop());
+                }
+                operators.push(token);
+                expectUnary = true;
+                if (!counts.isEmpty() && counts.peek() == 0) {
+                    counts.push(counts.pop() + 1);
+                }
+            }
+        }
+        while (!operators.isEmpty()) {
+            output.add(operators.pop());
+        }
+        return output;
+    }
+
+    public static Expr compile(String expr) {
+        return compile(tokenizeExpression(expr.trim()));
+    }
+
+    /**
+     * Compiles an expression already split into tokens, as {@link #tokenizeExpression} splits text: numbers,
+     * names and quoted strings are whole tokens, so their first character says which they are.
+     */
+    public static Expr compile(List<String> tokens) {
+        List<String> postfix = toPostfix(tokens);
+        Deque<Expr> stack = new ArrayDeque<>();
+
+        for (String token : postfix) {
+            char first = token.charAt(0);
+            if (Lexer.isDigit(first)) {
+                stack.push(new LiteralExpr(token.indexOf('.') < 0 ? integer(token) : Double.parseDouble(token)));
+            } else if (first == '\'' && token.endsWith("'")) {
+                stack.push(new LiteralExpr(token.substring(1, token.length() - 1)));
+            } else if ("true".equalsIgnoreCase(token)) {
+                stack.push(new LiteralExpr(true));
+            } else if ("false".equalsIgnoreCase(token)) {
+                stack.push(new LiteralExpr(false));
+            } else if (isName(token)) {
+                stack.push(new VariableExpr(token));
+            } else if (token.equals("!") || token.equals("u-")) {
+                if (stack.isEmpty()) {
+                    return new MalformedExpr(stack, true);
+                }
+                stack.push(new UnaryExpr(token, stack.pop()));
+            } else if (BinaryExpr.opcode(token) >= 0 || token.equals("[]")) {
+                if (stack.size() < 2) {
+                    return new MalformedExpr(stack, true);
+                }
+                Expr right = stack.pop();
+                Expr left = stack.pop();
+                stack.push(token.equals("[]") ? new IndexExpr(left, right) : new BinaryExpr(token, left, right));
+            } else if (token.startsWith("@")) {
+                int slash = token.lastIndexOf('/');
+                int count = Integer.parseInt(token.substring(slash + 1));
+                if (stack.size() < count) {
+                    return new MalformedExpr(stack, true);
+                }
+                Expr[] args = new Expr[count];
+                for (int i = count - 1; i >= 0; i--) {
+                    args[i] = stack.pop();
+                }
+                stack.push(CallExpr.of(token.substring(1, slash), Arrays.asList(args)));
+            } else {
+                stack.push(new FailExpr("Unexpected token in expression: " + token));
+            }
+        }
+        return stack.size() == 1 ? stack.pop() : new MalformedExpr(stack, false);
+    }
+
+    /** Compiles the comma-separated elements of an arr declaration. */
+    public static Expr compileArray(String expr) {
+        return compileArray(tokenizeExpression(expr.trim()));
+    }
+
+    public static Expr compileArray(List<String> tokens) {
+        List<Expr> elements = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= tokens.size(); i++) {
+            String token = i < tokens.size() ? tokens.get(i) : ",";
+            if (token.equals("(") || token.equals("[")) {
+                depth++;
+            } else if (token.equals(")") || token.equals("]")) {
+                depth--;
+            } else if (token.equals(",") && depth <= 0 && (i < tokens.size() || i > start)) {
+                elements.add(compile(tokens.subList(start, i)));
+                start = i + 1;
+            }
+        }
+        return new ArrayExpr(elements);
+    }
+
+    private static boolean isName(String token) {
+        char first = token.charAt(0);
+        if (Lexer.isDigit(first) || !Lexer.isWord(first)) {
+            return false;
+        }
+        for (int i = 1; i < token.length(); i++) {
+            if (!Lexer.isWord(token.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** An integer literal as a Long, or as a Double when it does not fit in one. */
+    private static Number integer(String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(digits);
+        }
+    }
+
+    static boolean compare(int op, double x, double y) {
+        switch (op) {
+            case BinaryExpr.GT: return x > y;
+            case BinaryExpr.LT: return x < y;
+            case BinaryExpr.GE: return x >= y;
+            case BinaryExpr.LE: return x <= y;
+            case BinaryExpr.EQ: return x == y;
+            case BinaryExpr.NE: return x != y;
+            default: return false;
+        }
+    }
+
+    static boolean compare(int op, long x, long y) {
+        switch (op) {
+            case BinaryExpr.GT: return x > y;
+            case BinaryExpr.LT: return x < y;
+            case BinaryExpr.GE: return x >= y;
+            case BinaryExpr.LE: return x <= y;
+            case BinaryExpr.EQ: return x == y;
+            case BinaryExpr.NE: return x != y;
+            default: return false;
+        }
+    }
+
+    static boolean compare(int op, String a, String b) {
+        switch (op) {
+            case BinaryExpr.EQ: return a.equals(b);
+            case BinaryExpr.NE: return !a.equals(b);
+            default: return false;
+        }
+    }
+
+    public static boolean evaluate(Expr expr, Context context) {
+        return truthy(expr.exec(context), context);
+    }
+
+    static boolean truthy(int tag, Context context) {
+        if (tag == Value.BLN) {
+            return context.bln;
+        }
+        if (Value.type(tag) == Value.NUM) {
+            return context.num != 0;
+        }
+        return false;
+    }
+
+    /**
+     * Compiles and evaluates an expression against a context. Names are resolved in a private copy of the
+     * context's symbol table, so a name it does not know reads as undefined instead of being added to a table
+     * other contexts share.
+     */
+    public static boolean evaluate(String expr, Context context) {
+        return evaluate(resolve(expr, context), context);
+    }
+
+    public static Object evaluateValue(String expr, Context context) {
+        return resolve(expr, context).evaluate(context);
+    }
+
+    private static Expr resolve(String expr, Context context) {
+        Expr compiled = compile(expr);
+        compiled.resolve(context.symbols.copy());
+        return compiled;
+    }
+}
+
+abstract class Expr {
+    /** Evaluates into the context's registers and returns the Value tag of the result. */
+    public abstract int exec(Context context);
+
+    public Object evaluate(Context context) {
+        return context.box(exec(context));
+    }
+
+    public void resolve(SymbolTable symbols) {
+    }
+}
+
+class LiteralExpr extends Expr {
+    public final int tag;
+    public final double num;
+    public final boolean bln;
+    public final String str;
+    // Integer literals evaluate to INT; tag stays NUM, which is all the compilers need to know.
+    public final boolean exact;
+    public final long lng;
+
+    public LiteralExpr(Object value) {
+        this.exact = value instanceof Long || value instanceof Integer;
+        this.lng = exact ? ((Number) value).longValue() : 0;
+        if (value instanceof Number) {
+            this.tag = Value.NUM;
+            this.num = ((Number) value).doubleValue();
+            this.bln = false;
+            this.str = null;
+        } else if (value instanceof Boolean) {
+            this.tag = Value.BLN;
+            this.num = 0;
+            this.bln = (Boolean) value;
+            this.str = null;
+        } else {
+            this.tag = Value.STR;
+            this.num = 0;
+            this.bln = false;
+            this.str = value.toString();
+        }
+    }
+
+    @Override
+    public int exec(Context context) {
+        if (tag == Value.STR) {
+            context.str = str;
+        } else {
+            context.num = num;
+            context.bln = bln;
+            if (exact) {
+                context.lng = lng;
+                return Value.INT;
+            }
+        }
+        return tag;
+    }
+}
+
+class VariableExpr extends Expr {
+    public final String name;
+    private int slot = -1;
+
+    public VariableExpr(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        slot = symbols.intern(name);
+    }
+
+    public int slot() {
+        return slot;
+    }
+
+    @Override
+    public int exec(Context context) {
+        int tag = context.load(slot);
+        if (tag == Value.NONE) {
+            throw new InterpreterException("Unexpected token in expression: " + name);
+        }
+        return tag;
+    }
+}
+
+class UnaryExpr extends Expr {
+    public final boolean negate;
+    public final Expr operand;
+
+    public UnaryExpr(String op, Expr operand) {
+        this.negate = op.equals("u-");
+        this.operand = operand;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        operand.resolve(symbols);
+    }
+
+    @Override
+    public int exec(Context context) {
+        return apply(negate, context, operand.exec(context));
+    }
+
+    /** Applies the operator to the operand held in the context registers. */
+    static int apply(boolean negate, Context context, int tag) {
+        if (negate) {
+            if (Value.type(tag) != Value.NUM) {
+                throw Value.notANumber(tag, context.num, context.bln, context.str);
+            }
+            context.num = -context.num;
+            // -0 is the double -0.0, and -Long.MIN_VALUE does not fit.
+            if (tag == Value.INT && context.lng != 0 && context.lng != Long.MIN_VALUE) {
+                context.lng = -context.lng;
+                return Value.INT;
+            }
+            return Value.NUM;
+        }
+        if (tag == Value.BLN) {
+            context.bln = !context.bln;
+            return Value.BLN;
+        }
+        throw new InterpreterException("Invalid operand for '!': " + Value.format(tag, context.num, context.bln, context.str));
+    }
+}
+
+class BinaryExpr extends Expr {
+    static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3, MOD = 4, POW = 5;
+    static final int GT = 6, LT = 7, GE = 8, LE = 9, EQ = 10, NE = 11;
+    static final int AND = 12, OR = 13;
+
+    // Specializations: the operand types a site has seen, as a set of the paths that handle them.
+    static final int INTS = 1, NUMBERS = 2, CONCAT = 4, GENERIC = 8;
+
+    private static final List<String> SYMBOLS =
+        List.of("+", "-", "*", "/", "%", "^", ">", "<", ">=", "<=", "==", "!=", "&&", "||");
+
+    public final int op;
+    public final Expr left;
+    public final Expr right;
+
+    // Empty until the site first runs; once it has seen a second kind of operands it is polymorphic, and
+    // unless that is an int widening to a number it stays on the generic path. State only picks how a
+    // result is computed, never what it is, so it lives on the node and every run of the program shares it;
+    // a racing update from another run costs at most a trip through the generic path.
+    private int state;
+    // A variable on the left is read straight from its slot, a number literal on the right from here.
+    private int leftSlot = -1;
+    private final boolean constant;
+    private final boolean constantExact;
+    private final double constantNum;
+    private final long constantLng;
+
+    public BinaryExpr(String op, Expr left, Expr right) {
+        this.op = opcode(op);
+        this.left = left;
+        this.right = right;
+        LiteralExpr literal = right instanceof LiteralExpr && ((LiteralExpr) right).tag == Value.NUM ? (LiteralExpr) right : null;
+        this.constant = literal != null;
+        this.constantExact = constant && literal.exact;
+        this.constantNum = constant ? literal.num : 0;
+        this.constantLng = constant ? literal.lng : 0;
+    }
+
+    static int opcode(String symbol) {
+        return SYMBOLS.indexOf(symbol);
+    }
+
+    static String symbol(int op) {
+        return SYMBOLS.get(op);
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        left.resolve(symbols);
+        right.resolve(symbols);
+        leftSlot = left instanceof VariableExpr ? ((VariableExpr) left).slot() : -1;
+    }
+
+    /** Whether the site has seen more than one kind of operands. */
+    public boolean polymorphic() {
+        return Integer.bitCount(state) > 1;
+    }
+
+    @Override
+    public int exec(Context context) {
+        int state = this.state;
+        if (state == INTS) {
+            return ints(context);
+        }
+        if (state == NUMBERS || state == (INTS | NUMBERS)) {
+            return numbers(context);
+        }
+        if (state == CONCAT) {
+            return concat(context);
+        }
+        return generic(context, left.exec(context));
+    }
+
+    private int leftOperand(Context context) {
+        return leftSlot >= 0 ? context.load(leftSlot) : left.exec(context);
+    }
+
+    /** Leaves the specialized path with the left operand already evaluated. */
+    private int generalize(Context context, int ta) {
+        // An unset variable is reported by VariableExpr; reading it again has no effect.
+        return generic(context, leftSlot >= 0 ? left.exec(context) : ta);
+    }
+
+    private int ints(Context context) {
+        int ta = leftOperand(context);
+        if (ta != Value.INT) {
+            return generalize(context, ta);
+        }
+        long x = context.lng;
+        long y;
+        if (constant && constantExact) {
+            y = constantLng;
+        } else {
+            int tb = right.exec(context);
+            if (tb != Value.INT) {
+                record(Value.INT, tb);
+                return combine(op, context, Value.INT, x, false, null, x, tb);
+            }
+            y = context.lng;
+        }
+        int tag = exact(op, context, x, y);
+        if (tag != Value.NONE) {
+            return tag;
+        }
+        context.num = y;
+        return apply(op, context, Value.INT, x, false, null, Value.NUM);
+    }
+
+    /** Numbers of either kind: ints still try exact() first, as on the generic path. */
+    private int numbers(Context context) {
+        int ta = leftOperand(context);
+        if (Value.type(ta) != Value.NUM) {
+            return generalize(context, ta);
+        }
+        double na = context.num;
+        long la = context.lng;
+        int tb;
+        if (constant) {
+            tb = constantExact ? Value.INT : Value.NUM;
+            context.num = constantNum;
+            context.lng = constantLng;
+        } else {
+            tb = right.exec(context);
+            if (Value.type(tb) != Value.NUM) {
+                record(ta, tb);
+                return combine(op, context, ta, na, false, null, la, tb);
+            }
+        }
+        if (ta == Value.INT && tb == Value.INT) {
+            if ((state & INTS) == 0) {
+                state |= INTS;
+            }
+            int tag = exact(op, context, la, context.lng);
+            if (tag != Value.NONE) {
+                return tag;
+            }
+        }
+        return apply(op, context, ta, na, false, null, tb);
+    }
+
+    private int concat(Context context) {
+        int ta = left.exec(context);
+        if (ta != Value.STR) {
+            return generic(context, ta);
+        }
+        String sa = context.str;
+        int tb = right.exec(context);
+        if (tb == Value.ARR) {
+            return apply(op, context, ta, 0, false, sa, tb);
+        }
+        context.str = sa + Value.format(tb, context);
+        return Value.STR;
+    }
+
+    /** Any operands, with the left one evaluated; also how a site starts and how it records what it sees. */
+    private int generic(Context context, int ta) {
+        double na = context.num;
+        boolean ba = context.bln;
+        String sa = context.str;
+        long la = context.lng;
+        int tb = right.exec(context);
+        record(ta, tb);
+        return combine(op, context, ta, na, ba, sa, la, tb);
+    }
+
+    /**
+     * Applies the operator to a saved left operand and the right operand held in the context registers, INTs
+     * included: two of them go through exact() first, and one joined to a string keeps all its digits.
+     */
+    static int combine(int op, Context context, int ta, double na, boolean ba, String sa, long la, int tb) {
+        if (ta == Value.INT && tb == Value.INT) {
+            int tag = exact(op, context, la, context.lng);
+            if (tag != Value.NONE) {
+                return tag;
+            }
+        } else if (op == ADD && (ta == Value.INT || tb == Value.INT) && (ta == Value.STR || tb == Value.STR)) {
+            String a = ta == Value.INT ? Value.format(la) : sa;
+            context.str = a + Value.format(tb, context);
+            return Value.STR;
+        }
+        return apply(op, context, ta, na, ba, sa, tb);
+    }
+
+    private void record(int ta, int tb) {
+        int kind = ta == Value.INT && tb == Value.INT ? INTS
+            : Value.type(ta) == Value.NUM && Value.type(tb) == Value.NUM ? NUMBERS
+            : op == ADD && ta == Value.STR ? CONCAT
+            : GENERIC;
+        if ((state & kind) == 0) {
+            state |= kind;
+        }
+    }
+
+    /**
+     * Applies the operator to two INT operands in long arithmetic. Returns NONE, leaving the registers alone, when
+     * the result is not an integer or does not fit in a long; the double arithmetic in apply() then decides.
+     * Zero results that double arithmetic makes -0.0 are returned as that double.
+     */
+    static int exact(int op, Context context, long x, long y) {
+        long result;
+        switch (op) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case POW:
+                if (op == POW && y < 0) {
+                    return Value.NONE;
+                }
+                try {
+                    result = op == ADD ? Math.addExact(x, y)
+                        : op == SUB ? Math.subtractExact(x, y)
+                        : op == MUL ? Math.multiplyExact(x, y)
+                        : power(x, y);
+                } catch (ArithmeticException e) {
+                    return Value.NONE;
+                }
+                if (op == MUL && result == 0 && (x < 0 || y < 0)) {
+                    return negativeZero(context);
+                }
+                break;
+            case DIV:
+                if (y == 0 || x % y != 0 || (x == Long.MIN_VALUE && y == -1)) {
+                    return Value.NONE;
+                }
+                result = x / y;
+                if (result == 0 && y < 0) {
+                    return negativeZero(context);
+                }
+                break;
+            case MOD:
+                if (y == 0) {
+                    return Value.NONE;
+                }
+                result = x % y;
+                if (result == 0 && x < 0) {
+                    return negativeZero(context);
+                }
+                break;
+            case GT: case LT: case GE: case LE: case EQ: case NE:
+                context.bln = ExpressionEvaluator.compare(op, x, y);
+                return Value.BLN;
+            default:
+                return Value.NONE;
+        }
+        context.lng = result;
+        context.num = result;
+        return Value.INT;
+    }
+
+    /** base^exponent for exponent >= 0 by repeated squaring; throws ArithmeticException on overflow. */
+    static long power(long base, long exponent) {
+        long result = 1;
+        while (true) {
+            if ((exponent & 1) != 0) {
+                result = Math.multiplyExact(result, base);
+            }
+            exponent >>= 1;
+            if (exponent == 0) {
+                return result;
+            }
+            base = Math.multiplyExact(base, base);
+        }
+    }
+
+    private static int negativeZero(Context context) {
+        context.num = -0.0;
+        return Value.NUM;
+    }
+
+    /** Applies the operator to a saved left operand and the right operand held in the context registers. */
+    static int apply(int op, Context context, int ta, double na, boolean ba, String sa, int tb) {
+        // Past exact(), an INT is just its double in the num register.
+        ta = Value.type(ta);
+        tb = Value.type(tb);
+        if (ta == Value.ARR || tb == Value.ARR) {
+            throw new InterpreterException("An array cannot be an operand of '" + symbol(op) + "'");
+        }
+        switch (op) {
+            case AND:
+            case OR:
+                if (ta != Value.BLN || tb != Value.BLN) {
+                    throw new InterpreterException("Expected a boolean for '" + symbol(op) + "'");
+                }
+                context.bln = op == AND ? ba && context.bln : ba || context.bln;
+                return Value.BLN;
+            case GT: case LT: case GE: case LE: case EQ: case NE:
+                if (ta == Value.NUM && tb == Value.NUM) {
+                    context.bln = ExpressionEvaluator.compare(op, na, context.num);
+                } else {
+                    context.bln = ExpressionEvaluator.compare(op, Value.format(ta, na, ba, sa),
+                        Value.format(tb, context.num, context.bln, context.str));
+                }
+                return Value.BLN;
+            case ADD:
+                if (ta == Value.STR || tb == Value.STR) {
+                    context.str = Value.format(ta, na, ba, sa) + Value.format(tb, context.num, context.bln, context.str);
+                    return Value.STR;
+                }
+                if (ta != Value.NUM) {
+                    throw Value.notANumber(ta, na, ba, sa);
+                }
+                if (tb != Value.NUM) {
+                    throw Value.notANumber(tb, context.num, context.bln, context.str);
+                }
+                context.num = na + context.num;
+                return Value.NUM;
+            default:
+                break;
+        }
+
+        if (tb != Value.NUM) {
+            throw Value.notANumber(tb, context.num, context.bln, context.str);
+        }
+        if (ta != Value.NUM) {
+            throw Value.notANumber(ta, na, ba, sa);
+        }
+        double y = context.num;
+        switch (op) {
+            case SUB:
+                context.num = na - y;
+                break;
+            case MUL:
+                context.num = na * y;
+                break;
+            case DIV:
+                if (y == 0) {
+                    throw new InterpreterException("Division by zero error");
+                }
+                context.num = na / y;
+                break;
+            case MOD:
+                context.num = na % y;
+                break;
+            default:
+                context.num = Math.pow(na, y);
+        }
+        return Value.NUM;
+    }
+}
+
+/** A token that can never be evaluated; fails at the point the postfix evaluator used to. */
+class FailExpr extends Expr {
+    public final String message;
+
+    public FailExpr(String message) {
+        this.message = message;
+    }
+
+    @Override
+    public int exec(Context context) {
+        throw new InterpreterException(message);
+    }
+}
+
+/**
+ * An expression whose postfix form does not reduce to a single value. The operands are still
+ * evaluated in order so errors surface exactly as before; then it either fails or yields nothing.
+ */
+class MalformedExpr extends Expr {
+    public final List<Expr> parts;
+    public final boolean underflow;
+
+    public MalformedExpr(Deque<Expr> stack, boolean underflow) {
+        this(reversed(stack), underflow);
+    }
+
+    public MalformedExpr(List<Expr> parts, boolean underflow) {
+        this.parts = parts;
+        this.underflow = underflow;
+    }
+
+    private static List<Expr> reversed(Deque<Expr> stack) {
+        List<Expr> parts = new ArrayList<>(stack);
+        Collections.reverse(parts);
+        return parts;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        for (Expr part : parts) {
+            part.resolve(symbols);
+        }
+    }
+
+    @Override
+    public int exec(Context context) {
+        for (Expr part : parts) {
+            part.exec(context);
+        }
+        if (underflow) {
+            throw new InterpreterException("Malformed expression");
+        }
+        return Value.NONE;
+    }
+}
+
+/**
+ * The right side of an arr declaration: a comma-separated list of numbers, which may be empty. A single
+ * operand that is itself an array gives a copy of it.
+ */
+class ArrayExpr extends Expr {
+    public final List<Expr> elements;
+
+    public ArrayExpr(List<Expr> elements) {
+        this.elements = elements;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        for (Expr element : elements) {
+            element.resolve(symbols);
+        }
+    }
+
+    @Override
+    public int exec(Context context) {
+        NumArray array = new NumArray(elements.size());
+        for (Expr element : elements) {
+            int tag = element.exec(context);
+            if (tag == Value.ARR && elements.size() == 1) {
+                array = element instanceof VariableExpr ? context.arr.copy() : context.arr;
+            } else if (Value.type(tag) == Value.NUM) {
+                array.append(tag, context);
+            } else {
+                throw new ArrayException("Array elements must be numbers");
+            }
+        }
+        context.arr = array;
+        return Value.ARR;
+    }
+}
+
+/** {@code xs[i]}: an element of an array, counted from 0. */
+class IndexExpr extends Expr {
+    public final Expr array;
+    public final Expr index;
+
+    public IndexExpr(Expr array, Expr index) {
+        this.array = array;
+        this.index = index;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        array.resolve(symbols);
+        index.resolve(symbols);
+    }
+
+    @Override
+    public int exec(Context context) {
+        NumArray values = CallExpr.array(array, context);
+        return values.load(values.index(index.exec(context), context), context);
+    }
+}
+
+/** A call of one of the built-in array functions. */
+class CallExpr extends Expr {
+    static final Map<String, Integer> FUNCTIONS = Map.of(
+        "len", 1, "sum", 1, "min", 1, "max", 1, "scale", 2, "add", 2, "load", 1);
+
+    public final String name;
+    public final List<Expr> args;
+
+    private CallExpr(String name, List<Expr> args) {
+        this.name = name;
+        this.args = args;
+    }
+
+    /** The call, or an expression that fails with the reason when the arguments do not fit the function. */
+    static Expr of(String name, List<Expr> args) {
+        int arity = FUNCTIONS.get(name);
+        if (args.size() != arity) {
+            return new FailExpr(name + "() takes " + arity + (arity == 1 ? " argument" : " arguments"));
+        }
+        return new CallExpr(name, args);
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        for (Expr arg : args) {
+            arg.resolve(symbols);
+        }
+    }
+
+    @Override
+    public int exec(Context context) {
+        switch (name) {
+            case "len":
+                context.lng = array(args.get(0), context).size();
+                context.num = context.lng;
+                return Value.INT;
+            case "sum":
+                return array(args.get(0), context).sum(context);
+            case "min":
+            case "max":
+                return array(args.get(0), context).extreme(name.equals("max"), context);
+            case "scale": {
+                NumArray values = array(args.get(0), context);
+                int tag = args.get(1).exec(context);
+                if (Value.type(tag) != Value.NUM) {
+                    throw Value.notANumber(tag, context.num, context.bln, context.str);
+                }
+                context.arr = values.scale(tag, context);
+                return Value.ARR;
+            }
+            case "add": {
+                NumArray values = array(args.get(0), context);
+                context.arr = values.add(array(args.get(1), context));
+                return Value.ARR;
+            }
+            default:
+                context.arr = load(args.get(0), context);
+                return Value.ARR;
+        }
+    }
+
+    /** Evaluates an operand that has to be an array. */
+    static NumArray array(Expr expr, Context context) {
+        if (expr.exec(context) != Value.ARR) {
+            throw new ArrayException("Expected an array" + (expr instanceof VariableExpr ? " for '" + ((VariableExpr) expr).name + "'" : ""));
+        }
+        return context.arr;
+    }
+
+    /** Reads every number in a file, separated by whitespace or commas. */
+    private static NumArray load(Expr path, Context context) {
+        if (path.exec(context) != Value.STR) {
+            throw new ArrayException("load() takes a file name");
+        }
+        String file = context.str;
+        String text;
+        try {
+            text = Files.readString(Path.of(file));
+        } catch (IOException | RuntimeException e) {
+            throw new ArrayException("Cannot load '" + file + "': " + e.getMessage());
+        }
+        return NumArray.parse(text, "'" + file + "'");
+    }
+}
+
+/**
+ * A subexpression whose variables its loop never writes. The first evaluation in each run of the loop is
+ * cached in the context; later ones load the cached value. Failed evaluations are not cached and fail again.
+ */
+class HoistedExpr extends Expr {
+    public final Expr target;
+    private final LoopNode.HoistScope scope;
+    private int slot = -1;
+
+    public HoistedExpr(Expr target, LoopNode.HoistScope scope) {
+        this.target = target;
+        this.scope = scope;
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        target.resolve(symbols);
+        if (slot < 0) {
+            slot = symbols.allocateCache();
+        }
+    }
+
+    @Override
+    public int exec(Context context) {
+        int tag = context.cached(slot, scope.id);
+        if (tag != Value.NONE) {
+            return tag;
+        }
+        tag = target.exec(context);
+        context.cache(slot, scope.id, tag);
+        return tag;
+    }
+}
+
+/**
+ * Compiles a resolved program into a flat int[] instruction stream for Vm. Conditions become
+ * conditional jumps with short-circuiting && and ||; stop and continue become jumps to the loop exit and top.
+ */
+class VmCompiler {
+    private final SymbolTable symbols;
+    private int[] code = new int[256];
+    private int length;
+    // Number constants: a Long for an integer literal, which runs as an INT, and a Double for any other.
+    private final List<Number> numbers = new ArrayList<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<Object, Integer> constants = new HashMap<>();
+    private final List<int[]> handlers = new ArrayList<>();
+    private final List<int[]> lines = new ArrayList<>();
+    private final List<AssignmentNode> sites = new ArrayList<>();
+    private int depth;
+    private int maxDepth;
+
+    private VmCompiler(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public static VmProgram compile(List<Node> program, SymbolTable symbols) {
+        VmCompiler compiler = new VmCompiler(symbols);
+        // Top-level statements are charged one at a time as each starts, as the tree charges them, so a step
+        // limit stops the program at the same statement.
+        for (Node node : program) {
+            compiler.statement(node, 1, -1, -1);
+        }
+        compiler.emit(Vm.HALT);
+        return compiler.finish();
+    }
+
+    private VmProgram finish() {
+        double[] numberPool = new double[numbers.size()];
+        long[] longPool = new long[numbers.size()];
+        byte[] numberTags = new byte[numbers.size()];
+        for (int i = 0; i < numberPool.length; i++) {
+            Number number = numbers.get(i);
+            numberPool[i] = number.doubleValue();
+            longPool[i] = number.longValue();
+            numberTags[i] = (byte) (number instanceof Long ? Value.INT : Value.NUM);
+        }
+        int[] siteTypes = new int[sites.size()];
+        String[] siteNames = new String[sites.size()];
+        for (int i = 0; i < siteTypes.length; i++) {
+            siteTypes[i] = sites.get(i).declaredType;
+            siteNames[i] = sites.get(i).varName;
+        }
+        int[] handlerTable = new int[handlers.size() * 4];
+        for (int i = 0; i < handlers.size(); i++) {
+            System.arraycopy(handlers.get(i), 0, handlerTable, i * 4, 4);
+        }
+        int[] lineTable = new int[lines.size() * 3];
+        for (int i = 0; i < lines.size(); i++) {
+            System.arraycopy(lines.get(i), 0, lineTable, i * 3, 3);
+        }
+        return new VmProgram(Arrays.copyOf(code, length), numberPool, longPool, numberTags, strings.toArray(new String[0]),
+            handlerTable, lineTable, siteTypes, siteNames, symbols, Math.max(maxDepth, 1));
+    }
+
+    // ---- statements ----
+
+    /** loopTop and loopExit are the labels of the innermost enclosing loop, or -1 at the top level. */
+    private void statements(List<Node> nodes, int loopTop, int loopExit) {
+        for (Node node : nodes) {
+            statement(node, 0, loopTop, loopExit);
+        }
+    }
+
+    /** Compiles a statement that first charges {@code steps}, and records the range of its code for errors. */
+    private void statement(Node node, int steps, int loopTop, int loopExit) {
+        int start = length;
+        if (steps > 0) {
+            emit(Vm.STEP, steps);
+        }
+        statement(node, loopTop, loopExit);
+        if (node.line > 0 && length > start) {
+            // Inner statements are recorded first, so the first range holding a pc is the innermost.
+            lines.add(new int[] {start, length, node.line});
+        }
+    }
+
+    private void statement(Node node, int loopTop, int loopExit) {
+        if (node instanceof PrintNode) {
+            PrintNode print = (PrintNode) node;
+            for (int i = 0; i < print.args.size(); i++) {
+                emit(Vm.PRINT, print.slot(i), string(PrintNode.literalText(print.args.get(i))));
+            }
+            emit(Vm.PRINT_END);
+        } else if (node instanceof InputNode) {
+            InputNode input = (InputNode) node;
+            if (Value.typeOf(input.type) == Value.ARR) {
+                throw new UnsupportedOperationException("arrays");
+            }
+            emit(Vm.INPUT, input.slot(), Value.typeOf(input.type), string(input.prompt), string(input.varName));
+        } else if (node instanceof AssignmentNode) {
+            assignment((AssignmentNode) node);
+        } else if (node instanceof IfNode) {
+            int end = label();
+            for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                int next = label();
+                if (block.condition != null) {
+                    condition(block.condition, next);
+                }
+                statements(block.body, loopTop, loopExit);
+                stepJump(end, block.body.size());
+                mark(next);
+            }
+            mark(end);
+        } else if (node instanceof LoopNode) {
+            LoopNode loop = (LoopNode) node;
+            int top = label();
+            int exit = label();
+            mark(top);
+            condition(loop.condition, exit);
+            statements(loop.body, top, exit);
+            stepJump(top, loop.body.size() + 1);
+            mark(exit);
+        } else if (node instanceof StopNode && loopExit >= 0) {
+            jump(Vm.JUMP, loopExit);
+        } else if (node instanceof ContinueNode && loopTop >= 0) {
+            stepJump(loopTop, 1);
+        } else {
+            throw new UnsupportedOperationException("unsupported statement " + node.getClass().getSimpleName());
+        }
+    }
+
+    private void assignment(AssignmentNode node) {
+        if (node.declaredType == Value.ARR) {
+            throw new UnsupportedOperationException("arrays");
+        }
+        int site = sites.size();
+        sites.add(node);
+        int appended = -1;
+        if (node.suffixes() != null) {
+            // `s = s + a + b` on a string appends in place; anything else takes the general path below.
+            int general = label();
+            appended = label();
+            jump(Vm.APPENDABLE, general);
+            emit(node.slot(), site);
+            for (Expr suffix : node.suffixes()) {
+                value(suffix);
+            }
+            emit(Vm.APPEND, node.slot(), site, node.suffixes().size());
+            pop(node.suffixes().size());
+            jump(Vm.JUMP, appended);
+            mark(general);
+        }
+        switch (node.declaredType) {
+            case Value.NUM: {
+                int start = length;
+                value(node.expression);
+                int done = label();
+                jump(Vm.JUMP, done);
+                int handler = length;
+                handlers.add(new int[] {start, handler, handler, 0});
+                emit(Vm.RAISE, string("Invalid number assignment to '" + node.varName + "'"));
+                mark(done);
+                emit(Vm.CHECK_NUM, string("Type mismatch: expected a number for variable '" + node.varName + "'"));
+                break;
+            }
+            case Value.BLN: {
+                int otherwise = label();
+                int done = label();
+                condition(node.expression, otherwise);
+                emit(Vm.PUSH_BLN, 1);
+                push();
+                jump(Vm.JUMP, done);
+                pop(1);
+                mark(otherwise);
+                emit(Vm.PUSH_BLN, 0);
+                push();
+                mark(done);
+                break;
+            }
+            case Value.STR:
+                value(node.expression);
+                emit(Vm.TO_STR, string("Invalid string assignment to '" + node.varName + "'"));
+                break;
+            default:
+                value(node.expression);
+        }
+        emit(Vm.STORE, node.slot(), site);
+        pop(1);
+        if (appended >= 0) {
+            mark(appended);
+        }
+    }
+
+    // ---- expressions ----
+
+    /** Jumps to whenFalse unless the condition is truthy. */
+    private void condition(Expr expr, int whenFalse) {
+        branch(expr, false, whenFalse, true, -1);
+    }
+
+    /**
+     * Emits code that jumps to target when expr evaluates to jumpWhen. Operands of && and || must be
+     * booleans; a lone top-level condition only needs to be truthy.
+     */
+    private void branch(Expr expr, boolean jumpWhen, int target, boolean truthy, int operator) {
+        if (expr instanceof BinaryExpr && (((BinaryExpr) expr).op == BinaryExpr.AND || ((BinaryExpr) expr).op == BinaryExpr.OR)) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            boolean and = binary.op == BinaryExpr.AND;
+            if (and != jumpWhen) {
+                // a && b jumping when false, or a || b jumping when true: either operand decides.
+                branch(binary.left, jumpWhen, target, false, binary.op);
+                branch(binary.right, jumpWhen, target, false, binary.op);
+            } else {
+                int skip = label();
+                branch(binary.left, !jumpWhen, skip, false, binary.op);
+                branch(binary.right, jumpWhen, target, false, binary.op);
+                mark(skip);
+            }
+            return;
+        }
+        if (expr instanceof BinaryExpr && ((BinaryExpr) expr).op >= BinaryExpr.GT) {
+            // A comparison always yields a boolean, so test and branch in one instruction.
+            BinaryExpr comparison = (BinaryExpr) expr;
+            value(comparison.left);
+            if (isNumber(comparison.right)) {
+                jump(Vm.COMPARE_CONST_JUMP, target);
+                emit(comparison.op, jumpWhen ? 1 : 0, number((LiteralExpr) comparison.right));
+            } else {
+                value(comparison.right);
+                jump(Vm.COMPARE_JUMP, target);
+                emit(comparison.op, jumpWhen ? 1 : 0);
+                pop(1);
+            }
+            pop(1);
+            return;
+        }
+        value(expr);
+        if (truthy) {
+            jump(jumpWhen ? Vm.JUMP_TRUE : Vm.JUMP_FALSE, target);
+        } else {
+            jump(jumpWhen ? Vm.JUMP_TRUE_BLN : Vm.JUMP_FALSE_BLN, target);
+            emit(operator);
+        }
+        pop(1);
+    }
+
+    private void value(Expr expr) {
+        if (expr instanceof LiteralExpr) {
+            LiteralExpr literal = (LiteralExpr) expr;
+            switch (literal.tag) {
+                case Value.NUM: emit(Vm.PUSH_NUM, number(literal)); break;
+                case Value.BLN: emit(Vm.PUSH_BLN, literal.bln ? 1 : 0); break;
+                default: emit(Vm.PUSH_STR, string(literal.str));
+            }
+            push();
+        } else if (expr instanceof VariableExpr) {
+            emit(Vm.LOAD, ((VariableExpr) expr).slot());
+            push();
+        } else if (expr instanceof UnaryExpr) {
+            value(((UnaryExpr) expr).operand);
+            emit(Vm.UNARY, ((UnaryExpr) expr).negate ? 1 : 0);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            if (binary.op == BinaryExpr.AND || binary.op == BinaryExpr.OR) {
+                int done = label();
+                value(binary.left);
+                jump(binary.op == BinaryExpr.AND ? Vm.JUMP_FALSE_OR_POP : Vm.JUMP_TRUE_OR_POP, done);
+                emit(binary.op);
+                pop(1);
+                value(binary.right);
+                emit(Vm.CHECK_BLN, binary.op);
+                mark(done);
+            } else if (isNumber(binary.right)) {
+                value(binary.left);
+                emit(Vm.BINARY_CONST, binary.op, number((LiteralExpr) binary.right));
+            } else if (binary.right instanceof VariableExpr) {
+                value(binary.left);
+                emit(Vm.BINARY_VAR, binary.op, ((VariableExpr) binary.right).slot());
+            } else {
+                value(binary.left);
+                value(binary.right);
+                emit(Vm.BINARY, binary.op);
+                pop(1);
+            }
+        } else if (expr instanceof FailExpr) {
+            emit(Vm.RAISE, string(((FailExpr) expr).message));
+            push();
+        } else if (expr instanceof MalformedExpr) {
+            MalformedExpr malformed = (MalformedExpr) expr;
+            for (Expr part : malformed.parts) {
+                value(part);
+            }
+            emit(Vm.MALFORMED, malformed.parts.size(), malformed.underflow ? 1 : 0);
+            pop(malformed.parts.size());
+            push();
+        } else {
+            throw new UnsupportedOperationException("unsupported expression " + expr.getClass().getSimpleName());
+        }
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof LiteralExpr && ((LiteralExpr) expr).tag == Value.NUM;
+    }
+
+    // ---- emission ----
+
+    private final List<Integer> labels = new ArrayList<>();
+    private final List<List<Integer>> fixups = new ArrayList<>();
+
+    private int label() {
+        labels.add(-1);
+        fixups.add(new ArrayList<>());
+        return labels.size() - 1;
+    }
+
+    private void mark(int label) {
+        labels.set(label, length);
+        for (int at : fixups.get(label)) {
+            code[at] = length;
+        }
+    }
+
+    private void jump(int opcode, int label) {
+        emit(opcode, 0);
+        if (labels.get(label) >= 0) {
+            code[length - 1] = labels.get(label);
+        } else {
+            fixups.get(label).add(length - 1);
+        }
+    }
+
+    /**
+     * A jump that also charges {@code steps} to the run's budget. Loop iterations and branches are charged
+     * by the jumps that already end them, so counting steps adds no instructions to a loop.
+     */
+    private void stepJump(int label, int steps) {
+        if (steps == 0) {
+            jump(Vm.JUMP, label);
+            return;
+        }
+        jump(Vm.STEP_JUMP, label);
+        emit(steps);
+    }
+
+    private void emit(int... words) {
+        if (length + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + words.length));
+        }
+        System.arraycopy(words, 0, code, length, words.length);
+        length += words.length;
+    }
+
+    private void push() {
+        maxDepth = Math.max(maxDepth, ++depth);
+    }
+
+    private void pop(int count) {
+        depth -= count;
+    }
+
+    private int number(LiteralExpr literal) {
+        Number value = literal.exact ? (Number) literal.lng : (Number) literal.num;
+        Integer index = constants.get(value);
+        if (index == null) {
+            index = numbers.size();
+            numbers.add(value);
+            constants.put(value, index);
+        }
+        return index;
+    }
+
+    private int string(String value) {
+        Integer index = constants.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            constants.put(value, index);
+        }
+        return index;
+    }
+}
+
+/** A compiled program: instructions, constant pools and the exception-handler table. */
+class VmProgram {
+    final int[] code;
+    final double[] numbers;
+    /** For each number constant, INT or NUM, and the long value of an INT. */
+    final long[] longs;
+    final byte[] numberTags;
+    final String[] strings;
+    /** Quads of (start, end, handler, stack depth); an error inside [start, end) resumes at handler. */
+    final int[] handlers;
+    /** Triples of (start, end, line) for each statement, innermost first. */
+    final int[] lines;
+    final int[] siteTypes;
+    final String[] siteNames;
+    final SymbolTable symbols;
+    final int maxStack;
+
+    VmProgram(int[] code, double[] numbers, long[] longs, byte[] numberTags, String[] strings, int[] handlers,
+              int[] lines, int[] siteTypes, String[] siteNames, SymbolTable symbols, int maxStack) {
+        this.code = code;
+        this.numbers = numbers;
+        this.longs = longs;
+        this.numberTags = numberTags;
+        this.strings = strings;
+        this.handlers = handlers;
+        this.lines = lines;
+        this.siteTypes = siteTypes;
+        this.siteNames = siteNames;
+        this.symbols = symbols;
+        this.maxStack = maxStack;
+    }
+
+    public void run(Context context) {
+        Vm.run(this, context);
+    }
+
+    /** The source line of the innermost statement containing pc, or 0. */
+    int lineAt(int pc) {
+        for (int i = 0; i < lines.length; i += 3) {
+            if (pc >= lines[i] && pc < lines[i + 1]) {
+                return lines[i + 2];
+            }
+        }
+        return 0;
+    }
+}
+
+/** Single dispatch-loop interpreter for VmProgram, operating on a typed value stack. */
+final class Vm {
+    static final int HALT = 0;
+    static final int PUSH_NUM = 1;
+    static final int PUSH_STR = 2;
+    static final int PUSH_BLN = 3;
+    static final int LOAD = 4;
+    static final int UNARY = 5;
+    static final int BINARY = 6;
+    static final int JUMP = 7;
+    static final int JUMP_FALSE = 8;
+    static final int JUMP_TRUE = 9;
+    static final int JUMP_FALSE_BLN = 10;
+    static final int JUMP_TRUE_BLN = 11;
+    static final int JUMP_FALSE_OR_POP = 12;
+    static final int JUMP_TRUE_OR_POP = 13;
+    static final int CHECK_BLN = 14;
+    static final int CHECK_NUM = 15;
+    static final int TO_STR = 16;
+    static final int STORE = 17;
+    static final int INPUT = 18;
+    static final int PRINT = 19;
+    static final int PRINT_END = 20;
+    static final int RAISE = 21;
+    static final int MALFORMED = 22;
+    // Superinstructions: an operator whose right operand is a constant or variable, and compare-and-branch.
+    static final int BINARY_CONST = 24;
+    static final int BINARY_VAR = 25;
+    static final int COMPARE_JUMP = 26;
+    static final int COMPARE_CONST_JUMP = 27;
+    // String building: test whether an assignment can append to its variable, then append the operands.
+    static final int APPENDABLE = 28;
+    static final int APPEND = 29;
+    // Step counting: charge the top-level statements, and jump while charging a loop iteration or branch.
+    static final int STEP = 30;
+    static final int STEP_JUMP = 31;
+
+    private Vm() {
+    }
+
+    static void run(VmProgram program, Context context) {
+        int[] code = program.code;
+        byte[] tags = new byte[program.maxStack];
+        double[] nums = new double[program.maxStack];
+        // The exact value of an INT, whose nums entry holds the nearest double.
+        long[] lngs = new long[program.maxStack];
+        String[] strs = new String[program.maxStack];
+        int[] siteTypes = program.siteTypes.clone();
+        int sp = 0;
+        int pc = 0;
+        int at = 0;
+
+        while (true) {
+            try {
+                while (true) {
+                    at = pc;
+                    switch (code[pc++]) {
+                        case HALT:
+                            return;
+                        case PUSH_NUM: {
+                            int index = code[pc++];
+                            tags[sp] = program.numberTags[index];
+                            lngs[sp] = program.longs[index];
+                            nums[sp++] = program.numbers[index];
+                            break;
+                        }
+                        case PUSH_STR:
+                            tags[sp] = Value.STR;
+                            strs[sp++] = program.strings[code[pc++]];
+                            break;
+                        case PUSH_BLN:
+                            tags[sp] = Value.BLN;
+                            nums[sp++] = code[pc++];
+                            break;
+                        case LOAD: {
+                            int slot = code[pc++];
+                            int tag = context.valueTag(slot);
+                            if (tag == Value.NONE) {
+                                throw new InterpreterException("Unexpected token in expression: " + program.symbols.name(slot));
+                            }
+                            tags[sp] = (byte) tag;
+                            nums[sp] = context.num(slot);
+                            if (tag == Value.STR) {
+                                strs[sp] = context.str(slot);
+                            } else if (tag == Value.INT) {
+                                lngs[sp] = context.lng(slot);
+                            }
+                            sp++;
+                            break;
+                        }
+                        case UNARY:
+                            sp = pop(tags, nums, lngs, strs, sp, context);
+                            sp = push(tags, nums, lngs, strs, sp, UnaryExpr.apply(code[pc++] != 0, context, tags[sp]), context);
+                            break;
+                        case BINARY: {
+                            int op = code[pc++];
+                            int b = sp - 1;
+                            // Fast path for the common all-numeric case; the generic path below owns errors.
+                            if (numbers(op, tags, nums, lngs, b - 1, tags[b], nums[b], lngs[b], context)) {
+                                sp--;
+                                break;
+                            }
+                            sp = pop(tags, nums, lngs, strs, sp, context);
+                            int tb = tags[sp];
+                            int a = --sp;
+                            int tag = BinaryExpr.combine(op, context, tags[a], nums[a], nums[a] != 0, strs[a], lngs[a], tb);
+                            sp = push(tags, nums, lngs, strs, sp, tag, context);
+                            break;
+                        }
+                        case BINARY_CONST: {
+                            int op = code[pc++];
+                            int index = code[pc++];
+                            int tb = program.numberTags[index];
+                            int a = sp - 1;
+                            if (numbers(op, tags, nums, lngs, a, tb, program.numbers[index], program.longs[index], context)) {
+                                break;
+                            }
+                            context.num = program.numbers[index];
+                            context.lng = program.longs[index];
+                            int tag = BinaryExpr.combine(op, context, tags[a], nums[a], nums[a] != 0, strs[a], lngs[a], tb);
+                            sp = push(tags, nums, lngs, strs, a, tag, context);
+                            break;
+                        }
+                        case BINARY_VAR: {
+                            int op = code[pc++];
+                            int slot = code[pc++];
+                            int tb = context.valueTag(slot);
+                            if (tb == Value.NONE) {
+                                throw new InterpreterException("Unexpected token in expression: " + program.symbols.name(slot));
+                            }
+                            int a = sp - 1;
+                            if (numbers(op, tags, nums, lngs, a, tb, context.num(slot), tb == Value.INT ? context.lng(slot) : 0, context)) {
+                                break;
+                            }
+                            context.load(slot);
+                            int tag = BinaryExpr.combine(op, context, tags[a], nums[a], nums[a] != 0, strs[a], lngs[a], tb);
+                            sp = push(tags, nums, lngs, strs, a, tag, context);
+                            break;
+                        }
+                        case COMPARE_JUMP:
+                        case COMPARE_CONST_JUMP: {
+                            int op = code[pc + 1];
+                            boolean jumpWhen = code[pc + 2] != 0;
+                            int a;
+                            int tb;
+                            if (code[at] == COMPARE_CONST_JUMP) {
+                                a = --sp;
+                                int index = code[pc + 3];
+                                tb = program.numberTags[index];
+                                context.num = program.numbers[index];
+                                context.lng = program.longs[index];
+                            } else {
+                                sp -= 2;
+                                a = sp;
+                                tb = tags[sp + 1];
+                                context.num = nums[sp + 1];
+                                if (tb == Value.STR) {
+                                    context.str = strs[sp + 1];
+                                } else if (tb == Value.INT) {
+                                    context.lng = lngs[sp + 1];
+                                }
+                            }
+                            int ta = tags[a];
+                            boolean result;
+                            if (ta == Value.INT && tb == Value.INT) {
+                                result = ExpressionEvaluator.compare(op, lngs[a], context.lng);
+                            } else if (Value.type(ta) == Value.NUM && Value.type(tb) == Value.NUM) {
+                                result = ExpressionEvaluator.compare(op, nums[a], context.num);
+                            } else {
+                                context.bln = context.num != 0;
+                                BinaryExpr.combine(op, context, ta, nums[a], nums[a] != 0, strs[a], lngs[a], tb);
+                                result = context.bln;
+                            }
+                            pc = result == jumpWhen ? code[pc] : pc + (code[at] == COMPARE_CONST_JUMP ? 4 : 3);
+                            break;
+                        }
+                        case JUMP:
+                            pc = code[pc];
+                            break;
+                        case STEP:
+                            context.step(code[pc++]);
+                            break;
+                        case STEP_JUMP:
+                            context.step(code[pc + 1]);
+                            pc = code[pc];
+                            break;
+                        case JUMP_FALSE:
+                        case JUMP_TRUE: {
+                            boolean jumpWhen = code[at] == JUMP_TRUE;
+                            int tag = tags[--sp];
+                            boolean truthy = (tag == Value.BLN || Value.type(tag) == Value.NUM) && nums[sp] != 0;
+                            pc = truthy == jumpWhen ? code[pc] : pc + 1;
+                            break;
+                        }
+                        case JUMP_FALSE_BLN:
+                        case JUMP_TRUE_BLN: {
+                            boolean jumpWhen = code[at] == JUMP_TRUE_BLN;
+                            sp--;
+                            requireBoolean(tags[sp], code[pc + 1]);
+                            pc = (nums[sp] != 0) == jumpWhen ? code[pc] : pc + 2;
+                            break;
+                        }
+                        case JUMP_FALSE_OR_POP:
+                        case JUMP_TRUE_OR_POP: {
+                            boolean jumpWhen = code[at] == JUMP_TRUE_OR_POP;
+                            requireBoolean(tags[sp - 1], code[pc + 1]);
+                            if ((nums[sp - 1] != 0) == jumpWhen) {
+                                pc = code[pc];
+                            } else {
+                                sp--;
+                                pc += 2;
+                            }
+                            break;
+                        }
+                        case CHECK_BLN:
+                            requireBoolean(tags[sp - 1], code[pc++]);
+                            break;
+                        case CHECK_NUM:
+                            if (Value.type(tags[sp - 1]) != Value.NUM) {
+                                throw new InterpreterException(program.strings[code[pc]]);
+                            }
+                            pc++;
+                            break;
+                        case TO_STR: {
+                            int top = sp - 1;
+                            if (tags[top] == Value.NONE) {
+                                throw new InterpreterException(program.strings[code[pc]]);
+                            }
+                            if (tags[top] != Value.STR) {
+                                strs[top] = format(tags, nums, lngs, strs, top);
+                                tags[top] = Value.STR;
+                            }
+                            pc++;
+                            break;
+                        }
+                        case STORE: {
+                            int slot = code[pc++];
+                            int site = code[pc++];
+                            sp = pop(tags, nums, lngs, strs, sp, context);
+                            int result = tags[sp];
+                            int declaredType = siteTypes[site];
+                            if (Value.type(result) == Value.NUM && declaredType != Value.STR && declaredType != Value.BLN
+                                    && (context.tag(slot) == Value.NUM || context.tag(slot) == Value.NONE)) {
+                                siteTypes[site] = Value.NUM;
+                                if (result == Value.INT) {
+                                    context.setInt(slot, lngs[sp]);
+                                } else {
+                                    context.setNum(slot, nums[sp]);
+                                }
+                                break;
+                            }
+                            if (declaredType == Value.NONE) {
+                                declaredType = result == Value.STR || result == Value.BLN ? result : Value.NUM;
+                                siteTypes[site] = declaredType;
+                            }
+                            AssignmentNode.store(context, slot, program.siteNames[site], declaredType, result);
+                            break;
+                        }
+                        case APPENDABLE: {
+                            int declaredType = siteTypes[code[pc + 2]];
+                            boolean appendable = context.tag(code[pc + 1]) == Value.STR
+                                && declaredType != Value.NUM && declaredType != Value.BLN;
+                            pc = appendable ? pc + 3 : code[pc];
+                            break;
+                        }
+                        case APPEND: {
+                            StringBuilder text = context.builder(code[pc++]);
+                            siteTypes[code[pc++]] = Value.STR;
+                            int count = code[pc++];
+                            sp -= count;
+                            for (int i = sp; i < sp + count; i++) {
+                                text.append(format(tags, nums, lngs, strs, i));
+                            }
+                            break;
+                        }
+                        case INPUT: {
+                            int slot = code[pc++];
+                            int type = code[pc++];
+                            String prompt = program.strings[code[pc++]];
+                            String varName = program.strings[code[pc++]];
+                            if (type == Value.NUM) {
+                                InputNode.storeNum(context, slot, InputNode.readNum(context, prompt, varName));
+                            } else if (type == Value.BLN) {
+                                context.setBln(slot, InputNode.readBln(context, prompt));
+                            } else {
+                                context.setStr(slot, InputNode.readStr(context, prompt));
+                            }
+                            break;
+                        }
+                        case PRINT: {
+                            int slot = code[pc++];
+                            String text = program.strings[code[pc++]];
+                            int tag = slot >= 0 ? context.load(slot) : Value.NONE;
+                            if (tag == Value.INT) {
+                                PrintNode.printLong(context, context.lng);
+                            } else if (tag == Value.NUM) {
+                                PrintNode.printNum(context, context.num);
+                            } else if (tag == Value.BLN) {
+                                PrintNode.printBln(context, context.bln);
+                            } else if (tag == Value.STR) {
+                                PrintNode.printStr(context, context.str);
+                            } else {
+                                PrintNode.printStr(context, text);
+                            }
+                            break;
+                        }
+                        case PRINT_END:
+                            PrintNode.endLine(context);
+                            break;
+                        case RAISE:
+                            throw new InterpreterException(program.strings[code[pc]]);
+                        case MALFORMED: {
+                            int count = code[pc++];
+                            boolean underflow = code[pc++] != 0;
+                            if (underflow) {
+                                throw new InterpreterException("Malformed expression");
+                            }
+                            sp -= count;
+                            tags[sp++] = Value.NONE;
+                            break;
+                        }
+                        default:
+                            throw new IllegalStateException("bad opcode " + code[at] + " at " + at);
+                    }
+                }
+            } catch (RuntimeException e) {
+                int handler = findHandler(program.handlers, at);
+                if (handler < 0) {
+                    throw e instanceof InterpreterException ? ((InterpreterException) e).at(program.lineAt(at)) : e;
+                }
+                pc = program.handlers[handler + 2];
+                sp = program.handlers[handler + 3];
+            }
+        }
+    }
+
+    /**
+     * Applies op in place to the number at a and a right operand y, with ly its long value when tb is INT. Two
+     * INTs go through BinaryExpr.exact() as in the tree, falling back to doubles. Returns false, having done
+     * nothing, for operands or a division that the generic path has to handle.
+     */
+    private static boolean numbers(int op, byte[] tags, double[] nums, long[] lngs, int a, int tb, double y, long ly,
+                                   Context context) {
+        int ta = tags[a];
+        if (ta == Value.INT && tb == Value.INT) {
+            int tag = BinaryExpr.exact(op, context, lngs[a], ly);
+            if (tag != Value.NONE) {
+                tags[a] = (byte) tag;
+                nums[a] = tag == Value.BLN ? (context.bln ? 1 : 0) : context.num;
+                lngs[a] = context.lng;
+                return true;
+            }
+        } else if (Value.type(ta) != Value.NUM || Value.type(tb) != Value.NUM) {
+            return false;
+        }
+        if (op == BinaryExpr.DIV) {
+            return false;
+        }
+        if (op >= BinaryExpr.GT) {
+            tags[a] = Value.BLN;
+            nums[a] = ExpressionEvaluator.compare(op, nums[a], y) ? 1 : 0;
+        } else {
+            tags[a] = Value.NUM;
+            nums[a] = arithmetic(op, nums[a], y);
+        }
+        return true;
+    }
+
+    /** A stack entry as text, as joined to a string. */
+    private static String format(byte[] tags, double[] nums, long[] lngs, String[] strs, int i) {
+        return tags[i] == Value.INT ? Value.format(lngs[i]) : Value.format(tags[i], nums[i], nums[i] != 0, strs[i]);
+    }
+
+    /** Arithmetic on two numbers for every operator except division, which checks for zero. */
+    private static double arithmetic(int op, double x, double y) {
+        switch (op) {
+            case BinaryExpr.ADD: return x + y;
+            case BinaryExpr.SUB: return x - y;
+            case BinaryExpr.MUL: return x * y;
+            case BinaryExpr.MOD: return x % y;
+            default: return Math.pow(x, y);
+        }
+    }
+
+    private static int findHandler(int[] handlers, int pc) {
+        for (int i = 0; i < handlers.length; i += 4) {
+            if (pc >= handlers[i] && pc < handlers[i + 1]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void requireBoolean(int tag, int op) {
+        if (tag != Value.BLN) {
+            throw new InterpreterException("Expected a boolean for '" + BinaryExpr.symbol(op) + "'");
+        }
+    }
+
+    /** Pops the top of the stack into the context registers and returns the new stack pointer. */
+    private static int pop(byte[] tags, double[] nums, long[] lngs, String[] strs, int sp, Context context) {
+        sp--;
+        context.num = nums[sp];
+        context.bln = nums[sp] != 0;
+        if (tags[sp] == Value.STR) {
+            context.str = strs[sp];
+        } else if (tags[sp] == Value.INT) {
+            context.lng = lngs[sp];
+        }
+        return sp;
+    }
+
+    /** Pushes the context registers holding a value of the given tag. */
+    private static int push(byte[] tags, double[] nums, long[] lngs, String[] strs, int sp, int tag, Context context) {
+        tags[sp] = (byte) tag;
+        nums[sp] = tag == Value.BLN ? (context.bln ? 1 : 0) : context.num;
+        if (tag == Value.STR) {
+            strs[sp] = context.str;
+        } else if (tag == Value.INT) {
+            lngs[sp] = context.lng;
+        }
+        return sp + 1;
+    }
+}
+
+/**
+ * Compiles a resolved program into a single static method of a hidden class. Sting variables
+ * become JVM locals typed by their (single) static type, a number as a long and a double (see
+ * JvmRuntime), loops become backward branches and
+ * show/roi become static calls into the same helpers the tree-walker uses. Programs outside the
+ * statically typed subset are rejected with UnsupportedOperationException so the caller can fall
+ * back to the interpreter.
+ */
+class JvmCompiler {
+    private static final String CONTEXT = "Context";
+    private static final String STRING = "java/lang/String";
+    private static final String BUILDER = "java/lang/StringBuilder";
+    private static final String RUNTIME = "JvmRuntime";
+
+    private final List<Node> program;
+    private final SymbolTable symbols;
+    private final ClassFileBuilder out = new ClassFileBuilder();
+    private int[] types;
+    private int[] valueLocals;
+    private int[] definedLocals;
+    // String variables that are appended to also get a StringBuilder local; their String local then caches
+    // the text from the last read, or is null after an append. -1 for every other variable.
+    private int[] builderLocals;
+    private boolean[] appended;
+    private final List<Object[]> located = new ArrayList<>();
+
+    private JvmCompiler(List<Node> program, SymbolTable symbols) {
+        this.program = program;
+        this.symbols = symbols;
+    }
+
+    public static JvmProgram compile(List<Node> program, SymbolTable symbols) {
+        return new JvmCompiler(program, symbols).compile();
+    }
+
+    private JvmProgram compile() {
+        inferTypes();
+        int locals = allocateLocals();
+
+        for (int slot = 0; slot < types.length; slot++) {
+            switch (types[slot]) {
+                case Value.NUM:
+                    out.op(ClassFileBuilder.LCONST_0, 2);
+                    out.local(ClassFileBuilder.LSTORE, valueLocals[slot], -2);
+                    out.op(ClassFileBuilder.DCONST_0, 2);
+                    out.local(ClassFileBuilder.DSTORE, valueLocals[slot] + 2, -2);
+                    break;
+                case Value.BLN: out.op(ClassFileBuilder.ICONST_0, 1); out.local(ClassFileBuilder.ISTORE, valueLocals[slot], -1); break;
+                default: out.op(ClassFileBuilder.ACONST_NULL, 1); out.local(ClassFileBuilder.ASTORE, valueLocals[slot], -1);
+            }
+            out.op(ClassFileBuilder.ICONST_0, 1);
+            out.local(ClassFileBuilder.ISTORE, definedLocals[slot], -1);
+            if (builderLocals[slot] >= 0) {
+                out.op(ClassFileBuilder.ACONST_NULL, 1);
+                out.local(ClassFileBuilder.ASTORE, builderLocals[slot], -1);
+            }
+        }
+
+        // Top-level statements are charged one at a time as each starts, as the tree charges them, so a step
+        // limit stops the program at the same statement.
+        for (Node node : program) {
+            statement(node, 1, null, null);
+        }
+        writeBack();
+        out.op(ClassFileBuilder.RETURN, 0);
+        locators();
+
+        byte[] bytes = out.toClassFile("StingProgram", "run", "(L" + CONTEXT + ";)V", locals);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle run = lookup.findStatic(lookup.lookupClass(), "run",
+                MethodType.methodType(void.class, Context.class));
+            return new JvmProgram(run);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedOperationException("generated class was rejected: " + e.getMessage(), e);
+        }
+    }
+
+    // ---- static typing ----
+
+    /**
+     * Gives every variable the one type all of its assignments agree on. A variable whose
+     * assignments disagree, or whose type depends on itself, makes the program unsupported.
+     */
+    private void inferTypes() {
+        List<Node> sites = new ArrayList<>();
+        collectSites(program, sites);
+        types = new int[symbols.size()];
+        appended = new boolean[symbols.size()];
+        // Never-assigned variables throw on every read, so any type will do for the code around them.
+        Arrays.fill(types, Value.NUM);
+        for (Node site : sites) {
+            types[site instanceof InputNode ? ((InputNode) site).slot() : ((AssignmentNode) site).slot()] = Value.NONE;
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Node site : sites) {
+                int slot;
+                int type;
+                if (site instanceof InputNode) {
+                    InputNode input = (InputNode) site;
+                    slot = input.slot();
+                    type = Value.typeOf(input.type) == Value.NONE ? Value.STR : Value.typeOf(input.type);
+                } else {
+                    AssignmentNode assignment = (AssignmentNode) site;
+                    slot = assignment.slot();
+                    appended[slot] |= assignment.suffixes() != null;
+                    type = assignment.declaredType != Value.NONE ? assignment.declaredType : typeOf(assignment.expression);
+                }
+                if (type == Value.ARR) {
+                    throw new UnsupportedOperationException("arrays");
+                }
+                if (type == Value.NONE) {
+                    continue;
+                }
+                if (types[slot] == Value.NONE) {
+                    types[slot] = type;
+                    changed = true;
+                } else if (types[slot] != type) {
+                    throw new UnsupportedOperationException("variable '" + symbols.name(slot) + "' changes type");
+                }
+            }
+        }
+        for (int slot = 0; slot < types.length; slot++) {
+            if (types[slot] == Value.NONE) {
+                throw new UnsupportedOperationException("cannot type '" + symbols.name(slot) + "'");
+            }
+        }
+    }
+
+    private static void collectSites(List<Node> nodes, List<Node> sites) {
+        for (Node node : nodes) {
+            if (node instanceof AssignmentNode || node instanceof InputNode) {
+                sites.add(node);
+            } else if (node instanceof IfNode) {
+                for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                    collectSites(block.body, sites);
+                }
+            } else if (node instanceof LoopNode) {
+                collectSites(((LoopNode) node).body, sites);
+            } else if (!(node instanceof PrintNode) && !(node instanceof StopNode) && !(node instanceof ContinueNode)) {
+                throw new UnsupportedOperationException("unsupported statement " + node.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /** Static result type of an expression, or NONE while a variable it reads is still untyped. */
+    private int typeOf(Expr expr) {
+        if (expr instanceof LiteralExpr) {
+            return ((LiteralExpr) expr).tag;
+        }
+        if (expr instanceof VariableExpr) {
+            return types[((VariableExpr) expr).slot()];
+        }
+        if (expr instanceof UnaryExpr) {
+            return ((UnaryExpr) expr).negate ? Value.NUM : Value.BLN;
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            if (binary.op >= BinaryExpr.GT) {
+                return Value.BLN;
+            }
+            if (binary.op != BinaryExpr.ADD) {
+                return Value.NUM;
+            }
+            int left = typeOf(binary.left);
+            int right = typeOf(binary.right);
+            if (left == Value.STR || right == Value.STR) return Value.STR;
+            if (left == Value.NONE || right == Value.NONE) return Value.NONE;
+            return Value.NUM;
+        }
+        throw new UnsupportedOperationException("malformed expression");
+    }
+
+    private int allocateLocals() {
+        valueLocals = new int[types.length];
+        definedLocals = new int[types.length];
+        builderLocals = new int[types.length];
+        int next = 1;
+        for (int slot = 0; slot < types.length; slot++) {
+            valueLocals[slot] = next;
+            next += types[slot] == Value.NUM ? 4 : 1;
+            definedLocals[slot] = next++;
+            builderLocals[slot] = types[slot] == Value.STR && appended[slot] ? next++ : -1;
+        }
+        return next;
+    }
+
+    // ---- statements ----
+
+    /** loopTop and loopExit belong to the innermost enclosing loop, or are null at the top level. */
+    private void statements(List<Node> nodes, ClassFileBuilder.Label loopTop, ClassFileBuilder.Label loopExit) {
+        statements(nodes, loopTop, loopExit, 0);
+    }
+
+    /** Charges the steps of the whole list, plus {@code extra}, with one call before the first statement. */
+    private void statements(List<Node> nodes, ClassFileBuilder.Label loopTop, ClassFileBuilder.Label loopExit,
+            int extra) {
+        if (nodes.size() + extra > 0) {
+            step(nodes.size() + extra);
+        }
+        for (Node node : nodes) {
+            statement(node, 0, loopTop, loopExit);
+        }
+    }
+
+    /** Compiles a statement that first charges {@code steps}, and records the range of its code for errors. */
+    private void statement(Node node, int steps, ClassFileBuilder.Label loopTop, ClassFileBuilder.Label loopExit) {
+        ClassFileBuilder.Label start = out.label();
+        ClassFileBuilder.Label end = out.label();
+        out.mark(start);
+        int from = out.position();
+        if (steps > 0) {
+            step(steps);
+        }
+        statement(node, loopTop, loopExit);
+        out.mark(end);
+        if (node.line > 0 && out.position() > from) {
+            // Inner statements are added first, so their handlers come first in the exception table.
+            located.add(new Object[] {start, end, node.line});
+        }
+    }
+
+    private void step(int steps) {
+        out.op(ClassFileBuilder.ALOAD_0, 1);
+        out.pushInt(steps);
+        out.invokeVirtual(CONTEXT, "step", "(I)V", -2);
+    }
+
+    private void statement(Node node, ClassFileBuilder.Label loopTop, ClassFileBuilder.Label loopExit) {
+        if (node instanceof PrintNode) {
+            print((PrintNode) node);
+        } else if (node instanceof InputNode) {
+            input((InputNode) node);
+        } else if (node instanceof AssignmentNode) {
+            assignment((AssignmentNode) node);
+        } else if (node instanceof IfNode) {
+            ifChain((IfNode) node, loopTop, loopExit);
+        } else if (node instanceof LoopNode) {
+            loop((LoopNode) node);
+        } else if (node instanceof StopNode && loopExit != null) {
+            out.branch(ClassFileBuilder.GOTO, loopExit, 0);
+        } else if (node instanceof ContinueNode && loopTop != null) {
+            out.branch(ClassFileBuilder.GOTO, loopTop, 0);
+        } else {
+            throw new UnsupportedOperationException("unsupported statement " + node.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Emits, after the method body, one handler per statement that gives an escaping InterpreterException
+     * the statement's line. Handlers cost nothing until something is thrown.
+     */
+    private void locators() {
+        for (Object[] range : located) {
+            ClassFileBuilder.Label handler = out.label();
+            out.handler((ClassFileBuilder.Label) range[0], (ClassFileBuilder.Label) range[1], handler, "InterpreterException");
+            out.mark(handler);
+            out.setStack(1);
+            out.pushInt((Integer) range[2]);
+            out.invokeVirtual("InterpreterException", "at", "(I)LInterpreterException;", -1);
+            out.op(ClassFileBuilder.ATHROW, -1);
+        }
+    }
+
+    private void print(PrintNode node) {
+        for (int i = 0; i < node.args.size(); i++) {
+            int slot = node.slot(i);
+            String text = PrintNode.literalText(node.args.get(i));
+            ClassFileBuilder.Label literal = out.label();
+            ClassFileBuilder.Label next = out.label();
+            if (slot >= 0) {
+                out.local(ClassFileBuilder.ILOAD, definedLocals[slot], 1);
+                out.branch(ClassFileBuilder.IFEQ, literal, -1);
+                out.op(ClassFileBuilder.ALOAD_0, 1);
+                int type = loadVariable(slot);
+                out.invokeStatic(type == Value.NUM ? RUNTIME : "PrintNode", printer(type),
+                    "(L" + CONTEXT + ";" + descriptor(type) + ")V", -1 - width(type));
+                out.branch(ClassFileBuilder.GOTO, next, 0);
+            }
+            out.mark(literal);
+            out.op(ClassFileBuilder.ALOAD_0, 1);
+            out.ldc(text);
+            out.invokeStatic("PrintNode", "printStr", "(L" + CONTEXT + ";L" + STRING + ";)V", -2);
+            out.mark(next);
+        }
+        out.op(ClassFileBuilder.ALOAD_0, 1);
+        out.invokeStatic("PrintNode", "endLine", "(L" + CONTEXT + ";)V", -1);
+    }
+
+    private void input(InputNode node) {
+        int type = types[node.slot()];
+        out.op(ClassFileBuilder.ALOAD_0, 1);
+        out.ldc(node.prompt);
+        if (type == Value.NUM) {
+            out.ldc(node.varName);
+            out.invokeStatic(RUNTIME, "readNum", "(L" + CONTEXT + ";L" + STRING + ";L" + STRING + ";)J", -1);
+            number();
+        } else if (type == Value.BLN) {
+            out.invokeStatic("InputNode", "readBln", "(L" + CONTEXT + ";L" + STRING + ";)Z", -1);
+        } else {
+            out.invokeStatic("InputNode", "readStr", "(L" + CONTEXT + ";L" + STRING + ";)L" + STRING + ";", -1);
+        }
+        storeVariable(node.slot());
+    }
+
+    private void assignment(AssignmentNode node) {
+        int slot = node.slot();
+        int target = types[slot];
+        if (node.suffixes() != null && builderLocals[slot] >= 0) {
+            append(node);
+            return;
+        }
+        switch (node.declaredType) {
+            case Value.NUM: {
+                if (typeOf(node.expression) != Value.NUM) {
+                    throw new UnsupportedOperationException("'" + node.varName + "' is assigned a non-number");
+                }
+                ClassFileBuilder.Label start = out.label();
+                ClassFileBuilder.Label end = out.label();
+                ClassFileBuilder.Label handler = out.label();
+                ClassFileBuilder.Label done = out.label();
+                out.mark(start);
+                expression(node.expression);
+                out.mark(end);
+                out.branch(ClassFileBuilder.GOTO, done, 0);
+                out.handler(start, end, handler, "java/lang/Exception");
+                out.mark(handler);
+                out.setStack(1);
+                out.op(ClassFileBuilder.POP, -1);
+                out.ldc(node.varName);
+                out.invokeStatic(RUNTIME, "invalidNumber", "(L" + STRING + ";)Ljava/lang/RuntimeException;", 0);
+                out.op(ClassFileBuilder.ATHROW, -1);
+                out.setStack(4);
+                out.mark(done);
+                break;
+            }
+            case Value.BLN:
+                condition(node.expression);
+                break;
+            case Value.STR:
+                toStringValue(expression(node.expression));
+                break;
+            default:
+                int type = expression(node.expression);
+                if (type != target) {
+                    throw new UnsupportedOperationException("'" + node.varName + "' changes type");
+                }
+        }
+        storeVariable(slot);
+    }
+
+    /** `s = s + a + b` on a string variable: extends its builder in place. */
+    private void append(AssignmentNode node) {
+        int slot = node.slot();
+        requireDefined(slot, node.varName);
+        out.local(ClassFileBuilder.ALOAD, builderLocals[slot], 1);
+        out.local(ClassFileBuilder.ALOAD, valueLocals[slot], 1);
+        out.invokeStatic(RUNTIME, "builder", "(L" + BUILDER + ";L" + STRING + ";)L" + BUILDER + ";", -1);
+        for (Expr suffix : node.suffixes()) {
+            toStringValue(expression(suffix));
+            out.invokeVirtual(BUILDER, "append", "(L" + STRING + ";)L" + BUILDER + ";", -1);
+        }
+        out.local(ClassFileBuilder.ASTORE, builderLocals[slot], -1);
+        out.op(ClassFileBuilder.ACONST_NULL, 1);
+        out.local(ClassFileBuilder.ASTORE, valueLocals[slot], -1);
+    }
+
+    private void ifChain(IfNode node, ClassFileBuilder.Label loopTop, ClassFileBuilder.Label loopExit) {
+        ClassFileBuilder.Label end = out.label();
+        for (IfNode.ConditionBlock block : node.blocks) {
+            ClassFileBuilder.Label next = out.label();
+            if (block.condition != null) {
+                condition(block.condition);
+                out.branch(ClassFileBuilder.IFEQ, next, -1);
+            }
+            statements(block.body, loopTop, loopExit);
+            out.branch(ClassFileBuilder.GOTO, end, 0);
+            out.mark(next);
+            if (block.condition == null) {
+                break;
+            }
+        }
+        out.mark(end);
+    }
+
+    private void loop(LoopNode node) {
+        ClassFileBuilder.Label top = out.label();
+        ClassFileBuilder.Label exit = out.label();
+        out.mark(top);
+        condition(node.condition);
+        out.branch(ClassFileBuilder.IFEQ, exit, -1);
+        statements(node.body, top, exit, 1);
+        out.branch(ClassFileBuilder.GOTO, top, 0);
+        out.mark(exit);
+    }
+
+    private void writeBack() {
+        for (int slot = 0; slot < types.length; slot++) {
+            ClassFileBuilder.Label skip = out.label();
+            out.local(ClassFileBuilder.ILOAD, definedLocals[slot], 1);
+            out.branch(ClassFileBuilder.IFEQ, skip, -1);
+            out.op(ClassFileBuilder.ALOAD_0, 1);
+            out.pushInt(slot);
+            int type = loadVariable(slot);
+            if (type == Value.NUM) {
+                out.invokeStatic(RUNTIME, "setNum", "(L" + CONTEXT + ";I" + descriptor(type) + ")V", -2 - width(type));
+            } else {
+                String setter = type == Value.BLN ? "setBln" : "setStr";
+                out.invokeVirtual(CONTEXT, setter, "(I" + descriptor(type) + ")V", -2 - width(type));
+            }
+            out.mark(skip);
+        }
+    }
+
+    // ---- expressions ----
+
+    /** Leaves 1 (true) or 0 on the stack, as ExpressionEvaluator.evaluate decides. */
+    private void condition(Expr expr) {
+        int type = expression(expr);
+        if (type == Value.NUM) {
+            out.invokeStatic(RUNTIME, "truthy", "(JD)Z", -3);
+        } else if (type == Value.STR) {
+            out.op(ClassFileBuilder.POP, -1);
+            out.op(ClassFileBuilder.ICONST_0, 1);
+        }
+    }
+
+    private int expression(Expr expr) {
+        if (expr instanceof LiteralExpr) {
+            LiteralExpr literal = (LiteralExpr) expr;
+            switch (literal.tag) {
+                case Value.NUM:
+                    out.ldc(literal.exact ? literal.lng : JvmRuntime.notInt(literal.num));
+                    out.ldc(literal.num);
+                    break;
+                case Value.BLN: out.op(literal.bln ? ClassFileBuilder.ICONST_1 : ClassFileBuilder.ICONST_0, 1); break;
+                default: out.ldc(literal.str);
+            }
+            return literal.tag;
+        }
+        if (expr instanceof VariableExpr) {
+            VariableExpr variable = (VariableExpr) expr;
+            requireDefined(variable.slot(), variable.name);
+            return loadVariable(variable.slot());
+        }
+        if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            if (unary.negate) {
+                out.op(ClassFileBuilder.ALOAD_0, 1);
+            }
+            int type = expression(unary.operand);
+            if (unary.negate && type == Value.NUM) {
+                out.invokeStatic(RUNTIME, "negate", "(L" + CONTEXT + ";JD)J", -3);
+                number();
+                return Value.NUM;
+            }
+            if (!unary.negate && type == Value.BLN) {
+                out.op(ClassFileBuilder.ICONST_1, 1);
+                out.op(ClassFileBuilder.IXOR, -1);
+                return Value.BLN;
+            }
+            throw new UnsupportedOperationException("operand type error");
+        }
+        if (expr instanceof BinaryExpr) {
+            return binary((BinaryExpr) expr);
+        }
+        throw new UnsupportedOperationException("malformed expression");
+    }
+
+    private int binary(BinaryExpr expr) {
+        int left = typeOf(expr.left);
+        int right = typeOf(expr.right);
+        boolean numeric = left == Value.NUM && right == Value.NUM;
+
+        switch (expr.op) {
+            case BinaryExpr.AND:
+            case BinaryExpr.OR:
+                if (left != Value.BLN || right != Value.BLN) {
+                    throw new UnsupportedOperationException("operand type error");
+                }
+                expression(expr.left);
+                expression(expr.right);
+                out.op(expr.op == BinaryExpr.AND ? ClassFileBuilder.IAND : ClassFileBuilder.IOR, -1);
+                return Value.BLN;
+            case BinaryExpr.GT: case BinaryExpr.LT: case BinaryExpr.GE:
+            case BinaryExpr.LE: case BinaryExpr.EQ: case BinaryExpr.NE:
+                if (numeric) {
+                    expression(expr.left);
+                    expression(expr.right);
+                    out.pushInt(expr.op);
+                    out.invokeStatic(RUNTIME, "compare", "(JDJDI)Z", -8);
+                } else {
+                    // As in BinaryExpr.apply, a number compared as text is formatted as its double.
+                    comparedText(expression(expr.left));
+                    comparedText(expression(expr.right));
+                    if (expr.op == BinaryExpr.EQ || expr.op == BinaryExpr.NE) {
+                        out.invokeVirtual(STRING, "equals", "(Ljava/lang/Object;)Z", -1);
+                        if (expr.op == BinaryExpr.NE) {
+                            out.op(ClassFileBuilder.ICONST_1, 1);
+                            out.op(ClassFileBuilder.IXOR, -1);
+                        }
+                    } else {
+                        out.op(ClassFileBuilder.POP2, -2);
+                        out.op(ClassFileBuilder.ICONST_0, 1);
+                    }
+                }
+                return Value.BLN;
+            case BinaryExpr.ADD:
+                if (left == Value.STR || right == Value.STR) {
+                    toStringValue(expression(expr.left));
+                    toStringValue(expression(expr.right));
+                    out.invokeVirtual(STRING, "concat", "(L" + STRING + ";)L" + STRING + ";", -1);
+                    return Value.STR;
+                }
+                break;
+            default:
+                break;
+        }
+        if (!numeric) {
+            throw new UnsupportedOperationException("operand type error");
+        }
+        out.op(ClassFileBuilder.ALOAD_0, 1);
+        expression(expr.left);
+        expression(expr.right);
+        out.pushInt(expr.op);
+        out.invokeStatic(RUNTIME, "arithmetic", "(L" + CONTEXT + ";JDJDI)J", -8);
+        number();
+        return Value.NUM;
+    }
+
+    /** Completes a number whose long a JvmRuntime call returned, taking its double from the num register. */
+    private void number() {
+        out.op(ClassFileBuilder.ALOAD_0, 1);
+        out.invokeStatic(RUNTIME, "num", "(L" + CONTEXT + ";)D", 1);
+    }
+
+    private void toStringValue(int type) {
+        if (type == Value.NUM) {
+            out.invokeStatic(RUNTIME, "format", "(JD)L" + STRING + ";", -3);
+        } else if (type == Value.BLN) {
+            out.invokeStatic(STRING, "valueOf", "(Z)L" + STRING + ";", 0);
+        }
+    }
+
+    private void comparedText(int type) {
+        if (type == Value.NUM) {
+            out.invokeStatic(RUNTIME, "formatDouble", "(JD)L" + STRING + ";", -3);
+        } else {
+            toStringValue(type);
+        }
+    }
+
+    private void requireDefined(int slot, String name) {
+        ClassFileBuilder.Label defined = out.label();
+        out.local(ClassFileBuilder.ILOAD, definedLocals[slot], 1);
+        out.branch(ClassFileBuilder.IFNE, defined, -1);
+        out.ldc(name);
+        out.invokeStatic(RUNTIME, "undefined", "(L" + STRING + ";)Ljava/lang/RuntimeException;", 0);
+        out.op(ClassFileBuilder.ATHROW, -1);
+        out.mark(defined);
+    }
+
+    private int loadVariable(int slot) {
+        int type = types[slot];
+        if (builderLocals[slot] >= 0) {
+            out.local(ClassFileBuilder.ALOAD, valueLocals[slot], 1);
+            out.local(ClassFileBuilder.ALOAD, builderLocals[slot], 1);
+            out.invokeStatic(RUNTIME, "text", "(L" + STRING + ";L" + BUILDER + ";)L" + STRING + ";", -1);
+            out.local(ClassFileBuilder.ASTORE, valueLocals[slot], -1);
+        }
+        switch (type) {
+            case Value.NUM:
+                out.local(ClassFileBuilder.LLOAD, valueLocals[slot], 2);
+                out.local(ClassFileBuilder.DLOAD, valueLocals[slot] + 2, 2);
+                break;
+            case Value.BLN: out.local(ClassFileBuilder.ILOAD, valueLocals[slot], 1); break;
+            default: out.local(ClassFileBuilder.ALOAD, valueLocals[slot], 1);
+        }
+        return type;
+    }
+
+    private void storeVariable(int slot) {
+        switch (types[slot]) {
+            case Value.NUM:
+                out.local(ClassFileBuilder.DSTORE, valueLocals[slot] + 2, -2);
+                out.local(ClassFileBuilder.LSTORE, valueLocals[slot], -2);
+                break;
+            case Value.BLN: out.local(ClassFileBuilder.ISTORE, valueLocals[slot], -1); break;
+            default: out.local(ClassFileBuilder.ASTORE, valueLocals[slot], -1);
+        }
+        if (builderLocals[slot] >= 0) {
+            out.op(ClassFileBuilder.ACONST_NULL, 1);
+            out.local(ClassFileBuilder.ASTORE, builderLocals[slot], -1);
+        }
+        out.op(ClassFileBuilder.ICONST_1, 1);
+        out.local(ClassFileBuilder.ISTORE, definedLocals[slot], -1);
+    }
+
+    private static String printer(int type) {
+        return type == Value.NUM ? "printNum" : type == Value.BLN ? "printBln" : "printStr";
+    }
+
+    private static String descriptor(int type) {
+        return type == Value.NUM ? "JD" : type == Value.BLN ? "Z" : "L" + STRING + ";";
+    }
+
+    private static int width(int type) {
+        return type == Value.NUM ? 4 : 1;
+    }
+}
+
+class JvmProgram {
+    private final MethodHandle run;
+
+    JvmProgram(MethodHandle run) {
+        this.run = run;
+    }
+
+    public void run(Context context) {
+        try {
+            run.invokeExact(context);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+/**
+ * Static entry points called from generated code. Generated code carries a number as a long and a double:
+ * an INT when the long converts to exactly the double, as an INT's double is always its long rounded, and a
+ * NUM otherwise, with a long from notInt(). Arithmetic returns the long and leaves the double in the num
+ * register, so both follow the tree's rules for INTs.
+ */
+final class JvmRuntime {
+    private JvmRuntime() {
+    }
+
+    /** A long that does not convert to d, to carry with a NUM. */
+    static long notInt(double d) {
+        return d == -0x1p63 ? 0 : Long.MIN_VALUE;
+    }
+
+    private static int tag(long lng, double num) {
+        return (double) lng == num ? Value.INT : Value.NUM;
+    }
+
+    static double num(Context context) {
+        return context.num;
+    }
+
+    static long arithmetic(Context context, long la, double na, long lb, double nb, int op) {
+        context.num = nb;
+        context.lng = lb;
+        int tag = BinaryExpr.combine(op, context, tag(la, na), na, false, null, la, tag(lb, nb));
+        return tag == Value.INT ? context.lng : notInt(context.num);
+    }
+
+    static long negate(Context context, long lng, double num) {
+        context.num = num;
+        context.lng = lng;
+        int tag = UnaryExpr.apply(true, context, tag(lng, num));
+        return tag == Value.INT ? context.lng : notInt(context.num);
+    }
+
+    static boolean compare(long la, double na, long lb, double nb, int op) {
+        return tag(la, na) == Value.INT && tag(lb, nb) == Value.INT
+            ? ExpressionEvaluator.compare(op, la, lb) : ExpressionEvaluator.compare(op, na, nb);
+    }
+
+    static boolean truthy(long lng, double num) {
+        return num != 0;
+    }
+
+    static String format(long lng, double num) {
+        return tag(lng, num) == Value.INT ? Value.format(lng) : Double.toString(num);
+    }
+
+    static String formatDouble(long lng, double num) {
+        return Double.toString(num);
+    }
+
+    static long readNum(Context context, String prompt, String varName) {
+        if (InputNode.readNum(context, prompt, varName) == Value.INT) {
+            return context.lng;
+        }
+        double value = context.num;
+        return Value.isExact(value) ? (long) value : notInt(value);
+    }
+
+    static void printNum(Context context, long lng, double num) {
+        if (tag(lng, num) == Value.INT) {
+            PrintNode.printLong(context, lng);
+        } else {
+            PrintNode.printNum(context, num);
+        }
+    }
+
+    static void setNum(Context context, int slot, long lng, double num) {
+        if (tag(lng, num) == Value.INT) {
+            context.setInt(slot, lng);
+        } else {
+            context.setNum(slot, num);
+        }
+    }
+
+    static RuntimeException undefined(String name) {
+        return new InterpreterException("Unexpected token in expression: " + name);
+    }
+
+    /** The builder of an appended string variable, started from its current text on the first append. */
+    static StringBuilder builder(StringBuilder builder, String text) {
+        return builder != null ? builder : new StringBuilder(Math.max(16, text.length() * 2)).append(text);
+    }
+
+    /** The current text of an appended string variable: the cached snapshot, or a new one after appends. */
+    static String text(String snapshot, StringBuilder builder) {
+        return snapshot != null || builder == null ? snapshot : builder.toString();
+    }
+
+    static RuntimeException invalidNumber(String name) {
+        return new InterpreterException("Invalid number assignment to '" + name + "'");
+    }
+
+}
+
+/**
+ * Minimal class-file writer for one static method. It emits version 49 class files so no
+ * StackMapTable is needed; the verifier infers frames itself.
+ */
+class ClassFileBuilder {
+    static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, ICONST_1 = 0x04, LCONST_0 = 0x09, DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+    static final int ILOAD = 0x15, LLOAD = 0x16, DLOAD = 0x18, ALOAD = 0x19, ALOAD_0 = 0x2a;
+    static final int ISTORE = 0x36, LSTORE = 0x37, DSTORE = 0x39, ASTORE = 0x3a;
+    static final int POP = 0x57, POP2 = 0x58;
+    static final int IAND = 0x7e, IOR = 0x80, IXOR = 0x82;
+    static final int IFEQ = 0x99, IFNE = 0x9a;
+    static final int GOTO = 0xa7, RETURN = 0xb1, INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf, WIDE = 0xc4;
+
+    private static final int MAX_BRANCH = Short.MAX_VALUE;
+
+    static final class Label {
+        private int offset = -1;
+        private final List<Integer> references = new ArrayList<>();
+    }
+
+    private final ByteVector pool = new ByteVector();
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteVector code = new ByteVector();
+    private final ByteVector handlers = new ByteVector();
+    private final List<Object[]> pendingHandlers = new ArrayList<>();
+    private int handlerCount;
+    private int stack;
+    private int maxStack;
+
+    Label label() {
+        return new Label();
+    }
+
+    /** Offset the next instruction will be written at. */
+    int position() {
+        return code.length();
+    }
+
+    int stack() {
+        return stack;
+    }
+
+    void setStack(int depth) {
+        stack = depth;
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    void op(int opcode, int delta) {
+        code.put1(opcode);
+        setStack(stack + delta);
+    }
+
+    void local(int opcode, int index, int delta) {
+        if (index > 255) {
+            code.put1(WIDE).put1(opcode).put2(index);
+        } else {
+            code.put1(opcode).put1(index);
+        }
+        setStack(stack + delta);
+    }
+
+    void pushInt(int value) {
+        if (value <= Byte.MAX_VALUE) {
+            code.put1(BIPUSH).put1(value);
+        } else if (value <= Short.MAX_VALUE) {
+            code.put1(SIPUSH).put2(value);
+        } else {
+            code.put1(LDC_W).put2(entry("I" + value, () -> pool.put1(3).put4(value), 1));
+        }
+        setStack(stack + 1);
+    }
+
+    void ldc(String value) {
+        int utf8 = utf8(value);
+        code.put1(LDC_W).put2(entry("S" + value, () -> pool.put1(8).put2(utf8), 1));
+        setStack(stack + 1);
+    }
+
+    void ldc(long value) {
+        code.put1(LDC2_W).put2(entry("J" + value, () -> pool.put1(5).put8(value), 2));
+        setStack(stack + 2);
+    }
+
+    void ldc(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        code.put1(LDC2_W).put2(entry("D" + bits, () -> pool.put1(6).put8(bits), 2));
+        setStack(stack + 2);
+    }
+
+    void invokeStatic(String owner, String name, String descriptor, int delta) {
+        code.put1(INVOKESTATIC).put2(methodRef(owner, name, descriptor));
+        setStack(stack + delta);
+    }
+
+    void invokeVirtual(String owner, String name, String descriptor, int delta) {
+        code.put1(INVOKEVIRTUAL).put2(methodRef(owner, name, descriptor));
+        setStack(stack + delta);
+    }
+
+    void branch(int opcode, Label target, int delta) {
+        int at = code.length();
+        code.put1(opcode);
+        if (target.offset >= 0) {
+            code.put2(target.offset - at);
+        } else {
+            target.references.add(at);
+            code.put2(0);
+        }
+        setStack(stack + delta);
+    }
+
+    void mark(Label label) {
+        label.offset = code.length();
+        for (int at : label.references) {
+            code.set2(at + 1, label.offset - at);
+        }
+        label.references.clear();
+    }
+
+    void handler(Label start, Label end, Label handler, String type) {
+        handlers.put2(start.offset).put2(end.offset);
+        int index = handlers.length();
+        handlers.put2(0).put2(classRef(type));
+        handlerCount++;
+        pendingHandlers.add(new Object[] {handler, index});
+    }
+
+    byte[] toClassFile(String className, String methodName, String descriptor, int maxLocals) {
+        if (code.length() > MAX_BRANCH) {
+            throw new UnsupportedOperationException("program too large for one method");
+        }
+        for (Object[] pending : pendingHandlers) {
+            handlers.set2((Integer) pending[1], ((Label) pending[0]).offset);
+        }
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        int name = utf8(methodName);
+        int type = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+
+        ByteVector file = new ByteVector();
+        file.put4(0xCAFEBABE).put2(0).put2(49);
+        file.put2(poolCount).put(pool);
+        file.put2(0x0030).put2(thisClass).put2(superClass).put2(0).put2(0);
+        file.put2(1).put2(0x0009).put2(name).put2(type).put2(1);
+        file.put2(codeAttribute).put4(12 + code.length() + handlers.length());
+        file.put2(maxStack).put2(maxLocals).put4(code.length()).put(code);
+        file.put2(handlerCount).put(handlers).put2(0);
+        file.put2(0);
+        return file.toByteArray();
+    }
+
+    private int utf8(String value) {
+        return entry("U" + value, () -> pool.put1(1).putModifiedUtf8(value), 1);
+    }
+
+    private int classRef(String name) {
+        int utf8 = utf8(name);
+        return entry("C" + name, () -> pool.put1(7).put2(utf8), 1);
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + descriptor, () -> pool.put1(12).put2(nameIndex).put2(typeIndex), 1);
+        return entry("M" + owner + "." + name + descriptor, () -> pool.put1(10).put2(ownerIndex).put2(nameAndType), 1);
+    }
+
+    private int entry(String key, Runnable writer, int size) {
+        Integer index = entries.get(key);
+        if (index == null) {
+            index = poolCount;
+            writer.run();
+            poolCount += size;
+            entries.put(key, index);
+        }
+        return index;
+    }
+}
+
+class ByteVector {
+    private byte[] data = new byte[256];
+    private int length;
+
+    int length() {
+        return length;
+    }
+
+    ByteVector put1(int value) {
+        ensure(1);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    ByteVector put2(int value) {
+        ensure(2);
+        data[length++] = (byte) (value >>> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    ByteVector put4(int value) {
+        return put2(value >>> 16).put2(value);
+    }
+
+    ByteVector put8(long value) {
+        return put4((int) (value >>> 32)).put4((int) value);
+    }
+
+    ByteVector put(ByteVector other) {
+        ensure(other.length);
+        System.arraycopy(other.data, 0, data, length, other.length);
+        length += other.length;
+        return this;
+    }
+
+    ByteVector put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    ByteVector putModifiedUtf8(String value) {
+        int start = length;
+        put2(0);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != 0 && c < 0x80) {
+                put1(c);
+            } else if (c < 0x800) {
+                put1(0xC0 | (c >> 6)).put1(0x80 | (c & 0x3F));
+            } else {
+                put1(0xE0 | (c >> 12)).put1(0x80 | ((c >> 6) & 0x3F)).put1(0x80 | (c & 0x3F));
+            }
+        }
+        int size = length - start - 2;
+        if (size > 0xFFFF) {
+            throw new UnsupportedOperationException("string constant too long");
+        }
+        set2(start, size);
+        return this;
+    }
+
+    void set2(int at, int value) {
+        data[at] = (byte) (value >>> 8);
+        data[at + 1] = (byte) value;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, length);
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+    }
+}
+
+/**
+ * Execution profiler behind --profile. Rather than hooking every node, it rebuilds the parsed program with each
+ * statement wrapped in a {@link ProfiledNode} and each if/loop condition in a {@link ProfiledExpr}, so runs
+ * without --profile execute the plain tree.
+ */
+class Profiler {
+    static final class Site {
+        final String kind;
+        final int line;
+        // The statement as parsed, whose operator and increment sites specialize as it runs.
+        Node node;
+        long count;
+        long totalNanos;
+        long childNanos;
+        long allocated;
+        long childAllocated;
+        long conditions;
+        long conditionNanos;
+        long iterations;
+
+        Site(String kind, int line) {
+            this.kind = kind;
+            this.line = line;
+        }
+
+        long selfNanos() {
+            return totalNanos - childNanos;
+        }
+    }
+
+    private final List<Site> sites = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads;
+    // Time and allocation spent in nested statements, per nesting depth, to derive self figures.
+    private long[] childNanos = new long[16];
+    private long[] childAllocated = new long[16];
+    private int depth;
+
+    public Profiler() {
+        threads = allocationCounter();
+    }
+
+    /** The bean that counts the bytes each thread allocates, or null where the JVM does not. */
+    static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
+
+    public List<Node> instrument(List<Node> nodes) {
+        List<Node> instrumented = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            instrumented.add(instrument(node));
+        }
+        return instrumented;
+    }
+
+    public Node instrument(Node node) {
+        Node target = node;
+        Site site;
+        if (node instanceof LoopNode) {
+            LoopNode loop = (LoopNode) node;
+            site = site("loop", node.line);
+            target = new LoopNode(new ProfiledExpr(site, loop.condition), instrument(loop.body), loop.hoistScope);
+        } else if (node instanceof ParallelLoopNode) {
+            // Timed as a whole: the body runs on other threads, and the profiler's counters are not shared.
+            site = site("ploop", node.line);
+        } else if (node instanceof IfNode) {
+            site = site("if", node.line);
+            List<IfNode.ConditionBlock> blocks = new ArrayList<>();
+            for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                Expr condition = block.condition == null ? null : new ProfiledExpr(site, block.condition);
+                blocks.add(new IfNode.ConditionBlock(condition, instrument(block.body)));
+            }
+            target = new IfNode(blocks);
+        } else if (node instanceof AssignmentNode) {
+            site = site(((AssignmentNode) node).varName + " =", node.line);
+        } else if (node instanceof ElementAssignmentNode) {
+            site = site(((ElementAssignmentNode) node).varName + "[] =", node.line);
+        } else if (node instanceof AppendNode) {
+            site = site("append " + ((AppendNode) node).varName, node.line);
+        } else if (node instanceof InputNode) {
+            site = site("roi " + ((InputNode) node).varName, node.line);
+        } else if (node instanceof PrintNode) {
+            site = site("show", node.line);
+        } else if (node instanceof StopNode) {
+            site = site("stop", node.line);
+        } else if (node instanceof ContinueNode) {
+            site = site("continue", node.line);
+        } else {
+            site = site(node.getClass().getSimpleName(), node.line);
+        }
+        site.node = node;
+        target.line = node.line;
+        return new ProfiledNode(this, site, target);
+    }
+
+    /**
+     * Operator and increment sites in a statement that have seen more than one kind of operands. Loop and
+     * if bodies have sites of their own, except a ploop's, which counts with the ploop.
+     */
+    static int polymorphic(Node node) {
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assignment = (AssignmentNode) node;
+            return (assignment.polymorphic() ? 1 : 0) + polymorphic(assignment.expression);
+        }
+        if (node instanceof ElementAssignmentNode) {
+            return polymorphic(((ElementAssignmentNode) node).index) + polymorphic(((ElementAssignmentNode) node).value);
+        }
+        if (node instanceof AppendNode) {
+            return polymorphic(((AppendNode) node).value);
+        }
+        if (node instanceof LoopNode) {
+            return polymorphic(((LoopNode) node).condition);
+        }
+        if (node instanceof IfNode) {
+            int count = 0;
+            for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                count += block.condition == null ? 0 : polymorphic(block.condition);
+            }
+            return count;
+        }
+        if (node instanceof ParallelLoopNode) {
+            ParallelLoopNode loop = (ParallelLoopNode) node;
+            return polymorphic(loop.from) + polymorphic(loop.to) + polymorphicWithin(loop.body);
+        }
+        return 0;
+    }
+
+    private static int polymorphicWithin(List<Node> nodes) {
+        int count = 0;
+        for (Node node : nodes) {
+            count += polymorphic(node);
+            if (node instanceof LoopNode) {
+                count += polymorphicWithin(((LoopNode) node).body);
+            } else if (node instanceof IfNode) {
+                for (IfNode.ConditionBlock block : ((IfNode) node).blocks) {
+                    count += polymorphicWithin(block.body);
+                }
+            }
+        }
+        return count;
+    }
+
+    static int polymorphic(Expr expr) {
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            return (binary.polymorphic() ? 1 : 0) + polymorphic(binary.left) + polymorphic(binary.right);
+        }
+        if (expr instanceof UnaryExpr) {
+            return polymorphic(((UnaryExpr) expr).operand);
+        }
+        if (expr instanceof HoistedExpr) {
+            return polymorphic(((HoistedExpr) expr).target);
+        }
+        if (expr instanceof IndexExpr) {
+            return polymorphic(((IndexExpr) expr).array) + polymorphic(((IndexExpr) expr).index);
+        }
+        List<Expr> parts = expr instanceof CallExpr ? ((CallExpr) expr).args
+            : expr instanceof ArrayExpr ? ((ArrayExpr) expr).elements
+            : expr instanceof MalformedExpr ? ((MalformedExpr) expr).parts
+            : List.of();
+        int count = 0;
+        for (Expr part : parts) {
+            count += polymorphic(part);
+        }
+        return count;
+    }
+
+    private Site site(String kind, int line) {
+        Site site = new Site(kind, line);
+        sites.add(site);
+        return site;
+    }
+
+    long allocated() {
+        return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    void enter() {
+        if (++depth == childNanos.length) {
+            childNanos = Arrays.copyOf(childNanos, depth * 2);
+            childAllocated = Arrays.copyOf(childAllocated, depth * 2);
+        }
+        childNanos[depth] = 0;
+        childAllocated[depth] = 0;
+    }
+
+    void exit(Site site, long start, long allocatedAtStart) {
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocated() - allocatedAtStart;
+        site.count++;
+        site.totalNanos += elapsed;
+        site.allocated += bytes;
+        site.childNanos += childNanos[depth];
+        site.childAllocated += childAllocated[depth];
+        depth--;
+        childNanos[depth] += elapsed;
+        childAllocated[depth] += bytes;
+    }
+
+    /** Prints every statement that ran, hottest self time first. */
+    public void report(PrintStream out) {
+        List<Site> ran = new ArrayList<>();
+        for (Site site : sites) {
+            if (site.count > 0) {
+                ran.add(site);
+            }
+        }
+        ran.sort(Comparator.comparingLong(Site::selfNanos).reversed());
+        out.println();
+        out.println("Profile (by self time; alloc is self, in KB" + (threads == null ? ", unavailable" : "") + ")");
+        out.printf("%6s  %-16s %12s %11s %11s %11s %12s %12s %11s %5s%n",
+            "line", "statement", "count", "total ms", "self ms", "alloc KB", "iterations", "cond evals", "cond ms", "poly");
+        int polymorphic = 0;
+        for (Site site : ran) {
+            boolean loop = site.kind.equals("loop");
+            boolean conditional = loop || site.kind.equals("if");
+            int sites = polymorphic(site.node);
+            polymorphic += sites;
+            out.printf("%6d  %-16s %12d %11.3f %11.3f %11.1f %12s %12s %11s %5s%n",
+                site.line, site.kind, site.count,
+                site.totalNanos / 1e6, site.selfNanos() / 1e6, (site.allocated - site.childAllocated) / 1024.0,
+                loop ? Long.toString(site.iterations) : "-",
+                conditional ? Long.toString(site.conditions) : "-",
+                conditional ? String.format("%.3f", site.conditionNanos / 1e6) : "-",
+                sites == 0 ? "-" : Integer.toString(sites));
+        }
+        out.println("Polymorphic sites (operators and increments that saw more than one kind of operands): " + polymorphic);
+    }
+}
+
+class ProfiledNode extends Node {
+    private final Profiler profiler;
+    private final Profiler.Site site;
+    private final Node target;
+
+    ProfiledNode(Profiler profiler, Profiler.Site site, Node target) {
+        this.profiler = profiler;
+        this.site = site;
+        this.target = target;
+        this.line = target.line;
+    }
+
+    @Override
+    public int execute(Context context) {
+        profiler.enter();
+        long allocated = profiler.allocated();
+        long start = System.nanoTime();
+        try {
+            return target.execute(context);
+        } finally {
+            profiler.exit(site, start, allocated);
+        }
+    }
+}
+
+class ProfiledExpr extends Expr {
+    private final Profiler.Site site;
+    private final Expr target;
+
+    ProfiledExpr(Profiler.Site site, Expr target) {
+        this.site = site;
+        this.target = target;
+    }
+
+    @Override
+    public int exec(Context context) {
+        long start = System.nanoTime();
+        try {
+            int tag = target.exec(context);
+            if (ExpressionEvaluator.truthy(tag, context)) {
+                site.iterations++;
+            }
+            return tag;
+        } finally {
+            site.conditions++;
+            site.conditionNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void resolve(SymbolTable symbols) {
+        target.resolve(symbols);
+    }
+}
+
+/**
+ * Checks that the scanner, its packed form and the regex lexer agree on a source file, then times all three.
+ */
+class LexerBenchmark {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    public static void run(String code) {
+        List<Token> expected = new RegexLexer().tokenize(code);
+        List<Token> actual = new Lexer().tokenize(code);
+        if (expected.size() != actual.size()) {
+            throw new InterpreterException("Lexers disagree: " + expected.size() + " vs " + actual.size() + " tokens");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            Token a = expected.get(i);
+            Token b = actual.get(i);
+            if (a.type != b.type || !a.value.equals(b.value)) {
+                throw new InterpreterException("Lexers disagree at token " + i + ": " + a + " vs " + b);
+            }
+        }
+        TokenBuffer packed = new Lexer().scan(code);
+        for (int i = 0; i < actual.size(); i++) {
+            Token a = actual.get(i);
+            String text = code.substring(packed.offset(i), packed.offset(i) + packed.length(i));
+            if (packed.kind(i) != a.type.ordinal() || !packed.text(i).equals(a.value) || !text.equals(a.value)
+                    || packed.line(i) != a.line || packed.column(i) != a.column) {
+                throw new InterpreterException("Packed tokens disagree at token " + i + ": " + a + " vs " + text);
+            }
+        }
+
+        long regex = time(() -> new RegexLexer().tokenize(code));
+        long scanner = time(() -> new Lexer().tokenize(code));
+        long scanned = time(() -> new Lexer().scan(code));
+        System.out.println(expected.size() + " tokens, " + code.length() + " chars");
+        System.out.printf("regex lexer: %.2f ms%n", regex / 1e6);
+        System.out.printf("scanner:     %.2f ms%n", scanner / 1e6);
+        System.out.printf("packed:      %.2f ms%n", scanned / 1e6);
+        System.out.printf("speedup:     %.1fx, %.1fx packed%n", (double) regex / scanner, (double) regex / scanned);
+    }
+
+    private static long time(Runnable lexer) {
+        for (int i = 0; i < WARMUP; i++) {
+            lexer.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            lexer.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
+
+/**
+ * On-disk cache of optimized programs. A .stingc file holds the syntax tree in a compact binary form under a
+ * key hashed from the source and the interpreter version; the version digests the front-end class files, so
+ * rebuilding the interpreter invalidates every cache. A hit memory-maps the file and rebuilds the tree
+ * without running the lexer, parser or optimizer. Any cache failure falls back to compiling.
+ */
+final class ProgramCache {
+    private static final int MAGIC = 0x53544743; // "STGC"
+    private static final int FORMAT = 2;
+    private static final String[] FRONT_END = {
+        "Lexer", "TokenStream", "TokenBuffer", "Parser", "ExpressionEvaluator", "Optimizer", "ProgramCache"};
+    private static final byte[] VERSION = version();
+
+    private static final int PRINT = 1, INPUT = 2, ASSIGN = 3, IF = 4, LOOP = 5, STOP = 6, CONTINUE = 7, PLOOP = 8;
+    private static final int ELEMENT = 9, APPEND = 10;
+    private static final int INT = 1, NUM = 2, BLN = 3, STR = 4, VAR = 5, UNARY = 6, BINARY = 7, FAIL = 8, MALFORMED = 9;
+    private static final int INDEX = 10, CALL = 11, ARRAY = 12;
+
+    private final Path file;
+
+    private ProgramCache(Path file) {
+        this.file = file;
+    }
+
+    /** A cache file beside the source ({@code x.sting} -> {@code x.stingc}), or in {@code directory} if given. */
+    static ProgramCache forSource(Path source, Path directory) {
+        String name = source.getFileName().toString() + "c";
+        if (directory == null) {
+            return new ProgramCache(source.resolveSibling(name));
+        }
+        String absolute = source.toAbsolutePath().normalize().toString();
+        String prefix = hex(digest(absolute.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+        return new ProgramCache(directory.resolve(prefix + "-" + name));
+    }
+
+    long size() {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** Loads the cached program for this source, or compiles it and refreshes the cache. */
+    List<Node> load(byte[] source) {
+        byte[] key = key(source);
+        List<Node> nodes = read(key);
+        if (nodes == null) {
+            nodes = compile(new String(source, StandardCharsets.UTF_8));
+            write(key, nodes);
+        }
+        return nodes;
+    }
+
+    static List<Node> compile(String code) {
+        return new Optimizer().optimize(new Parser(new Lexer().scan(code)).parse());
+    }
+
+    static byte[] key(byte[] source) {
+        MessageDigest sha = sha256();
+        sha.update(VERSION);
+        sha.update(source);
+        return sha.digest();
+    }
+
+    /** The cached program if the file exists and carries this key, else null. */
+    List<Node> read(byte[] key) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 8 + key.length || in.getInt() != MAGIC || in.getInt() != FORMAT) {
+                return null;
+            }
+            byte[] stored = new byte[key.length];
+            in.get(stored);
+            if (!Arrays.equals(stored, key)) {
+                return null;
+            }
+            String[] strings = new String[varint(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[varint(in)];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new Reader(in, strings).nodes();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Writes the program atomically, so a concurrent run sees the old file or the new one. Failures are ignored. */
+    void write(byte[] key, List<Node> nodes) {
+        Writer tree = new Writer();
+        try {
+            tree.nodes(nodes);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        ByteVector out = new ByteVector();
+        out.put4(MAGIC).put4(FORMAT).put(key);
+        varint(out, tree.strings.size());
+        for (String s : tree.strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(out, bytes.length);
+            out.put(bytes);
+        }
+        out.put(tree.out);
+        try {
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, out.toByteArray());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // Unwritable location: run uncached.
+        }
+    }
+
+    private static final class Writer {
+        final ByteVector out = new ByteVector();
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> index = new HashMap<>();
+
+        void nodes(List<Node> nodes) {
+            varint(out, nodes.size());
+            for (Node node : nodes) {
+                node(node);
+            }
+        }
+
+        void node(Node node) {
+            if (node instanceof PrintNode) {
+                out.put1(PRINT);
+                List<String> args = ((PrintNode) node).args;
+                varint(out, args.size());
+                for (String arg : args) {
+                    string(arg);
+                }
+            } else if (node instanceof InputNode) {
+                InputNode input = (InputNode) node;
+                out.put1(INPUT);
+                string(input.varName);
+                string(input.prompt);
+                string(input.type);
+            } else if (node instanceof AssignmentNode) {
+                AssignmentNode assignment = (AssignmentNode) node;
+                out.put1(ASSIGN);
+                string(assignment.varName);
+                out.put1(assignment.declaredType);
+                expr(assignment.expression);
+            } else if (node instanceof IfNode) {
+                List<IfNode.ConditionBlock> blocks = ((IfNode) node).blocks;
+                out.put1(IF);
+                varint(out, blocks.size());
+                for (IfNode.ConditionBlock block : blocks) {
+                    out.put1(block.condition == null ? 0 : 1);
+                    if (block.condition != null) {
+                        expr(block.condition);
+                    }
+                    nodes(block.body);
+                }
+            } else if (node instanceof LoopNode) {
+                out.put1(LOOP);
+                expr(((LoopNode) node).condition);
+                nodes(((LoopNode) node).body);
+            } else if (node instanceof ParallelLoopNode) {
+                ParallelLoopNode loop = (ParallelLoopNode) node;
+                out.put1(PLOOP);
+                string(loop.counterName);
+                expr(loop.from);
+                expr(loop.to);
+                varint(out, loop.reductions.size());
+                for (ParallelLoopNode.Reduction reduction : loop.reductions) {
+                    string(reduction.name);
+                    string(reduction.op);
+                }
+                nodes(loop.body);
+            } else if (node instanceof ElementAssignmentNode) {
+                ElementAssignmentNode assignment = (ElementAssignmentNode) node;
+                out.put1(ELEMENT);
+                string(assignment.varName);
+                expr(assignment.index);
+                expr(assignment.value);
+            } else if (node instanceof AppendNode) {
+                out.put1(APPEND);
+                string(((AppendNode) node).varName);
+                expr(((AppendNode) node).value);
+            } else if (node instanceof StopNode) {
+                out.put1(STOP);
+            } else if (node instanceof ContinueNode) {
+                out.put1(CONTINUE);
+            } else {
+                throw new IllegalArgumentException(node.getClass().getSimpleName());
+            }
+            varint(out, node.line);
+        }
+
+        void expr(Expr expr) {
+            if (expr instanceof LiteralExpr) {
+                LiteralExpr literal = (LiteralExpr) expr;
+                if (literal.exact) {
+                    out.put1(INT);
+                    varlong(out, (literal.lng << 1) ^ (literal.lng >> 63));
+                } else if (literal.tag == Value.NUM) {
+                    out.put1(NUM);
+                    out.put8(Double.doubleToRawLongBits(literal.num));
+                } else if (literal.tag == Value.BLN) {
+                    out.put1(BLN);
+                    out.put1(literal.bln ? 1 : 0);
+                } else {
+                    out.put1(STR);
+                    string(literal.str);
+                }
+            } else if (expr instanceof VariableExpr) {
+                out.put1(VAR);
+                string(((VariableExpr) expr).name);
+            } else if (expr instanceof UnaryExpr) {
+                out.put1(UNARY);
+                out.put1(((UnaryExpr) expr).negate ? 1 : 0);
+                expr(((UnaryExpr) expr).operand);
+            } else if (expr instanceof BinaryExpr) {
+                BinaryExpr binary = (BinaryExpr) expr;
+                out.put1(BINARY);
+                out.put1(binary.op);
+                expr(binary.left);
+                expr(binary.right);
+            } else if (expr instanceof IndexExpr) {
+                out.put1(INDEX);
+                expr(((IndexExpr) expr).array);
+                expr(((IndexExpr) expr).index);
+            } else if (expr instanceof CallExpr) {
+                CallExpr call = (CallExpr) expr;
+                out.put1(CALL);
+                string(call.name);
+                varint(out, call.args.size());
+                for (Expr arg : call.args) {
+                    expr(arg);
+                }
+            } else if (expr instanceof ArrayExpr) {
+                List<Expr> elements = ((ArrayExpr) expr).elements;
+                out.put1(ARRAY);
+                varint(out, elements.size());
+                for (Expr element : elements) {
+                    expr(element);
+                }
+            } else if (expr instanceof FailExpr) {
+                out.put1(FAIL);
+                string(((FailExpr) expr).message);
+            } else if (expr instanceof MalformedExpr) {
+                MalformedExpr malformed = (MalformedExpr) expr;
+                out.put1(MALFORMED);
+                out.put1(malformed.underflow ? 1 : 0);
+                varint(out, malformed.parts.size());
+                for (Expr part : malformed.parts) {
+                    expr(part);
+                }
+            } else {
+                throw new IllegalArgumentException(expr.getClass().getSimpleName());
+            }
+        }
+
+        void string(String s) {
+            Integer i = index.get(s);
+            if (i == null) {
+                i = strings.size();
+                strings.add(s);
+                index.put(s, i);
+            }
+            varint(out, i);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final String[] strings;
+
+        Reader(ByteBuffer in, String[] strings) {
+            this.in = in;
+            this.strings = strings;
+        }
+
+        List<Node> nodes() {
+            int count = varint(in);
+            List<Node> nodes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                nodes.add(node());
+            }
+            return nodes;
+        }
+
+        Node node() {
+            Node node;
+            switch (in.get()) {
+                case PRINT: {
+                    int count = varint(in);
+                    List<String> args = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        args.add(string());
+                    }
+                    node = new PrintNode(args);
+                    break;
+                }
+                case INPUT:
+                    node = new InputNode(string(), string(), string());
+                    break;
+                case ASSIGN: {
+                    String name = string();
+                    int declaredType = in.get();
+                    node = new AssignmentNode(name, expr(), declaredType);
+                    break;
+                }
+                case IF: {
+                    int count = varint(in);
+                    List<IfNode.ConditionBlock> blocks = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        Expr condition = in.get() == 0 ? null : expr();
+                        blocks.add(new IfNode.ConditionBlock(condition, nodes()));
+                    }
+                    node = new IfNode(blocks);
+                    break;
+                }
+                case LOOP:
+                    node = new LoopNode(expr(), nodes());
+                    break;
+                case PLOOP: {
+                    String counter = string();
+                    Expr from = expr();
+                    Expr to = expr();
+                    int count = varint(in);
+                    List<ParallelLoopNode.Reduction> reductions = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        reductions.add(new ParallelLoopNode.Reduction(string(), string()));
+                    }
+                    node = new ParallelLoopNode(counter, from, to, reductions, nodes());
+                    break;
+                }
+                case ELEMENT:
+                    node = new ElementAssignmentNode(string(), expr(), expr());
+                    break;
+                case APPEND:
+                    node = new AppendNode(string(), expr());
+                    break;
+                case STOP:
+                    node = new StopNode();
+                    break;
+                case CONTINUE:
+                    node = new ContinueNode();
+                    break;
+                default:
+                    throw new IllegalStateException("corrupt cache");
+            }
+            node.line = varint(in);
+            return node;
+        }
+
+        Expr expr() {
+            switch (in.get()) {
+                case INT: {
+                    long v = varlong(in);
+                    return new LiteralExpr((v >>> 1) ^ -(v & 1));
+                }
+                case NUM:
+                    return new LiteralExpr(Double.longBitsToDouble(in.getLong()));
+                case BLN:
+                    return new LiteralExpr(in.get() != 0);
+                case STR:
+                    return new LiteralExpr(string());
+                case VAR:
+                    return new VariableExpr(string());
+                case UNARY:
+                    return new UnaryExpr(in.get() != 0 ? "u-" : "!", expr());
+                case BINARY:
+                    return new BinaryExpr(BinaryExpr.symbol(in.get()), expr(), expr());
+                case FAIL:
+                    return new FailExpr(string());
+                case MALFORMED: {
+                    boolean underflow = in.get() != 0;
+                    int count = varint(in);
+                    List<Expr> parts = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        parts.add(expr());
+                    }
+                    return new MalformedExpr(parts, underflow);
+                }
+                case INDEX:
+                    return new IndexExpr(expr(), expr());
+                case CALL: {
+                    String name = string();
+                    return CallExpr.of(name, exprs());
+                }
+                case ARRAY:
+                    return new ArrayExpr(exprs());
+                default:
+                    throw new IllegalStateException("corrupt cache");
+            }
+        }
+
+        List<Expr> exprs() {
+            int count = varint(in);
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                exprs.add(expr());
+            }
+            return exprs;
+        }
+
+        String string() {
+            return strings[varint(in)];
+        }
+    }
+
+    private static void varint(ByteVector out, int value) {
+        varlong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void varlong(ByteVector out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put1((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.put1((int) value);
+    }
+
+    private static int varint(ByteBuffer in) {
+        return (int) varlong(in);
+    }
+
+    private static long varlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static byte[] version() {
+        MessageDigest sha = sha256();
+        sha.update((byte) FORMAT);
+        for (String name : FRONT_END) {
+            try (InputStream in = ProgramCache.class.getResourceAsStream(name + ".class")) {
+                if (in != null) {
+                    sha.update(in.readAllBytes());
+                }
+            } catch (IOException e) {
+                // Hash what is available; the format number still separates incompatible layouts.
+            }
+        }
+        return sha.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] digest(byte[] bytes) {
+        return sha256().digest(bytes);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        for (byte b : bytes) {
+            out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return out.toString();
+    }
+}
+
+/** Compares compiling a script from source with loading it from the program cache. */
+class CacheBenchmark {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    public static void run(byte[] source, ProgramCache cache) {
+        String code = new String(source, StandardCharsets.UTF_8);
+        // The first call of each is what a fresh process pays at startup; the best-of runs are steady state.
+        long start = System.nanoTime();
+        List<Node> compiled = ProgramCache.compile(code);
+        long coldCompile = System.nanoTime() - start;
+        byte[] key = ProgramCache.key(source);
+        cache.write(key, compiled);
+        start = System.nanoTime();
+        List<Node> loaded = cache.read(ProgramCache.key(source));
+        long coldLoad = System.nanoTime() - start;
+        if (loaded == null || !Optimizer.dump(loaded).equals(Optimizer.dump(compiled))) {
+            throw new InterpreterException("Cached program differs from the compiled one");
+        }
+
+        long compile = time(() -> ProgramCache.compile(code));
+        long load = time(() -> cache.read(ProgramCache.key(source)));
+        System.out.println(source.length + " bytes of source, " + cache.size() + " bytes cached");
+        System.out.printf("first compile: %.2f ms, first load: %.2f ms (%.1fx)%n",
+            coldCompile / 1e6, coldLoad / 1e6, (double) coldCompile / coldLoad);
+        System.out.printf("best compile:  %.2f ms, best load:  %.2f ms (%.1fx)%n",
+            compile / 1e6, load / 1e6, (double) compile / load);
+    }
+
+    private static long time(Runnable task) {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
+
+/**
+ * Compares the latency of running a script as a fresh {@code java Main} process with running it on a warm
+ * {@link ScriptServer}, both through {@code java Main --connect} and as a request from a running client.
+ */
+class DaemonBenchmark {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 20;
+
+    public static void run(Path source) throws IOException {
+        byte[] script = Files.readAllBytes(source);
+        Path socket = Files.createTempDirectory("sting").resolve("bench.sock");
+        ScriptServer server = new ScriptServer(UnixDomainSocketAddress.of(socket), 10_000, 0);
+        Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (ClosedByInterruptException e) {
+                // interrupted below once the runs are done
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+        try {
+            while (!Files.exists(socket)) {
+                Thread.sleep(10);
+            }
+            String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            String classPath = System.getProperty("java.class.path");
+            String file = source.toString();
+            report("cold java Main", time(() -> process(java, "-cp", classPath, "Main", file)));
+            report("java Main --connect", time(() -> process(java, "-cp", classPath, "Main", "--connect", socket.toString(), file)));
+            report("request to the server", time(() -> ScriptClient.exec(UnixDomainSocketAddress.of(socket), script,
+                InputStream.nullInputStream(), OutputStream.nullOutputStream())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            serving.interrupt();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private interface Task {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static void process(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        process.getOutputStream().close();
+        process.waitFor();
+    }
+
+    /** Milliseconds per run, sorted; each task is warmed up first so the server's script cache is filled. */
+    private static double[] time(Task task) throws IOException, InterruptedException {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        double[] millis = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(millis);
+        return millis;
+    }
+
+    private static void report(String label, double[] millis) {
+        System.out.printf("%-24s p50 %8.2f ms, p90 %8.2f ms, p99 %8.2f ms, mean %8.2f ms%n", label,
+            percentile(millis, 0.50), percentile(millis, 0.90), percentile(millis, 0.99),
+            Arrays.stream(millis).average().orElse(0));
+    }
+
+    static double percentile(double[] sorted, double fraction) {
+        return sorted[Math.max(0, (int) Math.ceil(sorted.length * fraction) - 1)];
+    }
+}
+
+/**
+ * The macro benchmark behind {@code --bench}: runs every {@code name.sting} in a corpus directory, answering
+ * roi() from {@code name.in} when there is one, and checks each run's output against {@code name.out} (recorded
+ * on the first run if missing). Each run compiles the script from source, as a fresh process would. Throughput,
+ * p50 latency and allocation are then compared with a stored baseline. A script is slower only if both its
+ * throughput and its p50 are past the threshold, so one noisy figure does not fail the run; p99 is reported but
+ * too noisy to gate on.
+ */
+class CorpusBenchmark {
+    // Warm-up runs in rounds until a round's median is no longer 5% better than the last one's: until then the
+    // JIT is still compiling, and recompiling what earlier scripts taught it, and allocation swings with what
+    // escape analysis has removed so far.
+    private static final int WARMUP_ROUND = 10;
+    private static final long MIN_WARMUP_MILLIS = 2000;
+    private static final long MAX_WARMUP_MILLIS = 10_000;
+    private static final int RUNS = 30;
+
+    static final class Result {
+        final double opsPerSecond;
+        final double p50Millis;
+        final double p99Millis;
+        final long allocatedBytes;
+
+        Result(double opsPerSecond, double p50Millis, double p99Millis, long allocatedBytes) {
+            this.opsPerSecond = opsPerSecond;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    /**
+     * Returns false if a script failed or printed something else than its golden output, or, unless the
+     * baseline is being rewritten, if a figure is worse than the baseline's by more than {@code thresholdPercent}.
+     */
+    public static boolean run(Path corpus, Path baseline, double thresholdPercent, boolean writeBaseline) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        try (var files = Files.list(corpus)) {
+            files.filter(file -> file.getFileName().toString().endsWith(".sting")).sorted().forEach(scripts::add);
+        }
+        if (scripts.isEmpty()) {
+            throw new IOException("No .sting files in " + corpus);
+        }
+        Map<String, Result> previous = writeBaseline || !Files.exists(baseline) ? null : readBaseline(baseline);
+        double threshold = thresholdPercent / 100;
+
+        System.out.printf("%-18s %10s %10s %10s %13s%s%n", "script", "runs/s", "p50 ms", "p99 ms", "alloc KB/run",
+            previous == null ? "" : "  vs baseline (runs/s, p50, alloc)");
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> failures = new ArrayList<>();
+        for (Path script : scripts) {
+            String file = script.getFileName().toString();
+            String name = file.substring(0, file.length() - ".sting".length());
+            try {
+                Path golden = golden(script);
+                boolean recorded = !Files.exists(golden);
+                if (recorded) {
+                    Files.writeString(golden, runOnce(Files.readString(script), input(script)));
+                }
+                Result result = fork(script);
+                results.put(name, result);
+                Result before = previous == null ? null : previous.get(name);
+                System.out.printf(Locale.ROOT, "%-18s %10.1f %10.3f %10.3f %13.1f%s%n", name, result.opsPerSecond,
+                    result.p50Millis, result.p99Millis, result.allocatedBytes / 1024.0,
+                    previous == null ? "" : before == null ? "  new" : "  " + compare(result, before));
+                if (recorded) {
+                    System.out.println("  recorded its output in " + golden);
+                }
+                if (before != null) {
+                    List<String> regressions = regressions(result, before, threshold);
+                    if (!regressions.isEmpty()) {
+                        failures.add(name + ": " + String.join(", ", regressions));
+                    }
+                }
+            } catch (InterpreterException e) {
+                failures.add(name + ": " + e.diagnostic());
+                System.out.printf("%-18s failed%n", name);
+            }
+        }
+
+        if (writeBaseline) {
+            writeBaseline(baseline, results);
+            System.out.println("Baseline written to " + baseline);
+        } else if (previous == null) {
+            System.out.println("No baseline at " + baseline + "; --write-baseline records one");
+        }
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        if (failures.isEmpty() && previous != null) {
+            System.out.printf(Locale.ROOT, "No regressions beyond %.0f%%%n", thresholdPercent);
+        }
+        return failures.isEmpty();
+    }
+
+    /**
+     * Measures one script for {@link #fork} and prints its figures on one line, or FAIL and the reason.
+     * Each script gets a JVM of its own: in a shared one, what the JIT learned from the scripts before it
+     * makes a script's figures swing by a factor of two from one run of the corpus to the next.
+     */
+    public static void main(String[] args) throws IOException {
+        Path script = Path.of(args[0]);
+        try {
+            Result result = measure(Files.readString(script), input(script), Files.readString(golden(script)));
+            System.out.printf(Locale.ROOT, "OK %.4f %.6f %.6f %d%n", result.opsPerSecond, result.p50Millis,
+                result.p99Millis, result.allocatedBytes);
+        } catch (InterpreterException e) {
+            System.out.println("FAIL " + e.diagnostic());
+        }
+    }
+
+    private static Result fork(Path script) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "CorpusBenchmark", script.toString())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        process.getOutputStream().close();
+        String reply = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while benchmarking " + script);
+        }
+        if (reply.startsWith("FAIL ")) {
+            throw new InterpreterException(reply.substring("FAIL ".length()));
+        }
+        String[] figures = reply.split(" ");
+        if (figures.length != 5 || !figures[0].equals("OK")) {
+            throw new IOException("Unexpected reply from the benchmark of " + script + ": " + reply);
+        }
+        return new Result(Double.parseDouble(figures[1]), Double.parseDouble(figures[2]),
+            Double.parseDouble(figures[3]), Long.parseLong(figures[4]));
+    }
+
+    private static Path golden(Path script) {
+        String file = script.getFileName().toString();
+        return script.resolveSibling(file.substring(0, file.length() - ".sting".length()) + ".out");
+    }
+
+    /** The script's roi() answers, from the {@code .in} file beside it. */
+    private static List<String> input(Path script) throws IOException {
+        String file = script.getFileName().toString();
+        Path input = script.resolveSibling(file.substring(0, file.length() - ".sting".length()) + ".in");
+        return Files.exists(input) ? Files.readAllLines(input) : List.of();
+    }
+
+    private static String runOnce(String source, List<String> input) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink out = new OutputSink(Channels.newChannel(bytes), StandardCharsets.UTF_8, OutputSink.DEFAULT_CAPACITY, -1);
+        Script script = StingEngine.compile(source);
+        script.execute(script.newContext(out, InputSource.of(input)));
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Result measure(String source, List<String> input, String golden) {
+        com.sun.management.ThreadMXBean threads = Profiler.allocationCounter();
+        long start = System.nanoTime();
+        double last = Double.MAX_VALUE;
+        while (true) {
+            double[] round = new double[WARMUP_ROUND];
+            for (int i = 0; i < WARMUP_ROUND; i++) {
+                long runStart = System.nanoTime();
+                check(runOnce(source, input), golden);
+                round[i] = (System.nanoTime() - runStart) / 1e6;
+            }
+            Arrays.sort(round);
+            double median = DaemonBenchmark.percentile(round, 0.50);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (elapsed >= MAX_WARMUP_MILLIS || (elapsed >= MIN_WARMUP_MILLIS && median > last * 0.95)) {
+                break;
+            }
+            last = median;
+        }
+        double[] millis = new double[RUNS];
+        long allocated = 0;
+        long total = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long bytes = threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+            long runStart = System.nanoTime();
+            String output = runOnce(source, input);
+            long elapsed = System.nanoTime() - runStart;
+            allocated += threads == null ? 0 : threads.getCurrentThreadAllocatedBytes() - bytes;
+            total += elapsed;
+            millis[i] = elapsed / 1e6;
+            check(output, golden);
+        }
+        Arrays.sort(millis);
+        return new Result(RUNS / (total / 1e9), DaemonBenchmark.percentile(millis, 0.50),
+            DaemonBenchmark.percentile(millis, 0.99), allocated / RUNS);
+    }
+
+    private static void check(String output, String golden) {
+        if (!output.equals(golden)) {
+            int at = 0;
+            while (at < output.length() && at < golden.length() && output.charAt(at) == golden.charAt(at)) {
+                at++;
+            }
+            throw new InterpreterException("Output differs from the golden file at character " + at);
+        }
+    }
+
+    private static String compare(Result result, Result before) {
+        return String.format(Locale.ROOT, "%+.1f%% %+.1f%% %+.1f%%",
+            change(result.opsPerSecond, before.opsPerSecond), change(result.p50Millis, before.p50Millis),
+            change(result.allocatedBytes, before.allocatedBytes));
+    }
+
+    private static double change(double now, double before) {
+        return before == 0 ? 0 : (now - before) / before * 100;
+    }
+
+    private static List<String> regressions(Result result, Result before, double threshold) {
+        List<String> regressions = new ArrayList<>();
+        if (result.opsPerSecond < before.opsPerSecond / (1 + threshold) && result.p50Millis > before.p50Millis * (1 + threshold)) {
+            regressions.add(String.format(Locale.ROOT, "throughput %.1f runs/s, baseline %.1f; p50 %.3f ms, baseline %.3f",
+                result.opsPerSecond, before.opsPerSecond, result.p50Millis, before.p50Millis));
+        }
+        if (result.allocatedBytes > before.allocatedBytes * (1 + threshold)) {
+            regressions.add("allocation " + result.allocatedBytes + " bytes per run, baseline " + before.allocatedBytes);
+        }
+        return regressions;
+    }
+
+    private static void writeBaseline(Path baseline, Map<String, Result> results) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            json.append(String.format(Locale.ROOT,
+                "  \"%s\": {\"opsPerSecond\": %.2f, \"p50Millis\": %.4f, \"p99Millis\": %.4f, \"allocatedBytes\": %d}%s%n",
+                entry.getKey(), result.opsPerSecond, result.p50Millis, result.p99Millis, result.allocatedBytes,
+                ++i < results.size() ? "," : ""));
+        }
+        Files.writeString(baseline, json.append("}\n"));
+    }
+
+    /** Reads a baseline: one object per script, keyed by name, with the numbers writeBaseline writes. */
+    static Map<String, Result> readBaseline(Path baseline) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        try {
+            JsonReader reader = new JsonReader(Files.readString(baseline));
+            for (Map.Entry<String, Object> entry : reader.object().entrySet()) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> figures = (Map<String, Object>) entry.getValue();
+                results.put(entry.getKey(), new Result(number(figures, "opsPerSecond"), number(figures, "p50Millis"),
+                    number(figures, "p99Millis"), (long) number(figures, "allocatedBytes")));
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            throw new IOException("Malformed baseline " + baseline + ": " + e.getMessage());
+        }
+        return results;
+    }
+
+    private static double number(Map<String, Object> figures, String key) {
+        Object value = figures.get(key);
+        if (!(value instanceof Double)) {
+            throw new IllegalArgumentException("missing number " + key);
+        }
+        return (Double) value;
+    }
+
+    /** Just enough JSON for baselines: objects, strings without escapes but \" and \\, and numbers. */
+    private static final class JsonReader {
+        private final String text;
+        private int at;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Map<String, Object> object() {
+            expect('{');
+            Map<String, Object> object = new LinkedHashMap<>();
+            if (peek() == '}') {
+                at++;
+                return object;
+            }
+            while (true) {
+                String key = string();
+                expect(':');
+                object.put(key, value());
+                if (peek() == '}') {
+                    at++;
+                    return object;
+                }
+                expect(',');
+            }
+        }
+
+        private Object value() {
+            char c = peek();
+            if (c == '{') {
+                return object();
+            }
+            if (c == '"') {
+                return string();
+            }
+            int start = at;
+            while (at < text.length() && "+-.eE0123456789".indexOf(text.charAt(at)) >= 0) {
+                at++;
+            }
+            try {
+                return Double.parseDouble(text.substring(start, at));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("expected a value at offset " + start);
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (at < text.length() && text.charAt(at) != '"') {
+                char c = text.charAt(at++);
+                value.append(c == '\\' && at < text.length() ? text.charAt(at++) : c);
+            }
+            expect('"');
+            return value.toString();
+        }
+
+        private char peek() {
+            while (at < text.length() && Character.isWhitespace(text.charAt(at))) {
+                at++;
+            }
+            return at < text.length() ? text.charAt(at) : '\0';
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw new IllegalArgumentException("expected '" + c + "' at offset " + at);
+            }
+            at++;
+        }
+    }
+}
+
+/**
+ * Embedding API: compiles a script once into a {@link Script} that can then run any number of times, on any
+ * number of threads at once, each run with its own Context, input and output.
+ */
+final class StingEngine {
+    private StingEngine() {
+    }
+
+    public static Script compile(String source) {
+        Optimizer optimizer = new Optimizer();
+        List<Node> nodes = optimizer.hoistInvariants(optimizer.optimize(new Parser(new Lexer().scan(source)).parse()));
+        SymbolTable symbols = new Resolver().resolve(nodes);
+        return new Script(nodes, symbols);
+    }
+}
+
+/** A parsed, optimized and resolved program. Immutable once compiled; all run state lives in the Context. */
+final class Script {
+    private final List<Node> nodes;
+    private final SymbolTable symbols;
+
+    Script(List<Node> nodes, SymbolTable symbols) {
+        this.nodes = nodes;
+        this.symbols = symbols;
+    }
+
+    public Context newContext(OutputSink out, InputSource in) {
+        return new Context(symbols, out, in);
+    }
+
+    /** Runs the script in a context made by {@link #newContext}, flushing its output even if the run fails. */
+    public void execute(Context context) {
+        try {
+            Node.executeAll(nodes, context);
+        } finally {
+            context.out.flush();
+        }
+    }
+
+    /** Runs the script once, reading roi() answers from {@code in} and writing show() output to {@code out}. */
+    public void run(InputStream in, OutputStream out) {
+        OutputSink sink = new OutputSink(Channels.newChannel(out), StandardCharsets.UTF_8, OutputSink.DEFAULT_CAPACITY, -1);
+        execute(newContext(sink, new StreamInputSource(in, StandardCharsets.UTF_8)));
+    }
+}
+
+/**
+ * Interactive session: each entry runs as soon as it is complete, in one Context, so variables persist from
+ * one entry to the next. Only the entry just typed is lexed and parsed. An entry is complete once every loop
+ * and if it opens is closed by {@code ||}; a blank line runs it as it is.
+ */
+final class Repl {
+    private static final String PROMPT = "sting> ";
+    private static final String MORE = "  ...> ";
+
+    private Repl() {
+    }
+
+    /** Reads entries from {@code in}, which roi() shares, until it runs out. */
+    static void run(OutputSink out, InputSource in) {
+        SymbolTable symbols = new SymbolTable();
+        Context context = new Context(symbols, out, in);
+        Optimizer optimizer = new Optimizer();
+        StringBuilder entry = new StringBuilder();
+        while (true) {
+            out.print(entry.length() == 0 ? PROMPT : MORE);
+            out.flush();
+            String line;
+            try {
+                line = in.readLine();
+            } catch (NoSuchElementException e) {
+                out.endLine();
+                out.flush();
+                return;
+            }
+            if (entry.length() == 0 && line.isBlank()) {
+                continue;
+            }
+            entry.append(line).append('\n');
+            try {
+                TokenBuffer tokens = new Lexer().scan(entry.toString());
+                if (!line.isBlank() && openBlocks(tokens) > 0) {
+                    continue;
+                }
+                entry.setLength(0);
+                for (Node node : optimizer.optimize(new Parser(tokens).parse())) {
+                    node = optimizer.hoistInvariants(node);
+                    node.resolve(symbols);
+                    Node.executeAll(List.of(node), context);
+                }
+            } catch (InterpreterException e) {
+                entry.setLength(0);
+                out.flush();
+                System.err.println("Interpreter error: " + e.diagnostic());
+            }
+        }
+    }
+
+    /** Loops and ifs the tokens open and do not close with a {@code ||} outside parentheses. */
+    static int openBlocks(TokenBuffer tokens) {
+        int blocks = 0;
+        int parens = 0;
+        boolean bar = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.kind(i) == TokenBuffer.STRING) {
+                bar = false;
+                continue;
+            }
+            int symbol = tokens.symbol(i);
+            boolean closes = bar && symbol == TokenBuffer.PIPE;
+            bar = !closes && symbol == TokenBuffer.PIPE;
+            switch (symbol) {
+                case TokenBuffer.LPAREN: parens++; break;
+                case TokenBuffer.RPAREN: parens--; break;
+                case TokenBuffer.LOOP:
+                case TokenBuffer.PLOOP:
+                case TokenBuffer.IF:
+                    blocks++;
+                    break;
+                case TokenBuffer.PIPE:
+                    if (closes && parens == 0 && blocks > 0) {
+                        blocks--;
+                    }
+                    break;
+            }
+        }
+        return blocks;
+    }
+}
+
+/**
+ * Runs scripts for local clients over loopback TCP or a Unix-domain socket. Each connection is served on its
+ * own thread, a virtual thread where the JVM has them (Java 21+); a run in a long loop yields its carrier
+ * every millisecond, so it cannot starve the others.
+ * Compiled scripts are cached by source text, so a script sent repeatedly is parsed once.
+ *
+ * <p>The protocol is a header line followed by raw UTF-8 bytes, any number of requests per connection:
+ * <pre>
+ *   RUN &lt;script bytes&gt; &lt;input bytes&gt;\n&lt;script&gt;&lt;input&gt;
+ *     -> OK|ERROR|TIMEOUT &lt;output bytes&gt; &lt;elapsed micros&gt; [message]\n&lt;output&gt;
+ *   STATS\n
+ *     -> STATS &lt;report bytes&gt;\n&lt;report&gt;
+ * </pre>
+ * EXEC streams instead, and must be the last request on its connection: everything the client sends after
+ * the script is the script's input, and output is sent in frames as soon as it is flushed.
+ * <pre>
+ *   EXEC &lt;script bytes&gt;\n&lt;script&gt;&lt;input until the client shuts down its side&gt;
+ *     -> (OUT &lt;bytes&gt;\n&lt;output&gt;)* END OK|ERROR|TIMEOUT &lt;elapsed micros&gt; [message]\n
+ * </pre>
+ */
+final class ScriptServer {
+    private static final int CACHE_SIZE = 256;
+    private static final int MAX_OUTPUT = 16 << 20;
+    private static final long WARM_UP_MILLIS = 1500;
+    private static final String WARM_UP = String.join("\n",
+        "num(n) = roi('n? ') |",
+        "str(word) = roi('word? ') |",
+        "num(k) = 0 |",
+        "num(total) = 0 |",
+        "str(s) = '' |",
+        "loop(k < 200):",
+        "    if (k % 3 == n % 3):",
+        "        total = total + k * 2 - 1 ||",
+        "    s = s + word |",
+        "    k = k + 1 ||",
+        "bln(big) = total > 1000 || k < 0 |",
+        "show('total: ', total, ' ', big, ' ', s)");
+
+    private final SocketAddress address;
+    private final long timeoutMillis;
+    private final long maxSteps;
+    private final ExecutorService threads = newThreadPerTaskExecutor();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Map<String, Script> scripts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /** Runs end with TIMEOUT after {@code timeoutMillis}, or after {@code maxSteps} steps when that is positive. */
+    ScriptServer(SocketAddress address, long timeoutMillis, long maxSteps) {
+        this.address = address;
+        this.timeoutMillis = timeoutMillis;
+        this.maxSteps = maxSteps;
+    }
+
+    /** A port number means loopback TCP; anything else is the path of a Unix-domain socket. */
+    static SocketAddress address(String spec) {
+        if (spec.matches("\\d+")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+        }
+        return UnixDomainSocketAddress.of(spec);
+    }
+
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /** Accepts connections until the thread is interrupted or the channel fails. */
+    void serve() throws IOException {
+        warmUp();
+        boolean unix = address instanceof UnixDomainSocketAddress;
+        if (unix) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+        try (ServerSocketChannel server = unix
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open()) {
+            server.bind(address);
+            System.err.println("Serving scripts on " + server.getLocalAddress() + " (timeout " + timeoutMillis + " ms"
+                + (maxSteps > 0 ? ", " + maxSteps + " steps" : "") + ")");
+            while (true) {
+                SocketChannel connection = server.accept();
+                threads.execute(() -> handle(connection));
             }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
 
-            expect("(");
-            StringBuilder conditionBuilder = new StringBuilder();
-            int parenCount = 1;
-            while (parenCount > 0 && position < tokens.size()) {
-                Token token = next();
-                if (token.value.equals("(")) parenCount++;
-                else if (token.value.equals(")")) parenCount--;
-                if (parenCount > 0) {
-                    conditionBuilder.append(token.value).append(" ");
+    private void handle(SocketChannel connection) {
+        try (connection;
+             InputStream in = new BufferedInputStream(Channels.newInputStream(connection));
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(connection))) {
+            String header;
+            while ((header = readLine(in)) != null) {
+                String[] fields = header.trim().split(" ");
+                if (fields[0].equals("RUN") && fields.length == 3) {
+                    String source = new String(in.readNBytes(Integer.parseInt(fields[1])), StandardCharsets.UTF_8);
+                    byte[] input = in.readNBytes(Integer.parseInt(fields[2]));
+                    run(source, input, out);
+                } else if (fields[0].equals("EXEC") && fields.length == 2) {
+                    String source = new String(in.readNBytes(Integer.parseInt(fields[1])), StandardCharsets.UTF_8);
+                    exec(source, in, out);
+                    return;
+                } else if (fields[0].equals("STATS")) {
+                    byte[] report = metrics.report().getBytes(StandardCharsets.UTF_8);
+                    out.write(("STATS " + report.length + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.write(report);
+                } else {
+                    out.write(("ERROR 0 0 Unknown request: " + header + "\n").getBytes(StandardCharsets.UTF_8));
                 }
+                out.flush();
             }
-            String condition = conditionBuilder.toString().trim();
-            expect(":");
+        } catch (IOException | NumberFormatException e) {
+            // The client went away or sent garbage; drop the connection.
+        }
+    }
 
-            List<Node> body = new ArrayList<>();
-            while (position < tokens.size()
-                    && !peek().value.equals("|")
-                    && !peek().value.equals("elseif")
-                    && !peek().value.equals("else")
-                    && !peek().value.equals("if")) {
-                Node stmt = parseStatement();
-                if (stmt != null) body.add(stmt);
+    private void run(String source, byte[] input, OutputStream response) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        String outcome = execute(source,
+            new OutputSink(new CappedChannel(output, MAX_OUTPUT), StandardCharsets.UTF_8, 1 << 13, -1),
+            new StreamInputSource(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+        int space = outcome.indexOf(' ');
+        response.write((outcome.substring(0, space) + " " + output.size() + outcome.substring(space) + "\n")
+            .getBytes(StandardCharsets.UTF_8));
+        output.writeTo(response);
+    }
+
+    /** Runs a script whose input is the rest of the connection, sending output as it is flushed. */
+    private void exec(String source, InputStream in, OutputStream response) throws IOException {
+        String outcome = execute(source,
+            new OutputSink(new FrameChannel(response), StandardCharsets.UTF_8, 1 << 13, OutputSink.DEFAULT_FLUSH_MILLIS),
+            new StreamInputSource(in, StandardCharsets.UTF_8));
+        response.write(("END " + outcome + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Compiles and runs a script within the server's limits, and returns "status micros [message]". */
+    private String execute(String source, OutputSink out, InputSource in) {
+        long start = System.nanoTime();
+        String status = "OK";
+        String message = "";
+        Context context = null;
+        try {
+            Script script = compiled(source);
+            context = script.newContext(out, in);
+            // The run checks its own limits, so it can stay on the connection's thread.
+            context.limitTime(timeoutMillis);
+            if (maxSteps > 0) {
+                context.limitSteps(maxSteps);
             }
+            script.execute(context);
+        } catch (CancelledException e) {
+            status = "TIMEOUT";
+            message = e.diagnostic();
+        } catch (InterpreterException e) {
+            status = "ERROR";
+            message = e.diagnostic();
+        } catch (RuntimeException e) {
+            status = "ERROR";
+            message = String.valueOf(e);
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        metrics.record(status, micros, context == null ? 0 : context.steps());
+        return status + " " + micros + (message.isEmpty() ? "" : " " + message.replace('\n', ' '));
+    }
 
-            if (peek().value.equals("|")) next();
-            blocks.add(new IfNode.ConditionBlock(condition, body));
+    /**
+     * Runs a small program that touches the lexer, parser, evaluator and output until the JIT has compiled
+     * them, so the first clients do not pay for warm-up. Its output and metrics are discarded.
+     */
+    private static void warmUp() {
+        Script script = StingEngine.compile(WARM_UP);
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARM_UP_MILLIS);
+        while (System.nanoTime() < until) {
+            StingEngine.compile(WARM_UP);
+            OutputSink sink = new OutputSink(Channels.newChannel(OutputStream.nullOutputStream()),
+                StandardCharsets.UTF_8, 1 << 13, -1);
+            script.execute(script.newContext(sink, InputSource.of(List.of("7", "word"))));
         }
-        return new IfNode(blocks);
     }
 
-    private Node parseLoop() {
-        next();
-        expect("(");
-        StringBuilder conditionBuilder = new StringBuilder();
-        while (!peek().value.equals(")")) {
-            conditionBuilder.append(next().value).append(" ");
+    private Script compiled(String source) {
+        Script script;
+        synchronized (scripts) {
+            script = scripts.get(source);
+        }
+        if (script != null) {
+            metrics.cacheHit();
+            return script;
         }
-        expect(")");
-        expect(":");
+        script = StingEngine.compile(source);
+        synchronized (scripts) {
+            scripts.put(source, script);
+        }
+        return script;
+    }
 
-        List<Node> body = new ArrayList<>();
-        while (true) {
-            if (position >= tokens.size()) break;
-            if (peek().value.equals("|")) {
-                next();
-                if (position < tokens.size() && peek().value.matches("show|str|num|bln|if|elseif|else|loop|roi")) {
-                    break;
-                }
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.length() == 0 ? null : line.toString();
             }
-            Node stmt = parseStatement();
-            if (stmt == null) break;
-            body.add(stmt);
+            line.append((char) b);
         }
-        return new LoopNode(conditionBuilder.toString().trim(), body);
+        return line.toString();
     }
-}
 
-class ExpressionEvaluator {
-    public static List<String> tokenizeExpression(String expr) {
-        List<String> tokens = new ArrayList<>();
-        Matcher matcher = Pattern.compile("'[^']*'|\\d+\\.\\d+|\\d+|[a-zA-Z_][a-zA-Z0-9_]*|[()!]|&&|\\|\\||[<>]=?|==|!=|[+\\-*/%^]").matcher(expr);
-        while (matcher.find()) {
-            tokens.add(matcher.group());
+    /** Virtual threads when the runtime has them, looked up reflectively so the code still runs on Java 17. */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        return tokens;
     }
 
-    public static List<String> toPostfix(List<String> tokens) {
-        List<String> output = new ArrayList<>();
-        Stack<String> operators = new Stack<>();
-        boolean expectUnary = true;
-        Map<String, Integer> precedence = new HashMap<>();
-        precedence.put("^", 5);
-        precedence.put("u-", 4);
-        precedence.put("!", 4);
-        precedence.put("*", 3);
-        precedence.put("/", 3);
-        precedence.put("%", 3);
-        precedence.put("+", 2);
-        precedence.put("-", 2);
-        precedence.put(">", 1);
-        precedence.put("<", 1);
-        precedence.put(">=", 1);
-        precedence.put("<=", 1);
-        precedence.put("==", 1);
-        precedence.put("!=", 1);
-        precedence.put("&&", 0);
-        precedence.put("||", -1);
-
-        for (String token : tokens) {
-            if (token.matches("\\d+\\.\\d+|\\d+|[a-zA-Z_][a-zA-Z0-9_]*|'[^']*'")) {
-                output.add(token);
-                expectUnary = false;
-            } else if (token.equals("(")) {
-                operators.push(token);
-                expectUnary = true;
-            } else if (token.equals(")")) {
-                while (!operators.isEmpty() && !operators.peek().equals("(")) {
-                    output.add(operators.pop());
-                }
-                if (!operators.isEmpty()) operators.pop();
-                expectUnary = false;
-            } else {
-                if (token.equals("-") && expectUnary) {
-                    token = "u-";
-                }
-                while (!operators.isEmpty() && precedence.containsKey(operators.peek()) &&
-                       precedence.get(token) <= precedence.get(operators.peek())) {
-                    output.add(operators.pop());
-                }
-                operators.push(token);
-                expectUnary = true;
+    /** Sends each write as an {@code OUT} frame, flushed so the client sees it straight away. */
+    private static final class FrameChannel implements WritableByteChannel {
+        private final OutputStream out;
+
+        FrameChannel(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            out.write(("OUT " + length + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(source.array(), source.arrayOffset() + source.position(), length);
+            out.flush();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Collects output in memory and fails the run once it passes a limit, so one script cannot exhaust the heap. */
+    private static final class CappedChannel implements WritableByteChannel {
+        private final ByteArrayOutputStream out;
+        private final int limit;
+
+        CappedChannel(ByteArrayOutputStream out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            if (out.size() + length > limit) {
+                throw new InterpreterException("Output exceeds " + limit + " bytes");
             }
+            byte[] bytes = new byte[length];
+            source.get(bytes);
+            out.write(bytes, 0, length);
+            return length;
         }
-        while (!operators.isEmpty()) {
-            output.add(operators.pop());
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
         }
-        return output;
     }
+}
 
-    public static Object evaluatePostfix(List<String> postfix, Context context) {
-        Stack<Object> stack = new Stack<>();
+/**
+ * The thin client for {@link ScriptServer}: runs one script with EXEC, copying standard input to the server
+ * and the script's output to standard output as it arrives. Reads and writes go straight to the channel,
+ * which allows one thread to block reading while another writes.
+ */
+final class ScriptClient {
+    private ScriptClient() {
+    }
 
-        for (String token : postfix) {
-            if (token.matches("\\d+\\.\\d+|\\d+")) {
-                stack.push(Double.parseDouble(token));
-            } else if (token.startsWith("'") && token.endsWith("'")) {
-                stack.push(token.substring(1, token.length() - 1));
-            } else if ("true".equalsIgnoreCase(token)) {
-                stack.push(true);
-            } else if ("false".equalsIgnoreCase(token)) {
-                stack.push(false);
-            } else if (context.variables.containsKey(token)) {
-                stack.push(context.get(token));
-            } else if (token.equals("!")) {
-                Object val = stack.pop();
-                if (val instanceof Boolean) {
-                    stack.push(!(Boolean) val);
-                } else {
-                    throw new InterpreterException("Invalid operand for '!': " + val);
-                }
-            } else if (token.equals("&&") || token.equals("||")) {
-                boolean b = (Boolean) stack.pop();
-                boolean a = (Boolean) stack.pop();
-                stack.push(token.equals("&&") ? a && b : a || b);
-            } else if (token.matches("==|!=|>|<|>=|<=")) {
-                Object b = stack.pop();
-                Object a = stack.pop();
-                stack.push(compare(a, b, token));
-            } else if (token.equals("u-")) {
-                double val = toDouble(stack.pop());
-                stack.push(-val);
-            } else if (token.equals("+")) {
-                Object b = stack.pop();
-                Object a = stack.pop();
-                if (a instanceof String || b instanceof String) {
-                    stack.push(a.toString() + b.toString());
+    /** Runs the script, reporting a failure on standard error the way a local run does. */
+    static void exec(SocketAddress address, byte[] script, InputStream stdin, OutputStream stdout) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            write(channel, ("EXEC " + script.length + "\n").getBytes(StandardCharsets.UTF_8));
+            write(channel, script);
+            Thread pump = new Thread(() -> {
+                byte[] buffer = new byte[1 << 13];
+                try {
+                    int n;
+                    while ((n = stdin.read(buffer)) > 0) {
+                        write(channel, Arrays.copyOf(buffer, n));
+                    }
+                    channel.shutdownOutput();
+                } catch (IOException e) {
+                    // The run is over and the server has closed the connection.
+                }
+            });
+            pump.setDaemon(true);
+            pump.start();
+
+            InputStream in = new BufferedInputStream(Channels.newInputStream(new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer target) throws IOException {
+                    return channel.read(target);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() {
+                }
+            }));
+            String header;
+            while ((header = readLine(in)) != null) {
+                if (header.startsWith("OUT ")) {
+                    stdout.write(in.readNBytes(Integer.parseInt(header.substring(4))));
+                    stdout.flush();
+                } else if (header.startsWith("END ")) {
+                    String[] fields = header.split(" ", 4);
+                    if (!fields[1].equals("OK")) {
+                        System.err.println("Interpreter error: " + (fields.length > 3 ? fields[3] : fields[1]));
+                    }
+                    return;
                 } else {
-                    stack.push(toDouble(a) + toDouble(b));
-                }
-            } else if (token.equals("-")) {
-                double b = toDouble(stack.pop());
-                double a = toDouble(stack.pop());
-                stack.push(a - b);
-            } else if (token.equals("*")) {
-                double b = toDouble(stack.pop());
-                double a = toDouble(stack.pop());
-                stack.push(a * b);
-            } else if (token.equals("/")) {
-                double b = toDouble(stack.pop());
-                double a = toDouble(stack.pop());
-                if (b == 0) {
-                    throw new InterpreterException("Division by zero error");
+                    throw new IOException("Unexpected response: " + header);
                 }
-                stack.push(a / b);
-            } else if (token.equals("%")) {
-                double b = toDouble(stack.pop());
-                double a = toDouble(stack.pop());
-                stack.push(a % b);
-            } else if (token.equals("^")) {
-                double b = toDouble(stack.pop());
-                double a = toDouble(stack.pop());
-                stack.push(Math.pow(a, b));
-            } else {
-                throw new InterpreterException("Unexpected token in expression: " + token);
             }
+            throw new IOException("Connection closed before the run ended");
         }
-        return stack.size() == 1 ? stack.pop() : null;
     }
 
-    private static double toDouble(Object obj) {
-        if (obj instanceof Number) {
-            return ((Number) obj).doubleValue();
-        } else {
-            throw new InterpreterException("Expected a number but got: " + obj);
+    private static void write(SocketChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
     }
 
-    private static boolean compare(Object a, Object b, String op) {
-        try {
-            double x = toDouble(a);
-            double y = toDouble(b);
-            return switch (op) {
-                case ">" -> x > y;
-                case "<" -> x < y;
-                case ">=" -> x >= y;
-                case "<=" -> x <= y;
-                case "==" -> x == y;
-                case "!=" -> x != y;
-                default -> false;
-            };
-        } catch (Exception e) {
-            String sa = a.toString();
-            String sb = b.toString();
-            return switch (op) {
-                case "==" -> sa.equals(sb);
-                case "!=" -> !sa.equals(sb);
-                default -> false;
-            };
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.append((char) b);
         }
+        return line.toString();
     }
+}
 
-    public static boolean evaluate(String expr, Context context) {
-        expr = expr.trim();
-        try {
-            List<String> tokens = tokenizeExpression(expr);
-            List<String> postfix = toPostfix(tokens);
-            Object result = evaluatePostfix(postfix, context);
-            if (result instanceof Boolean) {
-                return (Boolean) result;
-            }
-            if (result instanceof Number) {
-                return ((Number) result).doubleValue() != 0;
-            }
-            return false;
-        } catch (Exception e) {
-            return false;
+/** Execution counts and a latency histogram with power-of-two microsecond buckets. */
+final class ServerMetrics {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder totalSteps = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    void record(String status, long micros, long steps) {
+        switch (status) {
+            case "OK": ok.increment(); break;
+            case "TIMEOUT": timeouts.increment(); break;
+            default: errors.increment();
         }
+        totalSteps.add(steps);
+        totalMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
     }
 
-    public static Object evaluateValue(String expr, Context context) {
-        List<String> tokens = tokenizeExpression(expr);
-        List<String> postfix = toPostfix(tokens);
-        return evaluatePostfix(postfix, context);
+    void cacheHit() {
+        cacheHits.increment();
+    }
+
+    String report() {
+        long count = ok.sum() + errors.sum() + timeouts.sum();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("executions %d (ok %d, errors %d, timeouts %d), compiled-script cache hits %d%n",
+            count, ok.sum(), errors.sum(), timeouts.sum(), cacheHits.sum()));
+        out.append(String.format("throughput %.1f/s over %.1f s%n", count / seconds, seconds));
+        out.append(String.format("steps %d%s%n", totalSteps.sum(),
+            count > 0 ? String.format(", mean %.1f per execution", (double) totalSteps.sum() / count) : ""));
+        if (count > 0) {
+            out.append(String.format("latency mean %.3f ms, p50 <= %.3f ms, p90 <= %.3f ms, p99 <= %.3f ms, max %.3f ms%n",
+                totalMicros.sum() / 1000.0 / count, percentile(count, 0.50), percentile(count, 0.90),
+                percentile(count, 0.99), maxMicros.get() / 1000.0));
+        }
+        return out.toString();
+    }
+
+    /** Upper bound, in milliseconds, of the bucket holding the given fraction of executions. */
+    private double percentile(long count, double fraction) {
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.ceil(count * fraction)) {
+                return (i == 0 ? 0 : 1L << i) / 1000.0;
+            }
+        }
+        return maxMicros.get() / 1000.0;
     }
 }
 
 class InterpreterException extends RuntimeException {
+    private int line;
+    private int column;
+
     public InterpreterException(String message) {
         super(message);
     }
+
+    /** Records where the error happened unless a more precise position is already known. */
+    public InterpreterException at(int line, int column) {
+        if (this.line == 0 && line > 0) {
+            this.line = line;
+            this.column = column;
+        }
+        return this;
+    }
+
+    public InterpreterException at(int line) {
+        return at(line, 0);
+    }
+
+    public int line() {
+        return line;
+    }
+
+    /** The message prefixed with its source position, when one is known. */
+    public String diagnostic() {
+        if (line == 0) {
+            return getMessage();
+        }
+        return "line " + line + (column > 0 ? ", column " + column : "") + ": " + getMessage();
+    }
+}
+
+/** An error from an array, its elements or an array function; reported as it is wherever it happens. */
+class ArrayException extends InterpreterException {
+    private static final long serialVersionUID = 1L;
+
+    public ArrayException(String message) {
+        super(message);
+    }
+}
+
+/** The error a run ends with when it is cancelled through {@link Context#cancel} or passes one of its limits. */
+class CancelledException extends InterpreterException {
+    private static final long serialVersionUID = 1L;
+
+    public CancelledException(String message) {
+        super(message);
+    }
 }
 
 public class Main {
-    public static void main(String[] args) {
-        try {
-            String code = Files.readString(Path.of("C:\\Byry\\Codes\\ProgLang Project\\sample.sting"));
-            Lexer lexer = new Lexer();
-            List<Token> tokens = lexer.tokenize(code);
+    // How long a shutdown hook waits for the running script to write its pending output.
+    private static final long FLUSH_ON_EXIT_MILLIS = 200;
 
-            Parser parser = new Parser(tokens);
-            List<Node> nodes = parser.parse();
+    private static final class Options {
+        String source;
+        String output;
+        String input;
+        boolean jvm;
+        boolean vm;
+        boolean benchLexer;
+        boolean stream;
+        boolean profile;
+        boolean dumpOptimized;
+        boolean cache;
+        String cacheDir;
+        boolean benchCache;
+        String serve;
+        long timeoutMillis = 10_000;
+        long maxSteps;
+        long timeLimitMillis;
+        boolean stats;
+        boolean repl;
+        String connect;
+        boolean benchDaemon;
+        String bench;
+        String baseline;
+        double threshold = 25;
+        boolean writeBaseline;
+    }
 
-            Context context = new Context();
-            for (Node node : nodes) {
-                node.execute(context);
+    public static void main(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--out") && i + 1 < args.length) {
+                options.output = args[++i];
+            } else if (arg.equals("--in") && i + 1 < args.length) {
+                options.input = args[++i];
+            } else if (arg.equals("--jvm")) {
+                options.jvm = true;
+            } else if (arg.equals("--vm")) {
+                options.vm = true;
+            } else if (arg.equals("--bench-lexer")) {
+                options.benchLexer = true;
+            } else if (arg.equals("--stream")) {
+                options.stream = true;
+            } else if (arg.equals("--profile")) {
+                options.profile = true;
+            } else if (arg.equals("--dump-opt")) {
+                options.dumpOptimized = true;
+            } else if (arg.equals("--cache")) {
+                options.cache = true;
+            } else if (arg.equals("--cache-dir") && i + 1 < args.length) {
+                options.cacheDir = args[++i];
+            } else if (arg.equals("--bench-cache")) {
+                options.benchCache = true;
+            } else if (arg.equals("--serve") && i + 1 < args.length) {
+                options.serve = args[++i];
+            } else if (arg.equals("--timeout") && i + 1 < args.length) {
+                options.timeoutMillis = Long.parseLong(args[++i]);
+            } else if (arg.equals("--max-steps") && i + 1 < args.length) {
+                options.maxSteps = Long.parseLong(args[++i]);
+            } else if (arg.equals("--time-limit") && i + 1 < args.length) {
+                options.timeLimitMillis = Long.parseLong(args[++i]);
+            } else if (arg.equals("--stats")) {
+                options.stats = true;
+            } else if (arg.equals("--repl")) {
+                options.repl = true;
+            } else if (arg.equals("--connect") && i + 1 < args.length) {
+                options.connect = args[++i];
+            } else if (arg.equals("--bench-daemon")) {
+                options.benchDaemon = true;
+            } else if (arg.equals("--bench") && i + 1 < args.length) {
+                options.bench = args[++i];
+            } else if (arg.equals("--baseline") && i + 1 < args.length) {
+                options.baseline = args[++i];
+            } else if (arg.equals("--threshold") && i + 1 < args.length) {
+                options.threshold = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--write-baseline")) {
+                options.writeBaseline = true;
+            } else {
+                options.source = arg;
+            }
+        }
+        if (options.serve != null) {
+            serve(options);
+            return;
+        }
+        if (options.repl) {
+            Repl.run(OutputSink.stdout(), InputSource.stdin());
+            return;
+        }
+        if (options.bench != null) {
+            bench(options);
+            return;
+        }
+        if (options.source == null) {
+            System.err.println("Usage: java Main [options] <file.sting>, java Main --repl, "
+                + "java Main --serve <port|socket> [--timeout <ms>] [--max-steps <n>], "
+                + "or java Main --bench <dir> [--baseline <file>] [--threshold <percent>] [--write-baseline]");
+            return;
+        }
+        if (options.connect != null) {
+            try {
+                ScriptClient.exec(ScriptServer.address(options.connect), Files.readAllBytes(Path.of(options.source)),
+                    System.in, System.out);
+            } catch (IOException e) {
+                System.err.println("Client error: " + e.getMessage());
+            }
+            return;
+        }
+
+        try {
+            OutputSink out = options.output == null ? OutputSink.stdout() : OutputSink.file(Path.of(options.output));
+            // If the process is killed mid-run, the running script writes what it has printed so far.
+            Thread flushOnExit = new Thread(() -> out.requestFlush(FLUSH_ON_EXIT_MILLIS));
+            Runtime.getRuntime().addShutdownHook(flushOnExit);
+            // Pending output is written before any error message below.
+            try {
+                InputSource in = options.input == null ? InputSource.stdin() : InputSource.file(Path.of(options.input));
+                Profiler profiler = options.profile ? new Profiler() : null;
+                try {
+                    run(options, out, in, profiler);
+                } finally {
+                    if (profiler != null) {
+                        out.flush();
+                        profiler.report(System.err);
+                    }
+                }
+            } finally {
+                if (options.output != null) {
+                    out.close();
+                } else {
+                    out.flush();
+                }
+                try {
+                    Runtime.getRuntime().removeShutdownHook(flushOnExit);
+                } catch (IllegalStateException e) {
+                    // Already shutting down; the hook finds nothing left to flush.
+                }
             }
         } catch (InterpreterException e) {
-            System.err.println("Interpreter error: " + e.getMessage());
+            System.err.println("Interpreter error: " + e.diagnostic());
         } catch (Exception e) {
             System.err.println("Unexpected error: " + e.getMessage());
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    private static void serve(Options options) {
+        ScriptServer server = new ScriptServer(ScriptServer.address(options.serve), options.timeoutMillis, options.maxSteps);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(server.metrics().report())));
+        try {
+            server.serve();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Server error: " + e.getMessage());
+        }
+    }
+
+    /** Exits with status 1 when the corpus fails its golden outputs or regresses against the baseline. */
+    private static void bench(Options options) {
+        Path corpus = Path.of(options.bench);
+        Path baseline = options.baseline == null ? corpus.resolve("baseline.json") : Path.of(options.baseline);
+        boolean passed;
+        try {
+            passed = CorpusBenchmark.run(corpus, baseline, options.threshold, options.writeBaseline);
+        } catch (IOException e) {
+            System.err.println("Bench error: " + e.getMessage());
+            passed = false;
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static void run(Options options, OutputSink out, InputSource in, Profiler profiler) throws IOException {
+        if (options.stream) {
+            runStreaming(Path.of(options.source), out, in, profiler, options);
+            return;
+        }
+        Path path = Path.of(options.source);
+        if (options.benchDaemon) {
+            DaemonBenchmark.run(path);
+            return;
+        }
+        byte[] source = Files.readAllBytes(path);
+        if (options.benchLexer) {
+            LexerBenchmark.run(new String(source, StandardCharsets.UTF_8));
+            return;
+        }
+        ProgramCache cache = null;
+        if (options.cache || options.cacheDir != null || options.benchCache) {
+            Path directory = options.cacheDir == null ? null : Files.createDirectories(Path.of(options.cacheDir));
+            cache = ProgramCache.forSource(path, directory);
+        }
+        if (options.benchCache) {
+            CacheBenchmark.run(source, cache);
+            return;
+        }
+        List<Node> nodes = cache != null
+            ? cache.load(source)
+            : ProgramCache.compile(new String(source, StandardCharsets.UTF_8));
+        if (options.dumpOptimized) {
+            System.err.print(Optimizer.dump(nodes));
+        }
+        SymbolTable symbols = new Resolver().resolve(nodes);
+
+        Context context = newContext(symbols, out, in, options);
+        try {
+            run(options, nodes, symbols, context, profiler);
+        } finally {
+            stats(options, context, out);
+        }
+    }
+
+    private static void run(Options options, List<Node> nodes, SymbolTable symbols, Context context, Profiler profiler) {
+        if (profiler == null && options.jvm) {
+            JvmProgram program = null;
+            try {
+                program = JvmCompiler.compile(nodes, symbols);
+            } catch (UnsupportedOperationException e) {
+                System.err.println("JVM backend unavailable (" + e.getMessage() + "), using the interpreter");
+            }
+            if (program != null) {
+                program.run(context);
+                return;
+            }
+        } else if (profiler == null && options.vm) {
+            VmProgram program = null;
+            try {
+                program = VmCompiler.compile(nodes, symbols);
+            } catch (UnsupportedOperationException e) {
+                System.err.println("VM backend unavailable (" + e.getMessage() + "), using the interpreter");
+            }
+            if (program != null) {
+                program.run(context);
+                return;
+            }
+        }
+        nodes = new Optimizer().hoistInvariants(nodes);
+        new Resolver(symbols).resolve(nodes);
+        if (profiler != null) {
+            // Profiling instruments the syntax tree, so it always runs on the tree-walker.
+            nodes = profiler.instrument(nodes);
+        }
+        Node.executeAll(nodes, context);
+    }
+
+    /** Executes each top-level statement as soon as it has been parsed, without holding the whole program. */
+    private static void runStreaming(Path source, OutputSink out, InputSource in, Profiler profiler, Options options)
+            throws IOException {
+        SymbolTable symbols = new SymbolTable();
+        Context context = newContext(symbols, out, in, options);
+        Optimizer optimizer = new Optimizer();
+        try (MappedFileReader reader = new MappedFileReader(source)) {
+            Parser parser = new Parser(new TokenStream(reader));
+            Node parsed;
+            while ((parsed = parser.parseNext()) != null) {
+                List<Node> nodes = optimizer.optimize(List.of(parsed));
+                if (options.dumpOptimized) {
+                    System.err.print(Optimizer.dump(nodes));
+                }
+                for (Node node : nodes) {
+                    node = optimizer.hoistInvariants(node);
+                    node.resolve(symbols);
+                    if (profiler != null) {
+                        node = profiler.instrument(node);
+                    }
+                    Node.executeAll(List.of(node), context);
+                }
+            }
+        } finally {
+            stats(options, context, out);
+        }
+    }
+
+    private static Context newContext(SymbolTable symbols, OutputSink out, InputSource in, Options options) {
+        Context context = new Context(symbols, out, in);
+        if (options.maxSteps > 0) {
+            context.limitSteps(options.maxSteps);
+        }
+        if (options.timeLimitMillis > 0) {
+            context.limitTime(options.timeLimitMillis);
+        }
+        return context;
+    }
+
+    /** With --stats, reports on stderr how many steps the run took, after its pending output. */
+    private static void stats(Options options, Context context, OutputSink out) {
+        if (options.stats) {
+            out.flush();
+            System.err.println("Steps: " + context.steps());
+        }
+    }
+}
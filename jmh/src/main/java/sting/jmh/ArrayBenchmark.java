@@ -0,0 +1,56 @@
+package sting.jmh;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code sum(xs)} over an array of decimals. {@code vector} runs in a JVM with jdk.incubator.vector, so the
+ * difference from {@code scalar} is what the SIMD kernels gain.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArrayBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private Object context;
+
+    @Setup
+    public void setUp() throws Throwable {
+        SplittableRandom random = new SplittableRandom(42);
+        double[] xs = new double[size];
+        for (int i = 0; i < size; i++) {
+            xs[i] = random.nextDouble(-1000, 1000);
+        }
+        // Context.set only takes names the program declares.
+        context = StingBridge.newContext(StingBridge.parse(StingBridge.tokenize("arr(xs) = 0 |\n")), "0");
+        StingBridge.set(context, "xs", xs);
+    }
+
+    @Benchmark
+    public Object scalar() throws Throwable {
+        return StingBridge.evaluateValue("sum(xs)", context);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+    public Object vector() throws Throwable {
+        return StingBridge.evaluateValue("sum(xs)", context);
+    }
+}
@@ -0,0 +1,48 @@
+package sting.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** ExpressionEvaluator.evaluateValue, which compiles and evaluates an expression string on every call. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionBenchmark {
+    @Param({
+        "1 + 2 * 3 - 4 / 5",
+        "x * x + y * 2 > 100 && !flag",
+        "'total: ' + x + ' of ' + y"
+    })
+    public String expression;
+
+    private Object context;
+
+    @Setup
+    public void setUp() throws Throwable {
+        // Context.set only takes names the program declares.
+        context = StingBridge.newContext(StingBridge.parse(StingBridge.tokenize(
+            "num(x) = 0 |\nnum(y) = 0 |\nbln(flag) = false |\n")), "0");
+        StingBridge.set(context, "x", 12.0);
+        StingBridge.set(context, "y", 7.5);
+        StingBridge.set(context, "flag", false);
+    }
+
+    @Benchmark
+    public Object evaluateValue() throws Throwable {
+        return StingBridge.evaluateValue(expression, context);
+    }
+}
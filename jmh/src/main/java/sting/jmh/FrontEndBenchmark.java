@@ -0,0 +1,43 @@
+package sting.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Lexer.scan and Parser.parse over a ~64 KB source built from the benchmark programs. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrontEndBenchmark {
+    private String source;
+    private Object tokens;
+
+    @Setup
+    public void setUp() throws Throwable {
+        source = Programs.corpus(64 * 1024);
+        tokens = StingBridge.tokenize(source);
+    }
+
+    @Benchmark
+    public Object tokenize() throws Throwable {
+        return StingBridge.tokenize(source);
+    }
+
+    @Benchmark
+    public List<?> parse() throws Throwable {
+        return StingBridge.parse(tokens);
+    }
+}
@@ -0,0 +1,48 @@
+package sting.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexes, parses, resolves and runs a whole program per operation. Output is discarded and every roi() prompt
+ * is answered with the same stub value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgramBenchmark {
+    private static final String ROI_ANSWER = "7";
+
+    @Param({"nested-loops", "string-building", "arithmetic", "if-chain"})
+    public String program;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = Programs.load(program);
+    }
+
+    @Benchmark
+    public Object run() throws Throwable {
+        List<?> nodes = StingBridge.parse(StingBridge.tokenize(source));
+        Object context = StingBridge.newContext(nodes, ROI_ANSWER);
+        StingBridge.execute(nodes, context);
+        return context;
+    }
+}
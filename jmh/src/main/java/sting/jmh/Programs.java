@@ -0,0 +1,36 @@
+package sting.jmh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/** The representative programs under resources/programs. */
+final class Programs {
+    static final String[] NAMES = {"nested-loops", "string-building", "arithmetic", "if-chain"};
+
+    private Programs() {
+    }
+
+    static String load(String name) {
+        try (InputStream in = Programs.class.getResourceAsStream("/programs/" + name + ".sting")) {
+            if (in == null) {
+                throw new IllegalArgumentException("No benchmark program named " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Every program concatenated, repeated until the text is large enough to time the front end on. */
+    static String corpus(int minLength) {
+        StringBuilder corpus = new StringBuilder();
+        while (corpus.length() < minLength) {
+            for (String name : NAMES) {
+                corpus.append(load(name)).append('\n');
+            }
+        }
+        return corpus.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package sting.jmh;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The interpreter lives in the unnamed package, which JMH benchmarks cannot import, so they reach it through
+ * method handles. The handles are static finals, which the JIT treats as constants, so calls through them
+ * inline like direct calls.
+ */
+final class StingBridge {
+    private static final MethodHandle TOKENIZE;
+    private static final MethodHandle NEW_PARSER;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle NEW_RESOLVER;
+    private static final MethodHandle RESOLVE;
+    private static final MethodHandle NEW_CONTEXT;
+    private static final MethodHandle NEW_SINK;
+    private static final MethodHandle INPUT_OF;
+    private static final MethodHandle EXECUTE;
+    private static final MethodHandle EVALUATE_VALUE;
+    private static final MethodHandle SET_VARIABLE;
+
+    static {
+        try {
+            Class<?> lexer = type("Lexer");
+            Class<?> tokenBuffer = type("TokenBuffer");
+            Class<?> parser = type("Parser");
+            Class<?> resolver = type("Resolver");
+            Class<?> symbolTable = type("SymbolTable");
+            Class<?> context = type("Context");
+            Class<?> outputSink = type("OutputSink");
+            Class<?> inputSource = type("InputSource");
+            Class<?> node = type("Node");
+            Class<?> evaluator = type("ExpressionEvaluator");
+
+            TOKENIZE = lookup(lexer).findVirtual(lexer, "scan", MethodType.methodType(tokenBuffer, String.class))
+                .bindTo(lookup(lexer).findConstructor(lexer, MethodType.methodType(void.class)).invoke());
+            NEW_PARSER = lookup(parser).findConstructor(parser, MethodType.methodType(void.class, tokenBuffer));
+            PARSE = lookup(parser).findVirtual(parser, "parse", MethodType.methodType(List.class));
+            NEW_RESOLVER = lookup(resolver).findConstructor(resolver, MethodType.methodType(void.class));
+            RESOLVE = lookup(resolver).findVirtual(resolver, "resolve", MethodType.methodType(symbolTable, List.class));
+            NEW_CONTEXT = lookup(context).findConstructor(context,
+                MethodType.methodType(void.class, symbolTable, outputSink, inputSource));
+            NEW_SINK = lookup(outputSink).findConstructor(outputSink,
+                MethodType.methodType(void.class, WritableByteChannel.class, Charset.class, int.class, long.class));
+            INPUT_OF = lookup(inputSource).findStatic(inputSource, "of", MethodType.methodType(inputSource, List.class));
+            EXECUTE = lookup(node).findVirtual(node, "execute", MethodType.methodType(int.class, context));
+            EVALUATE_VALUE = lookup(evaluator).findStatic(evaluator, "evaluateValue",
+                MethodType.methodType(Object.class, String.class, context));
+            SET_VARIABLE = lookup(context).findVirtual(context, "set",
+                MethodType.methodType(void.class, String.class, Object.class));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private StingBridge() {
+    }
+
+    /** The packed tokens of a source, as the Parser takes them. */
+    static Object tokenize(String source) throws Throwable {
+        return TOKENIZE.invoke(source);
+    }
+
+    static List<?> parse(Object tokens) throws Throwable {
+        return (List<?>) PARSE.invoke(NEW_PARSER.invoke(tokens));
+    }
+
+    /** A fresh context whose output is discarded and whose roi() prompts all read {@code answer}. */
+    static Object newContext(List<?> nodes, String answer) throws Throwable {
+        Object symbols = RESOLVE.invoke(NEW_RESOLVER.invoke(), nodes);
+        Object out = NEW_SINK.invoke(Channels.newChannel(OutputStream.nullOutputStream()),
+            Charset.defaultCharset(), 1 << 16, -1L);
+        Object in = INPUT_OF.invoke(Collections.nCopies(Integer.MAX_VALUE, answer));
+        return NEW_CONTEXT.invoke(symbols, out, in);
+    }
+
+    static void execute(List<?> nodes, Object context) throws Throwable {
+        for (Object node : nodes) {
+            EXECUTE.invoke(node, context);
+        }
+    }
+
+    static Object evaluateValue(String expression, Object context) throws Throwable {
+        return EVALUATE_VALUE.invoke(expression, context);
+    }
+
+    static void set(Object context, String name, Object value) throws Throwable {
+        SET_VARIABLE.invoke(context, name, value);
+    }
+
+    private static Class<?> type(String name) throws ClassNotFoundException {
+        return Class.forName(name, true, StingBridge.class.getClassLoader());
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+}
@@ -0,0 +1,51 @@
+package sting.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds a string one character per loop iteration with {@code s = s + 'x'}. Time per operation should double
+ * with the length; with copying concatenation it quadruples.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringBuildingBenchmark {
+    @Param({"125000", "250000", "500000", "1000000"})
+    public int length;
+
+    private List<?> nodes;
+
+    @Setup
+    public void setUp() throws Throwable {
+        String source = "str(s) = '' |\n"
+            + "num(k) = 0 |\n"
+            + "loop(k < " + length + "):\n"
+            + "    s = s + 'x' |\n"
+            + "    k = k + 1 ||\n"
+            + "show(s)\n";
+        nodes = StingBridge.parse(StingBridge.tokenize(source));
+    }
+
+    @Benchmark
+    public Object build() throws Throwable {
+        Object context = StingBridge.newContext(nodes, "");
+        StingBridge.execute(nodes, context);
+        return context;
+    }
+}